@@ -2,6 +2,8 @@ import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,6 +21,7 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JSpinner;
 import javax.swing.KeyStroke;
@@ -26,8 +29,15 @@ import javax.swing.SpinnerNumberModel;
 
 import org.openspim.gui.LayoutUtils;
 import org.openspim.gui.SortableDualList;
+import org.openspim.toolkit.MemoryBudget;
 import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.Pipeline;
+import org.openspim.toolkit.PipelinePlan;
 import org.openspim.toolkit.Processor;
+import org.openspim.toolkit.ViewCache;
+import org.openspim.toolkit.WriteBehindQueue;
+import org.openspim.toolkit.archipelago.Archipelago;
+import org.openspim.toolkit.io.IoLimiter;
 
 import ij.IJ;
 import ij.Macro;
@@ -47,60 +57,22 @@ public class Fusion_Pipeline implements PlugIn {
 		if(!doProcessing)
 			return;
 
-		Processor.Params params = new Processor.Params();
-		params.invokeOn = Executors.newFixedThreadPool(((Number)threads.getValue()).intValue());
-		params.spec = OpenSPIMToolkit.readSpecifierFields(specForm);
-
+		OpenSPIMToolkit.readSpecifierFields(specForm);
 		OpenSPIMToolkit.readManualRegFields(manRegForm);
-		params.beadRadius1 = OpenSPIMToolkit.RegField.RADIUS1.getDoubleValue();
-		params.beadRadius2 = OpenSPIMToolkit.RegField.RADIUS2.getDoubleValue();
-		params.threshold = OpenSPIMToolkit.RegField.THRESHOLD.getDoubleValue();
-		params.xyUmPerPix = OpenSPIMToolkit.RegField.PIXEL_SIZE_XY.getDoubleValue();
-		params.zUmPerPix = OpenSPIMToolkit.RegField.PIXEL_SIZE_Z.getDoubleValue();
+
+		Processor.Params params = OpenSPIMToolkit.getLastParams();
+		params.invokeOn = Executors.newFixedThreadPool(((Number)threads.getValue()).intValue());
 
 		params.progressScale = 1 / (float)(preproc.countRHS());
+		params.incremental = incremental.isSelected();
+		params.inPlace = inPlace.isSelected();
+		params.memory = MemoryBudget.ofHeapShare(((Number)heapShare.getValue()).doubleValue() / 100);
+		params.views = viewCacheShare() > 0 ? ViewCache.ofHeapShare(viewCacheShare()) : null;
+		params.writes = writeBehindShare() > 0 ? WriteBehindQueue.ofHeapShare(writeBehindShare()) : null;
+		params.io = ioPermits() > 0 ? new IoLimiter(ioPermits()) : null;
 
 		try {
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN PREPROCESS STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.PREPROCESS;
-			for(Processor proc : preproc)
-				proc.performProcessing(params);
-			
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN SEGMENTATION STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.SEGMENTATION;
-			((Processor)seg.getSelectedItem()).performProcessing(params);
-
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN PRE-REGISTRATION STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.POST_SEG_PRE_REG;
-			for(Processor proc : prereg)
-				proc.performProcessing(params);
-			
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN REGISTRATION STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.REGISTRATION;
-			((Processor)reg.getSelectedItem()).performProcessing(params);
-
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN PRE-FUSION STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.POST_REG_PRE_FUSE;
-			for(Processor proc : prefuse)
-				proc.performProcessing(params);
-
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN FUSION STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.FUSION;
-			((Processor)fuse.getSelectedItem()).performProcessing(params);
-
-			IJ.log("~~~~~~~~~~~~~~~~ BEGIN POSTPROCESS STAGE ~~~~~~~~~~~~~~~~\n");
-
-			params.stage = Processor.Stage.POSTPROCESS;
-			for(Processor proc : postproc)
-				proc.performProcessing(params);
-
-			IJ.log("~~~~~~~~~~~~~~~~ DONE! :D ~~~~~~~~~~~~~~~~\n");
+			buildPipeline(params).run(params);
 		} catch(InterruptedException e) {
 			IJ.log("~~~~~~~~~~~~~~~~ INTERRUPTED! D: ~~~~~~~~~~~~~~~~\n");
 			IJ.handleException(e);
@@ -116,11 +88,88 @@ public class Fusion_Pipeline implements PlugIn {
 	private static boolean doProcessing;
 	private static SortableDualList<Processor> preproc, prereg, prefuse, postproc;
 	private static JComboBox seg, reg, fuse;
-	private static JSpinner threads;
-	private static JCheckBox archipelago;
+	private static JSpinner threads, heapShare, viewCache, writeBehind, ioStreams, workers;
+	private static JCheckBox archipelago, remoteWorkers, pipelined, incremental, inPlace, autoTune, live;
 
 	private static ServiceLoader<Processor> procs = ServiceLoader.load(Processor.class);
 
+	private static Pipeline buildPipeline(Processor.Params params)
+	{
+		Pipeline pipeline = new Pipeline();
+		pipeline.setPipelined(pipelined.isSelected());
+		pipeline.setAutoTune(autoTune.isSelected());
+		pipeline.setLive(live.isSelected());
+
+		for(Processor proc : preproc)
+			pipeline.add(Processor.Stage.PREPROCESS, proc);
+
+		pipeline.add(Processor.Stage.SEGMENTATION, (Processor)seg.getSelectedItem());
+
+		for(Processor proc : prereg)
+			pipeline.add(Processor.Stage.POST_SEG_PRE_REG, proc);
+
+		pipeline.add(Processor.Stage.REGISTRATION, (Processor)reg.getSelectedItem());
+
+		for(Processor proc : prefuse)
+			pipeline.add(Processor.Stage.POST_REG_PRE_FUSE, proc);
+
+		pipeline.add(Processor.Stage.FUSION, (Processor)fuse.getSelectedItem());
+
+		for(Processor proc : postproc)
+			pipeline.add(Processor.Stage.POSTPROCESS, proc);
+
+		if(archipelago.isSelected())
+		{
+			PipelinePlan plan = PipelinePlan.capture(pipeline, params, 1);
+			plan.set(PipelinePlan.ARCHIPELAGO_REMOTE, Boolean.toString(remoteWorkers.isSelected()));
+
+			pipeline.setArchipelago(new Archipelago(plan, ((Number)workers.getValue()).intValue(), 0));
+		}
+
+		return pipeline;
+	}
+
+	private static double viewCacheShare()
+	{
+		return ((Number)viewCache.getValue()).doubleValue() / 100;
+	}
+
+	private static double writeBehindShare()
+	{
+		return ((Number)writeBehind.getValue()).doubleValue() / 100;
+	}
+
+	private static int ioPermits()
+	{
+		return ((Number)ioStreams.getValue()).intValue();
+	}
+
+	private static void savePlan(Component source)
+	{
+		JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File("pipeline-plan.properties"));
+
+		if(chooser.showSaveDialog(source) != JFileChooser.APPROVE_OPTION)
+			return;
+
+		OpenSPIMToolkit.readSpecifierFields(specForm);
+		OpenSPIMToolkit.readManualRegFields(manRegForm);
+
+		Processor.Params params = OpenSPIMToolkit.getLastParams();
+		params.incremental = incremental.isSelected();
+		params.inPlace = inPlace.isSelected();
+		params.memory = MemoryBudget.ofHeapShare(((Number)heapShare.getValue()).doubleValue() / 100);
+		params.views = viewCacheShare() > 0 ? ViewCache.ofHeapShare(viewCacheShare()) : null;
+		params.writes = writeBehindShare() > 0 ? WriteBehindQueue.ofHeapShare(writeBehindShare()) : null;
+		params.io = ioPermits() > 0 ? new IoLimiter(ioPermits()) : null;
+
+		try {
+			PipelinePlan.capture(buildPipeline(params), params, ((Number)threads.getValue()).intValue()).save(chooser.getSelectedFile());
+		} catch(IOException ioe) {
+			IJ.handleException(ioe);
+		}
+	}
+
 	private static <T> List<T> fromIterator(Iterator<T> iter)
 	{
 		List<T> ret = new LinkedList<T>();
@@ -214,12 +263,32 @@ public class Fusion_Pipeline implements PlugIn {
 		goBtn.addActionListener(listener);
 		JButton cancelBtn = new JButton("Cancel");
 		cancelBtn.addActionListener(listener);
+		JButton planBtn = new JButton("Save Plan...");
+		planBtn.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent ae)
+			{
+				savePlan((Component) ae.getSource());
+			}
+		});
 		
 		LayoutUtils.addAll(gui.getContentPane(),
 			LayoutUtils.vertPanel("Processing Options",
 				LayoutUtils.form(
 					"Thread Pool Size:", threads = new JSpinner(new SpinnerNumberModel(Runtime.getRuntime().availableProcessors(), 1, 10*Runtime.getRuntime().availableProcessors(), 1)),
-					"Archipelago:", archipelago = new JCheckBox()
+					"Auto-Optimize:", autoTune = new JCheckBox(),
+					"Memory Budget (% of heap):", heapShare = new JSpinner(new SpinnerNumberModel(75, 5, 100, 5)),
+					"View Cache (% of heap):", viewCache = new JSpinner(new SpinnerNumberModel(0, 0, 95, 5)),
+					"Write-Behind Queue (% of heap):", writeBehind = new JSpinner(new SpinnerNumberModel(0, 0, 50, 5)),
+					"I/O Streams per Disk (0 = no limit):", ioStreams = new JSpinner(new SpinnerNumberModel(0, 0, 256, 1)),
+					"Pipeline Views:", pipelined = new JCheckBox(),
+					"Skip Up-to-Date Views:", incremental = new JCheckBox(),
+					"Edit Views in Place (not crash-safe):", inPlace = new JCheckBox(),
+					"Process Views as They Arrive:", live = new JCheckBox(),
+					"Archipelago:", archipelago = new JCheckBox(),
+					"Archipelago Workers:", workers = new JSpinner(new SpinnerNumberModel(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 0, 1024, 1)),
+					"Accept Remote Workers:", remoteWorkers = new JCheckBox()
 				)
 			),
 			LayoutUtils.horizPanel("Data Information",
@@ -266,14 +335,13 @@ public class Fusion_Pipeline implements PlugIn {
 				configButton(fromListBox(postproc))
 			),
 			LayoutUtils.horizPanel(
+				planBtn,
 				Box.createHorizontalGlue(),
 				goBtn,
 				cancelBtn
 			)
 		);
 
-		archipelago.setEnabled(false);
-		
 		gui.pack();
 
 		gui.setModal(true);
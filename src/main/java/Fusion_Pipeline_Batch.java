@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.Pipeline;
+import org.openspim.toolkit.PipelinePlan;
+import org.openspim.toolkit.Processor;
+
+import ij.IJ;
+import ij.Macro;
+import ij.plugin.PlugIn;
+
+/**
+ * Runs the Fusion Pipeline from a {@link PipelinePlan} file, without showing
+ * any dialogs. From ImageJ (or a headless macro), pass the plan as
+ * <code>plan=[/path/to/plan.properties]</code>; from the command line, run
+ * this class with the plan's path as its only argument (and
+ * <code>-Djava.awt.headless=true</code> on display-less nodes).
+ */
+public class Fusion_Pipeline_Batch implements PlugIn {
+	@Override
+	public void run(String arg) {
+		String path = arg;
+
+		if(Macro.getOptions() != null)
+			path = Macro.getValue(Macro.getOptions(), "plan", path);
+
+		if(path == null || path.isEmpty()) {
+			IJ.error("Fusion Pipeline (Batch)", "No pipeline plan given; use plan=[/path/to/plan.properties].");
+			return;
+		}
+
+		try {
+			runPlan(new File(path));
+		} catch(Exception e) {
+			IJ.log("~~~~~~~~~~~~~~~~ ERROR! D: ~~~~~~~~~~~~~~~~\n");
+			IJ.handleException(e);
+		}
+	}
+
+	public static void runPlan(File planFile) throws IOException, InterruptedException, ExecutionException {
+		PipelinePlan plan = PipelinePlan.load(planFile);
+		Pipeline pipeline = plan.toPipeline();
+
+		Processor.Params params = OpenSPIMToolkit.getLastParams();
+		params.invokeOn = Executors.newFixedThreadPool(plan.getThreads());
+		params.progressScale = 1 / (float)Math.max(pipeline.get(Processor.Stage.PREPROCESS).size(), 1);
+		plan.applyTo(params);
+
+		try {
+			pipeline.run(params);
+		} finally {
+			params.invokeOn.shutdownNow();
+		}
+	}
+
+	public static void main(String[] args) {
+		if(args.length != 1) {
+			System.err.println("Usage: Fusion_Pipeline_Batch <plan.properties>");
+			System.exit(2);
+		}
+
+		try {
+			runPlan(new File(args[0]));
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+}
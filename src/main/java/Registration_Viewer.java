@@ -1,34 +1,155 @@
 import java.awt.Color;
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.io.BeadStore;
 
 import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
+import ij.gui.GenericDialog;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
 import ij.io.FileInfo;
 import ij.plugin.PlugIn;
 
 public class Registration_Viewer implements PlugIn {
+	private static final int DEFAULT_DEPTH = 2;
+	private static final int DEFAULT_CACHED = 64;
+
+	/**
+	 * A view's beads, bucketed by slice (the beads of slice z are
+	 * start[z]..start[z+1]), with overlays built on demand and the most
+	 * recently used ones kept, so going back to a slice costs nothing.
+	 */
+	private static class SliceOverlays {
+		private final int[] start;
+		private final float[] xs, ys;
+		private final int depth;
+		private final Map<Integer, Overlay> cache;
+
+		SliceOverlays(BeadStore beads, int slices, int depth, final int cached) {
+			this.depth = depth;
+			this.start = new int[slices + 1];
+
+			// Counting sort by slice; beads outside the stack are dropped.
+			for (int i = 0; i < beads.size(); ++i) {
+				int z = (int) beads.getZ(i);
+				if (z >= 0 && z < slices)
+					++start[z + 1];
+			}
+
+			for (int z = 0; z < slices; ++z)
+				start[z + 1] += start[z];
+
+			xs = new float[start[slices]];
+			ys = new float[start[slices]];
+			int[] next = start.clone();
+
+			for (int i = 0; i < beads.size(); ++i) {
+				int z = (int) beads.getZ(i);
+				if (z < 0 || z >= slices)
+					continue;
+
+				xs[next[z]] = (float) beads.getX(i);
+				ys[next[z]] = (float) beads.getY(i);
+				++next[z];
+			}
+
+			cache = new LinkedHashMap<Integer, Overlay>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, Overlay> eldest) {
+					return size() > cached;
+				}
+			};
+		}
+
+		synchronized Overlay get(int slice) {
+			Overlay o = cache.get(slice);
+
+			if (o == null)
+				cache.put(slice, o = build(slice));
+
+			return o;
+		}
+
+		/**
+		 * The beads of a slice, and (fainter the further away they are)
+		 * those within depth slices of it; farthest first, so the slice's
+		 * own are drawn on top.
+		 */
+		private Overlay build(int slice) {
+			Overlay o = new Overlay();
+
+			for (int d = depth; d >= 0; --d) {
+				int alpha = 255 * (depth + 1 - d) / (depth + 1);
+				Color color = new Color(0, 255, 0, alpha);
+
+				for (int z : d == 0 ? new int[] { slice } : new int[] { slice - d, slice + d }) {
+					if (z < 0 || z >= start.length - 1)
+						continue;
+
+					for (int i = start[z]; i < start[z + 1]; ++i) {
+						OvalRoi r = new OvalRoi(xs[i] - 2, ys[i] - 2, 4, 4);
+						r.setStrokeColor(color);
+						o.add(r);
+					}
+				}
+			}
+
+			return o;
+		}
+	}
 
 	public Registration_Viewer() {
 	}
 
 	@Override
 	public void run(String arg0) {
-		overlayRegistration(IJ.getImage());
+		GenericDialog gd = new GenericDialog("Registration Viewer");
+		gd.addNumericField("Show beads within (slices):", DEFAULT_DEPTH, 0);
+		gd.addNumericField("Cached overlays (slices):", DEFAULT_CACHED, 0);
+		gd.showDialog();
+
+		if (gd.wasCanceled())
+			return;
+
+		int depth = Math.max(0, (int) gd.getNextNumber());
+		int cached = Math.max(1, (int) gd.getNextNumber());
+
+		overlayRegistration(IJ.getImage(), depth, cached);
 	}
 
 	public static void overlayRegistration(final ImagePlus imp) {
+		overlayRegistration(imp, DEFAULT_DEPTH, DEFAULT_CACHED);
+	}
+
+	/**
+	 * @param depth how many slices above and below the current one to show beads from
+	 * @param cached how many slices' overlays to keep
+	 */
+	public static void overlayRegistration(final ImagePlus imp, int depth, int cached) {
 		FileInfo fi = imp.getOriginalFileInfo();
+		File view = new File(fi.directory, fi.fileName);
+		File text = new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".beads.txt");
+
+		final SliceOverlays overlays;
+
+		try {
+			overlays = new SliceOverlays(BeadStore.open(text), imp.getStackSize(), depth, cached);
+		} catch (IOException ioe) {
+			IJ.error("Registration Viewer", "Couldn't load the beads of " + view.getName() + ": " + ioe.getMessage());
+			return;
+		}
 
-		final List<Vector3D> beads = OpenSPIMToolkit.loadBeadsSimple(new File(fi.directory, fi.fileName));
+		ImageListener listener = new ImageListener() {
+			private int shown = -1;
 
-		ImagePlus.addImageListener(new ImageListener() {
 			@Override
 			public void imageClosed(ImagePlus arg0) {
 				if (!arg0.equals(imp))
@@ -46,20 +167,17 @@ public class Registration_Viewer implements PlugIn {
 				if (!arg0.equals(imp))
 					return;
 
-				Overlay o = new Overlay();
-				o.setStrokeColor(Color.GREEN);
-
-				for (Vector3D bead : beads) {
-					if ((int) bead.getZ() != arg0.getSlice() - 1)
-						continue;
-
-					OvalRoi r = new OvalRoi(bead.getX() - 2, bead.getY() - 2, 4, 4);
-					r.setStrokeColor(Color.GREEN);
-					o.add(r);
-				}
+				// Updates come for more than slice changes.
+				int slice = arg0.getSlice() - 1;
+				if (slice == shown)
+					return;
 
-				arg0.setOverlay(o);
+				shown = slice;
+				arg0.setOverlay(overlays.get(slice));
 			}
-		});
+		};
+
+		ImagePlus.addImageListener(listener);
+		listener.imageUpdated(imp);
 	}
 }
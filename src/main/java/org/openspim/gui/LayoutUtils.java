@@ -4,14 +4,21 @@ import java.awt.Component;
 import java.awt.Container;
 import java.awt.GridLayout;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.GroupLayout;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
 
 public class LayoutUtils {
 	public static <T extends JComponent> T titled(String title, T c) {
@@ -126,6 +133,115 @@ public class LayoutUtils {
 		return ret;
 	}
 
+	/**
+	 * Turns a form label (e.g. "Backup Originals:") into a key usable in
+	 * macro options or plan files (e.g. "backup_originals").
+	 */
+	public static String formKey(String label) {
+		String key = label.toLowerCase().replaceAll("[^a-z0-9]+", "_");
+
+		return key.replaceAll("^_+|_+$", "");
+	}
+
+	public static String getFormValue(Component c) {
+		if(c instanceof JCheckBox)
+			return Boolean.toString(((JCheckBox) c).isSelected());
+		else if(c instanceof JSpinner)
+			return ((JSpinner) c).getValue().toString();
+		else if(c instanceof JSlider)
+			return Integer.toString(((JSlider) c).getValue());
+		else if(c instanceof JComboBox)
+			return String.valueOf(((JComboBox) c).getSelectedItem());
+		else if(c instanceof JTextField)
+			return ((JTextField) c).getText();
+		else if(c instanceof Container)
+			for(Component child : ((Container) c).getComponents())
+				if(child instanceof JTextField)
+					return getFormValue(child);
+
+		return null;
+	}
+
+	public static boolean setFormValue(Component c, String value) {
+		if(c instanceof JCheckBox) {
+			((JCheckBox) c).setSelected(Boolean.parseBoolean(value.trim()));
+		} else if(c instanceof JSpinner) {
+			JSpinner spinner = (JSpinner) c;
+
+			if(spinner.getValue() instanceof Integer)
+				spinner.setValue((int) Double.parseDouble(value.trim()));
+			else
+				spinner.setValue(Double.parseDouble(value.trim()));
+		} else if(c instanceof JSlider) {
+			((JSlider) c).setValue((int) Double.parseDouble(value.trim()));
+		} else if(c instanceof JComboBox) {
+			JComboBox combo = (JComboBox) c;
+
+			for(int i = 0; i < combo.getItemCount(); ++i) {
+				if(String.valueOf(combo.getItemAt(i)).equalsIgnoreCase(value.trim())) {
+					combo.setSelectedIndex(i);
+					return true;
+				}
+			}
+
+			return false;
+		} else if(c instanceof JTextField) {
+			((JTextField) c).setText(value);
+		} else if(c instanceof Container) {
+			for(Component child : ((Container) c).getComponents())
+				if(child instanceof JTextField)
+					return setFormValue(child, value);
+
+			return false;
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads every field of a form made by {@link #form(Map)} into a map of
+	 * {@link #formKey(String)} keys to string values.
+	 */
+	public static Map<String, String> readForm(Component formPanel) {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+
+		if(!(formPanel instanceof JPanel))
+			return ret;
+
+		for(Map.Entry<String, Component> field : unForm((JPanel) formPanel).entrySet()) {
+			String value = getFormValue(field.getValue());
+
+			if(value != null)
+				ret.put(formKey(field.getKey()), value);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Sets the fields of a form made by {@link #form(Map)} from a map keyed
+	 * by {@link #formKey(String)}.
+	 *
+	 * @return the keys that matched no field of the form
+	 */
+	public static List<String> writeForm(Component formPanel, Map<String, String> values) {
+		List<String> unmatched = new LinkedList<String>(values.keySet());
+
+		if(!(formPanel instanceof JPanel))
+			return unmatched;
+
+		for(Map.Entry<String, Component> field : unForm((JPanel) formPanel).entrySet()) {
+			String key = formKey(field.getKey());
+
+			if(values.containsKey(key) && setFormValue(field.getValue(), values.get(key)))
+				unmatched.remove(key);
+		}
+
+		return unmatched;
+	}
+
 	public static JPanel grid(String title, int rows, int cols, JComponent... contents) {
 		return titled(title, grid(rows, cols, contents));
 	}
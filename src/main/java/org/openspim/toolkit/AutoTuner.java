@@ -0,0 +1,111 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Chooses how many views each stage should process at once, based on the
+ * dataset (view sizes read from a sample of TIFF headers), the memory budget,
+ * the number of cores, and how long the processors took on earlier runs.
+ * The plan, with its expected peak memory and runtime, is written to the log
+ * before processing starts.
+ *
+ * @author LOCI
+ *
+ */
+public class AutoTuner
+{
+	private static final int SAMPLES = 16;
+	private static final double MB = 1024.0 * 1024.0;
+	private static final double GB = 1024.0 * MB;
+
+	public static Map<Processor.Stage, Integer> plan(Pipeline pipeline, Processor.Params params)
+	{
+		int cores = Runtime.getRuntime().availableProcessors();
+		long budget = params.memory != null ? params.memory.getBudget() : (long) (Runtime.getRuntime().maxMemory() * 0.75);
+
+		ViewSet all = params.spec.getViews();
+		int views = all.size();
+		int stride = Math.max(1, views / SAMPLES);
+		int sampled = 0;
+		long diskBytes = 0, largest = 0;
+
+		for(int index = 0; index < views; index += stride)
+		{
+			File view = all.get(index);
+
+			if(!view.exists())
+				continue;
+
+			diskBytes += view.length();
+			largest = Math.max(largest, MemoryBudget.estimateViewBytes(view));
+			++sampled;
+		}
+
+		double datasetGB = sampled > 0 ? (diskBytes / (double) sampled) * views / GB : 0;
+
+		IJ.log("~~~~~~~~~~~~~~~~ AUTO-OPTIMIZATION ~~~~~~~~~~~~~~~~\n");
+		IJ.log(String.format("%d views (%d sampled): ~%.2f GB on disk, up to %.1f MB decoded per view.", views, sampled, datasetGB, largest / MB));
+		IJ.log(String.format("%d cores, %.1f MB memory budget.", cores, budget / MB));
+
+		Map<Processor.Stage, Integer> plan = new EnumMap<Processor.Stage, Integer>(Processor.Stage.class);
+		double totalSeconds = 0;
+		boolean untimed = false;
+
+		for(Processor.Stage stage : Processor.Stage.values())
+		{
+			if(pipeline.get(stage).isEmpty())
+				continue;
+
+			int threads = cores;
+			double peak = 0;
+
+			for(Processor proc : pipeline.get(stage))
+			{
+				if(!(proc instanceof ViewProcessor))
+					continue;
+
+				// The multiplier can depend on the run's settings.
+				((ViewProcessor) proc).prepare(params.forStage(stage));
+				double perView = largest * ((ViewProcessor) proc).getMemoryMultiplier();
+
+				if(perView > 0)
+					threads = (int) Math.max(1, Math.min(threads, budget / perView));
+
+				peak = Math.max(peak, perView);
+			}
+
+			peak *= threads;
+
+			double seconds = 0;
+			for(Processor proc : pipeline.get(stage))
+			{
+				double rate = params.timings != null ? params.timings.getSecondsPerGB(proc) : Double.NaN;
+
+				if(Double.isNaN(rate))
+					untimed = true;
+				else
+					seconds += rate * datasetGB / (proc instanceof ViewProcessor ? threads : 1);
+			}
+
+			totalSeconds += seconds;
+			plan.put(stage, threads);
+
+			IJ.log(String.format("%s: %d thread(s), ~%.1f MB peak, ~%s", stage.getTitle(), threads, peak / MB, formatSeconds(seconds)));
+		}
+
+		IJ.log("Expected runtime: ~" + formatSeconds(totalSeconds) + (untimed ? " (some processors have no timings yet)" : ""));
+
+		return plan;
+	}
+
+	private static String formatSeconds(double seconds)
+	{
+		long s = Math.round(seconds);
+
+		return String.format("%dh %02dm %02ds", s / 3600, (s / 60) % 60, s % 60);
+	}
+}
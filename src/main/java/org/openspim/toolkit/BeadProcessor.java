@@ -2,83 +2,209 @@ package org.openspim.toolkit;
 
 import ij.IJ;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.openspim.toolkit.io.BeadStore;
 
 public abstract class BeadProcessor extends ViewProcessor {
+	private static final int CHUNK = 1 << 12; // Beads per fork/join task; a multiple of 64.
+	private static final ForkJoinPool FILTER_POOL = new ForkJoinPool();
+
+	/**
+	 * Filters a range of beads on a fork/join thread, splitting it (at word
+	 * boundaries of the mask, so no two tasks share a word) while it's big.
+	 */
+	private class FilterTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final File view;
+		private final double[] x, y, z;
+		private final int from, to;
+		private final long[] keep;
+
+		FilterTask(File view, double[] x, double[] y, double[] z, int from, int to, long[] keep) {
+			this.view = view;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.from = from;
+			this.to = to;
+			this.keep = keep;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from <= CHUNK) {
+				filterBeads(view, x, y, z, from, to, keep);
+				return;
+			}
+
+			int mid = ((from + to) / 2) & ~63;
+			invokeAll(new FilterTask(view, x, y, z, from, mid, keep), new FilterTask(view, x, y, z, mid, to, keep));
+		}
+	}
+
 	@Override
-	public void processView(Params par, File view)
+	public boolean processView(Params par, File view)
 	{
 		// Important note: ViewProcessor already wraps this method in a thread!
-		beginView(par, view);
-
 		File outputFile = new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".beads.txt");
 		File oldBeadsFile = new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".beads.unfiltered.txt");
 
+		BeadStore beads;
+		try
+		{
+			beads = BeadStore.open(outputFile);
+		}
+		catch(IOException ioe)
+		{
+			IJ.log("Couldn't read beads for view " + view.getName() + ": " + ioe.getMessage());
+			return false;
+		}
+
 		if(oldBeadsFile.exists() && !oldBeadsFile.delete())
 		{
 			IJ.log("Couldn't remove old registration file backup for view " + view.getName() + "");
-			return;
+			return false;
 		}
 
 		if(!outputFile.renameTo(oldBeadsFile))
 		{
 			IJ.log("Couldn't backup unfiltered beads for view " + view.getName() + "");
-			return;
+			return false;
 		}
 
-		int n = 0, kept = 0;
+		// Only now that nothing can bail out early; endView has to follow.
+		beginView(par, view);
+
+		int n = beads.size(), kept = 0;
+		long[] keep = new long[(n + 63) >>> 6];
+		boolean written = true, ended = false;
+
 		try
 		{
-			BufferedReader readIn = new BufferedReader(new FileReader(oldBeadsFile));
-			BufferedWriter writeOut = new BufferedWriter(new FileWriter(outputFile));
+			if(filtersInParallel())
+				FILTER_POOL.invoke(new FilterTask(view, beads.getXs(), beads.getYs(), beads.getZs(), 0, n, keep));
+			else
+				filterBeads(view, beads.getXs(), beads.getYs(), beads.getZs(), 0, n, keep);
 
-			writeOut.write(readIn.readLine()); // Header line
-			writeOut.newLine();
+			for(long word : keep)
+				kept += Long.bitCount(word);
 
-			String line = null;
-			while((line = readIn.readLine()) != null)
+			reportProgress(view, 0.5f);
+
+			try
+			{
+				writeKept(oldBeadsFile, outputFile, beads, keep);
+			}
+			catch(IOException ioe)
 			{
-				Scanner lineScanner = new Scanner(line);
+				ij.IJ.handleException(ioe);
+				written = false;
+			}
+		}
+		finally
+		{
+			ended = endView(view);
+		}
 
-				/*int beadId =*/ lineScanner.nextInt();
-				/*int viewId =*/ lineScanner.nextInt();
-				Vector3D bead = new Vector3D(lineScanner.nextDouble(), lineScanner.nextDouble(), lineScanner.nextDouble());
+		IJ.log("Bead processor: Processed " + n + " beads; remaining: " + kept);
+		return written && ended;
+	}
 
-				if(processBead(view, bead))
+	/**
+	 * Decides which of the beads from..to (exclusive) to keep, by setting
+	 * their bits in the mask (bead i is bit i % 64 of word i / 64). By
+	 * default, asks {@link #processBead(File, Vector3D)} about each in turn.
+	 * <p>
+	 * If the processor {@link #filtersInParallel() filters in parallel}, this
+	 * is called for different ranges at once; ranges always start on a word
+	 * boundary.
+	 */
+	protected void filterBeads(File view, double[] x, double[] y, double[] z, int from, int to, long[] keep)
+	{
+		for(int i = from; i < to; ++i)
+			if(processBead(view, new Vector3D(x[i], y[i], z[i])))
+				keep[i >>> 6] |= 1L << (i & 63);
+	}
+
+	/**
+	 * Whether beads can be filtered on several threads at once; only for
+	 * processors whose filter is a pure function of a bead (and of whatever
+	 * {@link #beginView(Params, File)} set up). Processors that change the
+	 * view as they go should leave this off.
+	 */
+	public boolean filtersInParallel()
+	{
+		return false;
+	}
+
+	/**
+	 * Writes the header and the kept beads' lines (as they are) from the
+	 * unfiltered text to the filtered one, in one buffered pass.
+	 */
+	private static void writeKept(File from, File to, BeadStore beads, long[] keep) throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(from), 1 << 16);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(to), 1 << 16);
+
+		try
+		{
+			out.write(beads.getHeader().getBytes("UTF-8"));
+			out.write('\n');
+
+			long at = 0;
+			for(int i = 0; i < beads.size(); ++i)
+			{
+				if((keep[i >>> 6] & (1L << (i & 63))) == 0)
+					continue;
+
+				for(long start = beads.getLineOffset(i); at < start; )
 				{
-					++kept;
-					writeOut.write(line);
-					writeOut.newLine();
+					long skipped = in.skip(start - at);
+
+					if(skipped <= 0)
+						throw new IOException(from.getName() + " is shorter than its beads say");
+
+					at += skipped;
 				}
 
-				++n; reportProgress(view, (float)(n*n) / ((float)(n*(n + 4.0f)))); // Eh.
-				lineScanner.close();
-			}
+				int b;
+				while((b = in.read()) >= 0)
+				{
+					++at;
 
-			readIn.close();
-			writeOut.close();
-		}
-		catch(FileNotFoundException fnfe)
-		{
-			ij.IJ.handleException(fnfe);
+					if(b == '\n')
+						break;
+
+					if(b != '\r')
+						out.write(b);
+				}
+
+				out.write('\n');
+			}
 		}
-		catch(IOException ioe)
+		finally
 		{
-			ij.IJ.handleException(ioe);
+			in.close();
+			out.close();
 		}
+	}
 
-		endView(view);
-
-		IJ.log("Bead processor: Processed " + n + " beads; remaining: " + kept);
+	@Override
+	protected File[] getInputs(File view)
+	{
+		return new File[] { view, new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".beads.txt") };
 	}
 
 	@Override
@@ -88,6 +214,15 @@ public abstract class BeadProcessor extends ViewProcessor {
 	}
 
 	public abstract void beginView(Params par, File view);
+
+	/**
+	 * @return whether to keep the bead
+	 */
 	public abstract boolean processBead(File view, Vector3D at);
-	public abstract void endView(File view);
+
+	/**
+	 * @return false if the view couldn't be finished (e.g. changes to it
+	 *         couldn't be written); it then isn't counted as processed
+	 */
+	public abstract boolean endView(File view);
 }
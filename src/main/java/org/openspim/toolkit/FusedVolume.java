@@ -0,0 +1,388 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openspim.toolkit.io.ChunkedVolume;
+import org.openspim.toolkit.io.MappedTiff;
+
+/**
+ * One timepoint's fused output, as fusion left it: a directory of 2D slices,
+ * or a {@link ChunkedVolume chunked volume}. Planes are read one at a time,
+ * in z order, so the volume never has to fit in memory.
+ *
+ * @author LOCI
+ *
+ */
+public abstract class FusedVolume
+{
+	private static final Pattern TIMEPOINT = Pattern.compile("tl([0-9]+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern LAST_NUMBER = Pattern.compile("([0-9]+)[^0-9]*$");
+
+	/**
+	 * One plane, either decoded, or (if its file stores it uncompressed, in
+	 * the volume's byte order) just located, to be copied byte for byte.
+	 */
+	public static class Plane
+	{
+		public ImageProcessor ip;
+		public File raw;
+		public long rawOffset;
+	}
+
+	protected String name;
+	protected int width, height, bitDepth, depth;
+	protected ByteOrder order = ByteOrder.LITTLE_ENDIAN; // Of the source files, if they have one.
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	public ByteOrder getByteOrder()
+	{
+		return order;
+	}
+
+	/**
+	 * Reads a plane; planes should be asked for in order.
+	 */
+	public abstract Plane read(int z) throws IOException;
+
+	/**
+	 * Reads and decodes a plane.
+	 */
+	public ImageProcessor readProcessor(int z) throws IOException
+	{
+		return decode(read(z));
+	}
+
+	/**
+	 * @return the plane's pixels, decoding them from its file if it was only
+	 *         located
+	 */
+	public static ImageProcessor decode(Plane plane) throws IOException
+	{
+		if(plane.ip != null)
+			return plane.ip;
+
+		ImagePlus imp = IJ.openImage(plane.raw.getAbsolutePath());
+		if(imp == null)
+			throw new IOException("Couldn't open " + plane.raw.getName());
+
+		ImageProcessor ip = imp.getProcessor();
+		imp.close();
+		return ip;
+	}
+
+	/**
+	 * A volume made of 2D slice files, in the given order.
+	 */
+	public static FusedVolume ofSlices(String name, File[] files) throws IOException
+	{
+		return new SliceFiles(name, files);
+	}
+
+	public static FusedVolume ofChunked(ChunkedVolume volume)
+	{
+		return new Chunked(volume);
+	}
+
+	/**
+	 * Several volumes stacked one after the other in z, in the given order;
+	 * e.g. every timepoint's output, to be collected into one stack.
+	 *
+	 * @throws IOException if the volumes' planes aren't all the same size and type
+	 */
+	public static FusedVolume concat(String name, List<FusedVolume> parts) throws IOException
+	{
+		return new Concatenated(name, parts);
+	}
+
+	/**
+	 * Finds every timepoint's fused output in an output directory: its
+	 * slices, or, for timepoints with none, its chunked volume.
+	 *
+	 * @return the volumes by timepoint (-1 if the names don't say)
+	 */
+	public static Map<Integer, FusedVolume> find(File outputDir, SpimDataSpecifier spec) throws IOException
+	{
+		Map<Integer, FusedVolume> volumes = new TreeMap<Integer, FusedVolume>();
+
+		for(Map.Entry<Integer, List<File>> entry : slicesByTimepoint(outputDir, spec).entrySet())
+		{
+			String name = entry.getKey() >= 0 ? "fused_tl" + entry.getKey() : "fused";
+			volumes.put(entry.getKey(), ofSlices(name, entry.getValue().toArray(new File[0])));
+		}
+
+		File[] chunked = outputDir.listFiles(n5Filter);
+
+		if(chunked != null)
+		{
+			Arrays.sort(chunked);
+
+			for(File root : chunked)
+			{
+				Matcher m = TIMEPOINT.matcher(root.getName());
+				int timepoint = m.find() ? Integer.parseInt(m.group(1)) : -1;
+
+				if(!volumes.containsKey(timepoint))
+					volumes.put(timepoint, ofChunked(ChunkedVolume.open(root)));
+			}
+		}
+
+		return volumes;
+	}
+
+	/**
+	 * The output directory's fused slices, by timepoint (-1 if the names
+	 * don't say), each in z order.
+	 */
+	public static Map<Integer, List<File>> slicesByTimepoint(File outputDir, SpimDataSpecifier spec)
+	{
+		File[] files = outputDir.listFiles(tifFilter);
+		Map<Integer, List<File>> slices = new TreeMap<Integer, List<File>>();
+
+		if(files == null)
+			return slices;
+
+		Arrays.sort(files);
+
+		for(File f : files)
+		{
+			Matcher m = TIMEPOINT.matcher(f.getName());
+			int timepoint = m.find() ? Integer.parseInt(m.group(1)) : spec.getTimepoints().count() == 1 ? spec.getTimepoints().get(0) : -1;
+
+			if(!slices.containsKey(timepoint))
+				slices.put(timepoint, new ArrayList<File>());
+
+			slices.get(timepoint).add(f);
+		}
+
+		for(List<File> list : slices.values())
+		{
+			Collections.sort(list, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					return Long.valueOf(sliceIndex(a)).compareTo(sliceIndex(b));
+				}
+			});
+		}
+
+		return slices;
+	}
+
+	private static long sliceIndex(File slice)
+	{
+		Matcher m = LAST_NUMBER.matcher(slice.getName());
+		return m.find() ? Long.parseLong(m.group(1)) : 0;
+	}
+
+	/**
+	 * @return where the chunked volume for a timepoint goes (-1 if unknown)
+	 */
+	public static File chunkedVolumeFor(File outputDir, int timepoint)
+	{
+		return new File(outputDir, timepoint >= 0 ? "fused_tl" + timepoint + ".n5" : "fused.n5");
+	}
+
+	public static final FilenameFilter tifFilter = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return !name.startsWith(".") && (name.endsWith(".tif") || name.endsWith(".tiff"));
+		}
+	};
+
+	public static final FilenameFilter n5Filter = new FilenameFilter() {
+		@Override
+		public boolean accept(File dir, String name) {
+			return name.endsWith(".n5") && new File(dir, name).isDirectory();
+		}
+	};
+
+	private static class SliceFiles extends FusedVolume
+	{
+		private File[] files;
+
+		SliceFiles(String name, File[] files) throws IOException
+		{
+			this.name = name;
+			this.files = files;
+			this.depth = files.length;
+
+			ImagePlus first = IJ.openImage(files[0].getAbsolutePath());
+			if(first == null)
+				throw new IOException("Couldn't open " + files[0].getName());
+
+			width = first.getWidth();
+			height = first.getHeight();
+			bitDepth = first.getBitDepth();
+			first.close();
+
+			// Writing in the slices' own byte order lets them be copied rather than decoded.
+			MappedTiff tiff = MappedTiff.openIfSupported(files[0], false);
+			if(tiff != null)
+			{
+				order = tiff.getByteOrder();
+				tiff.close();
+			}
+		}
+
+		@Override
+		public Plane read(int z) throws IOException
+		{
+			Plane plane = new Plane();
+			MappedTiff tiff = MappedTiff.openIfSupported(files[z], false);
+
+			if(tiff != null)
+			{
+				try {
+					if(tiff.getDepth() == 1 && tiff.getWidth() == width && tiff.getHeight() == height &&
+							tiff.getBitsPerSample() == bitDepth && tiff.isFloatingPoint() == (bitDepth == 32) &&
+							(bitDepth == 8 || tiff.getByteOrder() == order))
+					{
+						plane.raw = files[z];
+						plane.rawOffset = tiff.getPlaneOffset(0);
+						return plane;
+					}
+				} finally {
+					tiff.close();
+				}
+			}
+
+			ImagePlus imp = IJ.openImage(files[z].getAbsolutePath());
+			if(imp == null)
+				throw new IOException("Couldn't open " + files[z].getName());
+
+			if(imp.getWidth() != width || imp.getHeight() != height || imp.getBitDepth() != bitDepth)
+				throw new IOException(files[z].getName() + " doesn't match the other slices");
+
+			plane.ip = imp.getProcessor();
+			imp.close();
+			return plane;
+		}
+	}
+
+	private static class Concatenated extends FusedVolume
+	{
+		private FusedVolume[] parts;
+		private int[] starts;
+
+		Concatenated(String name, List<FusedVolume> parts) throws IOException
+		{
+			this.name = name;
+			this.parts = parts.toArray(new FusedVolume[0]);
+			this.starts = new int[this.parts.length];
+
+			FusedVolume first = this.parts[0];
+			width = first.getWidth();
+			height = first.getHeight();
+			bitDepth = first.getBitDepth();
+			order = first.getByteOrder();
+
+			for(int i = 0; i < this.parts.length; ++i)
+			{
+				FusedVolume part = this.parts[i];
+
+				if(part.getWidth() != width || part.getHeight() != height || part.getBitDepth() != bitDepth)
+					throw new IOException(part.getName() + " (" + part.getWidth() + "x" + part.getHeight() + ", " + part.getBitDepth() +
+						"-bit) doesn't match " + first.getName() + " (" + width + "x" + height + ", " + bitDepth + "-bit)");
+
+				starts[i] = depth;
+				depth += part.getDepth();
+			}
+		}
+
+		@Override
+		public Plane read(int z) throws IOException
+		{
+			int i = parts.length - 1;
+			while(starts[i] > z)
+				--i;
+
+			Plane plane = parts[i].read(z - starts[i]);
+
+			// Raw planes can only be copied in the byte order being written.
+			if(plane.raw != null && bitDepth != 8 && parts[i].getByteOrder() != order)
+			{
+				plane.ip = decode(plane);
+				plane.raw = null;
+			}
+
+			return plane;
+		}
+	}
+
+	private static class Chunked extends FusedVolume
+	{
+		private ChunkedVolume volume;
+		private ImageStack slab;
+		private int slabStart = -1;
+
+		Chunked(ChunkedVolume volume)
+		{
+			this.volume = volume;
+			this.name = volume.getRoot().getName().replaceFirst("\\.n5$", "");
+
+			int[] dims = volume.getDimensions();
+			width = dims[0];
+			height = dims[1];
+			depth = dims[2];
+			bitDepth = volume.getBitDepth();
+		}
+
+		// Reads a slab of whole blocks at a time; planes are asked for in order.
+		@Override
+		public Plane read(int z) throws IOException
+		{
+			int blockDepth = volume.getBlockSize()[2];
+			int start = z - z % blockDepth;
+
+			if(start != slabStart)
+			{
+				slab = volume.read(0, 0, start, width, height, Math.min(blockDepth, depth - start));
+				slabStart = start;
+			}
+
+			Plane plane = new Plane();
+			plane.ip = slab.getProcessor(z - start + 1);
+			return plane;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes views as they are written by the microscope, rather than after
+ * the whole acquisition. The data directory is watched for files matching
+ * the pattern; once a file's size has stopped changing for a while, it is
+ * taken through the per-view processors, and once every angle of a timepoint
+ * has been through them, the remaining (whole-timepoint) stages are run for
+ * that timepoint. Watching ends when every timepoint in the specifier has
+ * been processed, or when the thread is interrupted.
+ * <p>
+ * Watch events can be lost (the watch service reports an overflow, or misses
+ * files on some network file systems), so the directory is also listed again
+ * after an overflow and every so often regardless. Settled views wait for
+ * room in the memory budget without holding up the watching.
+ * <p>
+ * Only patterns without subdirectories can be watched.
+ *
+ * @author LOCI
+ *
+ */
+public class LiveWatcher
+{
+	private static final long POLL_MS = 500;
+	private static final long STABLE_MS = 2000;
+	private static final long RESCAN_MS = 10000;
+
+	public static interface TimepointHandler
+	{
+		/**
+		 * Runs the remaining stages for one timepoint.
+		 *
+		 * @param params parameters whose spec covers just that timepoint
+		 */
+		public abstract void timepointReady(Processor.Params params) throws InterruptedException, ExecutionException;
+	}
+
+	private static class Pending
+	{
+		long size = -1;
+		long since;
+	}
+
+	private final Processor.Params params;
+	private final Pipeline.Chain perView;
+	private final TimepointHandler handler;
+
+	private final Map<Integer, Pending> pending = new HashMap<Integer, Pending>();
+	private final Set<Integer> started = new HashSet<Integer>();
+	private final Map<Integer, Long> admitting = new LinkedHashMap<Integer, Long>(); // Settled views' estimated footprints, in arrival order.
+	private final Map<Integer, Integer> arrived = new HashMap<Integer, Integer>();
+	private final Map<Future<?>, String> running = new HashMap<Future<?>, String>();
+	private int timepointsLeft;
+	private ExecutorService barrier;
+
+	/**
+	 * @param perView the view processors to run on each view as it arrives, or null
+	 * @param handler runs the rest of the pipeline per timepoint
+	 */
+	public LiveWatcher(Processor.Params params, Pipeline.Chain perView, TimepointHandler handler)
+	{
+		this.params = params;
+		this.perView = perView;
+		this.handler = handler;
+	}
+
+	public void run() throws InterruptedException, ExecutionException
+	{
+		SpimDataSpecifier spec = params.spec;
+
+		if(spec.getPattern().indexOf('/') >= 0 || spec.getPattern().indexOf(File.separatorChar) >= 0)
+			throw new ExecutionException(new IllegalArgumentException("Live mode can't watch patterns with subdirectories: " + spec.getPattern()));
+
+		timepointsLeft = spec.getTimepoints().count();
+
+		if(perView != null)
+			perView.prepare(params);
+
+		// Whole-timepoint stages run one timepoint at a time, on their own
+		// thread, as they submit their own work to the shared executor.
+		barrier = Executors.newSingleThreadExecutor();
+		WatchService watcher;
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			spec.getDirectory().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch(IOException ioe) {
+			throw new ExecutionException("Couldn't watch " + spec.getDirectory().getPath(), ioe);
+		}
+
+		IJ.log("~~~~~~~~~~~~~~~~ WATCHING " + spec.getDirectory().getPath() + " ~~~~~~~~~~~~~~~~\n");
+
+		try {
+			// Anything that arrived before we started watching.
+			rescan();
+			long lastScan = System.currentTimeMillis();
+
+			while(timepointsLeft > 0 || !running.isEmpty())
+			{
+				WatchKey key = watcher.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				boolean lost = false;
+
+				if(key != null)
+				{
+					for(WatchEvent<?> event : key.pollEvents())
+					{
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+							lost = true;
+						else if(event.context() instanceof Path)
+							noticed(event.context().toString());
+					}
+
+					key.reset();
+				}
+
+				if(lost || System.currentTimeMillis() - lastScan > RESCAN_MS)
+				{
+					rescan();
+					lastScan = System.currentTimeMillis();
+				}
+
+				startStableViews();
+				admit();
+				reap();
+			}
+		} finally {
+			barrier.shutdownNow();
+
+			try {
+				watcher.close();
+			} catch(IOException ioe) {
+				// Nothing more to do.
+			}
+		}
+	}
+
+	private void rescan()
+	{
+		String[] names = params.spec.getDirectory().list();
+
+		if(names != null)
+			for(String name : names)
+				noticed(name);
+	}
+
+	private void noticed(String name)
+	{
+		int index = params.spec.indexOf(name);
+
+		if(index < 0 || started.contains(index))
+			return;
+
+		if(!pending.containsKey(index))
+			pending.put(index, new Pending());
+	}
+
+	/**
+	 * Starts the per-view processors on every pending view whose size has
+	 * settled (or queues it, until there's room for it in memory).
+	 */
+	private void startStableViews()
+	{
+		long now = System.currentTimeMillis();
+		ViewSet views = params.spec.getViews();
+
+		for(Iterator<Map.Entry<Integer, Pending>> it = pending.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<Integer, Pending> entry = it.next();
+			Pending p = entry.getValue();
+			long size = views.get(entry.getKey()).length();
+
+			if(size != p.size)
+			{
+				p.size = size;
+				p.since = now;
+				continue;
+			}
+
+			if(size <= 0 || now - p.since < STABLE_MS)
+				continue;
+
+			it.remove();
+			started.add(entry.getKey());
+			startView(entry.getKey());
+		}
+	}
+
+	private void startView(int index)
+	{
+		File view = params.spec.getViews().get(index);
+		IJ.log("Live: " + view.getName() + " arrived.");
+
+		if(perView == null)
+		{
+			arrivedAt(params.spec.getViews().getTimepoint(index));
+			return;
+		}
+
+		double multiplier = 0;
+		for(ViewProcessor proc : perView.getProcessors())
+			multiplier = Math.max(multiplier, proc.getMemoryMultiplier());
+
+		admitting.put(index, params.memory != null ? (long) (MemoryBudget.estimateViewBytes(view) * multiplier) : 0);
+	}
+
+	/**
+	 * Submits queued views, in the order they settled, for as long as they
+	 * fit in the memory budget; the rest wait for the next poll.
+	 */
+	private void admit()
+	{
+		for(Iterator<Map.Entry<Integer, Long>> it = admitting.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<Integer, Long> entry = it.next();
+			long reserved = params.memory != null ? params.memory.tryAcquire(entry.getValue()) : 0;
+
+			if(reserved < 0)
+				break;
+
+			it.remove();
+			submitView(entry.getKey(), reserved);
+		}
+	}
+
+	private void submitView(final int index, final long reserved)
+	{
+		final File view = params.spec.getViews().get(index);
+
+		Future<Integer> f = params.invokeOn.submit(new Callable<Integer>() {
+			@Override
+			public Integer call()
+			{
+				try {
+					perView.runView(params, view);
+				} finally {
+					if(params.memory != null)
+						params.memory.release(reserved);
+				}
+
+				return params.spec.getViews().getTimepoint(index);
+			}
+		});
+
+		running.put(f, view.getName());
+	}
+
+	private void arrivedAt(int timepoint)
+	{
+		Integer count = arrived.get(timepoint);
+		count = count != null ? count + 1 : 1;
+
+		if(count < params.spec.getAngles().count())
+		{
+			arrived.put(timepoint, count);
+			return;
+		}
+
+		arrived.remove(timepoint);
+		--timepointsLeft;
+
+		final int t = timepoint;
+		running.put(barrier.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception
+			{
+				IJ.log("~~~~~~~~~~~~~~~~ LIVE: TIMEPOINT " + t + " COMPLETE ~~~~~~~~~~~~~~~~\n");
+				handler.timepointReady(params.forSpec(params.spec.forTimepoint(t)));
+				return null;
+			}
+		}), "timepoint " + timepoint);
+	}
+
+	/**
+	 * Collects finished work, moving views that made it through the per-view
+	 * processors on to their timepoint's barrier, and rethrowing any failure.
+	 */
+	private void reap() throws InterruptedException, ExecutionException
+	{
+		List<Integer> through = new ArrayList<Integer>();
+
+		for(Iterator<Map.Entry<Future<?>, String>> it = running.entrySet().iterator(); it.hasNext(); )
+		{
+			Map.Entry<Future<?>, String> entry = it.next();
+
+			if(!entry.getKey().isDone())
+				continue;
+
+			it.remove();
+
+			Object timepoint;
+			try {
+				timepoint = entry.getKey().get();
+			} catch(ExecutionException ee) {
+				throw new ExecutionException("Live processing of " + entry.getValue() + " failed", ee.getCause());
+			}
+
+			if(timepoint instanceof Integer)
+				through.add((Integer) timepoint);
+		}
+
+		for(int timepoint : through)
+			arrivedAt(timepoint);
+	}
+}
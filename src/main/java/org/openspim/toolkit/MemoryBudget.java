@@ -0,0 +1,112 @@
+package org.openspim.toolkit;
+
+import ij.io.FileInfo;
+import ij.io.Opener;
+
+import java.io.File;
+
+/**
+ * Admission control for work that holds whole views in memory. Callers
+ * acquire their estimated footprint before starting and release it when
+ * done; acquisition blocks while the total would exceed the budget. A single
+ * request larger than the whole budget is still admitted once nothing else
+ * is running, so oversized views are processed one at a time rather than
+ * never.
+ *
+ * @author LOCI
+ *
+ */
+public class MemoryBudget
+{
+	private final long budget;
+	private long used;
+
+	public MemoryBudget(long budget)
+	{
+		this.budget = budget;
+		this.used = 0;
+	}
+
+	/**
+	 * Creates a budget for the given share (0-1) of the maximum heap size.
+	 */
+	public static MemoryBudget ofHeapShare(double share)
+	{
+		return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * share));
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * Blocks until the given number of bytes fits in the budget.
+	 *
+	 * @return the number of bytes actually reserved, to be passed to {@link #release(long)}
+	 */
+	public synchronized long acquire(long bytes) throws InterruptedException
+	{
+		bytes = Math.max(0, Math.min(bytes, budget));
+
+		while(used > 0 && used + bytes > budget)
+			wait();
+
+		used += bytes;
+		return bytes;
+	}
+
+	/**
+	 * Reserves the given number of bytes if they fit in the budget now (on
+	 * the same terms as {@link #acquire(long)}), without waiting.
+	 *
+	 * @return the number of bytes reserved, or -1 if they don't fit yet
+	 */
+	public synchronized long tryAcquire(long bytes)
+	{
+		bytes = Math.max(0, Math.min(bytes, budget));
+
+		if(used > 0 && used + bytes > budget)
+			return -1;
+
+		used += bytes;
+		return bytes;
+	}
+
+	public synchronized void release(long bytes)
+	{
+		used -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Estimates the decoded size of a view from its TIFF header(s), without
+	 * reading any pixels. Falls back to the file size if the header can't be
+	 * read.
+	 */
+	public static long estimateViewBytes(File view)
+	{
+		try {
+			FileInfo[] infos = Opener.getTiffFileInfo(view.getAbsolutePath());
+
+			if(infos == null || infos.length == 0)
+				return view.length();
+
+			if(infos.length == 1)
+				return (long) infos[0].width * infos[0].height * infos[0].getBytesPerPixel() * Math.max(infos[0].nImages, 1);
+
+			long total = 0;
+			for(FileInfo fi : infos)
+				total += (long) fi.width * fi.height * fi.getBytesPerPixel();
+
+			return total;
+		} catch(Exception e) {
+			return view.length();
+		}
+	}
+}
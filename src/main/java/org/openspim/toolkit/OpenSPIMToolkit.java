@@ -8,12 +8,10 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -24,6 +22,7 @@ import javax.swing.SpinnerNumberModel;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.io.BeadStore;
 
 import ij.IJ;
 import ij.Macro;
@@ -230,6 +229,19 @@ public class OpenSPIMToolkit implements PlugIn {
 				RegField.TIMEPOINTS.getStringValue(), RegField.ANGLES.getStringValue());
 	}
 
+	public static Processor.Params getLastParams() {
+		Processor.Params params = new Processor.Params();
+
+		params.spec = getLastSpecifier();
+		params.beadRadius1 = RegField.RADIUS1.getDoubleValue();
+		params.beadRadius2 = RegField.RADIUS2.getDoubleValue();
+		params.threshold = RegField.THRESHOLD.getDoubleValue();
+		params.xyUmPerPix = RegField.PIXEL_SIZE_XY.getDoubleValue();
+		params.zUmPerPix = RegField.PIXEL_SIZE_Z.getDoubleValue();
+
+		return params;
+	}
+
 	public static void createManualRegFields(GenericDialog gd) {
 		gd.addNumericField("Radius1", RegField.RADIUS1.getIntValue(), 0, 4, "px");
 		gd.addNumericField("Radius2", RegField.RADIUS2.getIntValue(), 0, 4, "px");
@@ -275,31 +287,12 @@ public class OpenSPIMToolkit implements PlugIn {
 		if (!beads.exists())
 			return null;
 
-		List<String> lines;
-
+		// Mapped from the binary sidecar, unless the text is newer.
 		try {
-			lines = readAllLines(beads);
+			return BeadStore.open(beads).toVectors();
 		} catch (IOException e) {
 			return null;
 		}
-
-		Iterator<String> iter = lines.iterator();
-		iter.next();
-
-		List<Vector3D> beadList = new LinkedList<Vector3D>();
-
-		while (iter.hasNext()) {
-			Scanner line = new Scanner(iter.next());
-
-			/* int beadId = */line.nextInt();
-			/* int viewId = */line.nextInt();
-			beadList.add(new Vector3D(line.nextDouble(), line.nextDouble(), line.nextDouble()));
-			// and we don't care about the rest of the line.
-			
-			line.close();
-		}
-
-		return beadList;
 	}
 
 	public static File getRegistrationDirectory(File viewpath) {
@@ -0,0 +1,460 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.openspim.toolkit.archipelago.Archipelago;
+
+/**
+ * An ordered selection of processors for each stage of processing. This is
+ * what the Fusion Pipeline dialog builds, and what a {@link PipelinePlan}
+ * describes, so both the interactive and the batch entry points run exactly
+ * the same stage sequence.
+ *
+ * @author LOCI
+ *
+ */
+public class Pipeline
+{
+	private Map<Processor.Stage, List<Processor>> stages = new EnumMap<Processor.Stage, List<Processor>>(Processor.Stage.class);
+	private boolean pipelined = false;
+	private boolean autoTune = false;
+	private Map<Processor.Stage, Integer> concurrency = new EnumMap<Processor.Stage, Integer>(Processor.Stage.class);
+	private Archipelago archipelago = null;
+	private boolean live = false;
+
+	public Pipeline()
+	{
+		for(Processor.Stage stage : Processor.Stage.values())
+			stages.put(stage, new LinkedList<Processor>());
+	}
+
+	public void add(Processor.Stage stage, Processor proc)
+	{
+		if(proc != null)
+			stages.get(stage).add(proc);
+	}
+
+	public List<Processor> get(Processor.Stage stage)
+	{
+		return stages.get(stage);
+	}
+
+	public boolean isPipelined()
+	{
+		return pipelined;
+	}
+
+	/**
+	 * In pipelined mode, consecutive view processors (across stages) are run
+	 * as one chain per view, so different views can be in different stages
+	 * at once. Processors that are not view processors, or that say they
+	 * {@link ViewProcessor#requiresAllViews() require all views}, still wait
+	 * for every view to get through the chain before them.
+	 */
+	public void setPipelined(boolean pipelined)
+	{
+		this.pipelined = pipelined;
+	}
+
+	public boolean isAutoTune()
+	{
+		return autoTune;
+	}
+
+	/**
+	 * If set, the pool size is chosen per stage by the {@link AutoTuner}
+	 * instead of staying at whatever the executor was created with.
+	 */
+	public void setAutoTune(boolean autoTune)
+	{
+		this.autoTune = autoTune;
+	}
+
+	public Archipelago getArchipelago()
+	{
+		return archipelago;
+	}
+
+	/**
+	 * If set, the view chains of the pipeline are farmed out to the
+	 * archipelago's worker processes instead of the local executor. This
+	 * implies pipelined execution.
+	 */
+	public void setArchipelago(Archipelago archipelago)
+	{
+		this.archipelago = archipelago;
+	}
+
+	public boolean isLive()
+	{
+		return live;
+	}
+
+	/**
+	 * In live mode, the run watches the data directory and processes views as
+	 * they are written (see {@link LiveWatcher}): the leading view processors
+	 * run on each view as it lands, and the rest of the pipeline runs for
+	 * each timepoint once all its angles are through them.
+	 */
+	public void setLive(boolean live)
+	{
+		this.live = live;
+	}
+
+	public void run(Processor.Params params) throws InterruptedException, ExecutionException
+	{
+		if(params.timings == null)
+			params.timings = StageTimings.forSpec(params.spec);
+
+		if(params.report == null)
+			params.report = new RunReport();
+
+		concurrency.clear();
+		if(autoTune)
+			concurrency.putAll(AutoTuner.plan(this, params));
+
+		if(params.views != null)
+		{
+			params.views.setWriteBehind(params.writes);
+			params.views.setIoLimiter(params.io);
+		}
+
+		if(params.writes != null)
+			params.writes.setIoLimiter(params.io);
+
+		IOException unwritten = null;
+
+		try {
+			if(archipelago != null && !live)
+				archipelago.start();
+
+			if(live)
+				runLive(params);
+			else if(pipelined || archipelago != null)
+				runPipelined(params);
+			else
+				runStaged(params);
+
+			params.timings.save();
+		} finally {
+			if(archipelago != null && !live)
+				archipelago.shutdown();
+
+			if(params.views != null)
+			{
+				try {
+					params.views.close();
+				} catch(IOException ioe) {
+					unwritten = ioe;
+				}
+			}
+
+			if(params.writes != null)
+				params.writes.close();
+
+			writeReport(params);
+		}
+
+		if(unwritten != null)
+			throw new ExecutionException("Changed views couldn't be written back", unwritten);
+
+		IJ.log("~~~~~~~~~~~~~~~~ DONE! :D ~~~~~~~~~~~~~~~~\n");
+	}
+
+	private void runStaged(Processor.Params params) throws InterruptedException, ExecutionException
+	{
+		for(Processor.Stage stage : Processor.Stage.values())
+		{
+			IJ.log("~~~~~~~~~~~~~~~~ BEGIN " + stage.getTitle() + " STAGE ~~~~~~~~~~~~~~~~\n");
+
+			params.stage = stage;
+			setPoolSize(params, concurrency.get(stage));
+
+			for(Processor proc : stages.get(stage))
+				runProcessor(params, proc);
+
+			awaitWrites(params);
+		}
+	}
+
+	/**
+	 * Waits for every view written in the background so far, failing if any
+	 * of them couldn't be.
+	 */
+	private static void awaitWrites(Processor.Params params) throws InterruptedException, ExecutionException
+	{
+		if(params.writes != null)
+			params.writes.barrier();
+	}
+
+	/**
+	 * Writes every changed view in the cache back to disk, failing if any of
+	 * them couldn't be.
+	 */
+	private static void flushViews(Processor.Params params) throws ExecutionException
+	{
+		if(params.views == null)
+			return;
+
+		try {
+			params.views.flush();
+		} catch(IOException ioe) {
+			throw new ExecutionException("Changed views couldn't be written back", ioe);
+		}
+	}
+
+	private static void runProcessor(Processor.Params params, Processor proc) throws InterruptedException, ExecutionException
+	{
+		// View processors time and report themselves, view by view.
+		if(proc instanceof ViewProcessor)
+		{
+			proc.performProcessing(params);
+			return;
+		}
+
+		// Anything else reads the views from disk.
+		flushViews(params);
+		awaitWrites(params);
+
+		long bytes = datasetBytes(params.spec);
+		RunReport.Measurement measurement = params.report.begin(params.stage, proc, null, 0);
+		long start = System.nanoTime();
+
+		try {
+			proc.performProcessing(params);
+		} finally {
+			measurement.setBytes(bytes, -1);
+			measurement.end();
+		}
+
+		params.timings.record(proc, (System.nanoTime() - start) / 1e9, bytes);
+	}
+
+	private static void writeReport(Processor.Params params)
+	{
+		File to = RunReport.defaultFile(params.spec);
+
+		try {
+			params.report.write(to);
+			IJ.log("Run report written to " + to.getPath());
+		} catch(IOException ioe) {
+			IJ.log("Couldn't write run report to " + to.getPath() + ": " + ioe.getMessage());
+		}
+	}
+
+	private static long datasetBytes(SpimDataSpecifier spec)
+	{
+		long total = 0;
+
+		for(File view : spec)
+			total += view.length();
+
+		return total;
+	}
+
+	private static void setPoolSize(Processor.Params params, Integer threads)
+	{
+		if(threads == null || !(params.invokeOn instanceof ThreadPoolExecutor))
+			return;
+
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) params.invokeOn;
+
+		if(threads > pool.getMaximumPoolSize())
+		{
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		}
+		else
+		{
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * A run of consecutive view processors (possibly from several stages)
+	 * that can take each view through all of them in one go.
+	 */
+	public static class Chain
+	{
+		private List<ViewProcessor> processors = new ArrayList<ViewProcessor>();
+		private List<Processor.Stage> stages = new ArrayList<Processor.Stage>();
+
+		public List<ViewProcessor> getProcessors()
+		{
+			return processors;
+		}
+
+		public List<Processor.Stage> getStages()
+		{
+			return stages;
+		}
+
+		public List<Processor.Params> paramsFor(Processor.Params params)
+		{
+			List<Processor.Params> ret = new ArrayList<Processor.Params>(stages.size());
+
+			for(Processor.Stage stage : stages)
+				ret.add(params.forStage(stage));
+
+			return ret;
+		}
+
+		/**
+		 * Reads the chain's processors' settings for the coming run; see
+		 * {@link ViewProcessor#prepare(Processor.Params)}.
+		 */
+		public void prepare(Processor.Params params)
+		{
+			for(int i = 0; i < processors.size(); ++i)
+				processors.get(i).prepare(params.forStage(stages.get(i)));
+		}
+
+		/**
+		 * Takes a single view through the whole chain on the calling thread.
+		 */
+		public void runView(Processor.Params params, File view)
+		{
+			for(int i = 0; i < processors.size(); ++i)
+				processors.get(i).runView(params.forStage(stages.get(i)), view);
+		}
+	}
+
+	/**
+	 * One step of a pipelined run: either a {@link Chain} or a single
+	 * processor that needs all views (with the stage it runs in).
+	 */
+	private static class Step
+	{
+		Chain chain;
+		Processor.Stage stage;
+		Processor proc;
+	}
+
+	private List<Step> steps()
+	{
+		List<Step> steps = new ArrayList<Step>();
+		Chain chain = null;
+
+		for(Processor.Stage stage : Processor.Stage.values())
+		{
+			for(Processor proc : stages.get(stage))
+			{
+				if(proc instanceof ViewProcessor && !((ViewProcessor) proc).requiresAllViews())
+				{
+					if(chain == null)
+					{
+						Step step = new Step();
+						step.chain = chain = new Chain();
+						steps.add(step);
+					}
+
+					chain.processors.add((ViewProcessor) proc);
+					chain.stages.add(stage);
+				}
+				else
+				{
+					Step step = new Step();
+					step.stage = stage;
+					step.proc = proc;
+					steps.add(step);
+					chain = null;
+				}
+			}
+		}
+
+		return steps;
+	}
+
+	/**
+	 * The chains of a pipelined run, in order.
+	 */
+	public List<Chain> getChains()
+	{
+		List<Chain> chains = new ArrayList<Chain>();
+
+		for(Step step : steps())
+			if(step.chain != null)
+				chains.add(step.chain);
+
+		return chains;
+	}
+
+	private void runPipelined(Processor.Params params) throws InterruptedException, ExecutionException
+	{
+		runSteps(params, steps(), archipelago);
+	}
+
+	private void runLive(Processor.Params params) throws InterruptedException, ExecutionException
+	{
+		final List<Step> steps = steps();
+		Chain perView = !steps.isEmpty() && steps.get(0).chain != null ? steps.remove(0).chain : null;
+
+		new LiveWatcher(params, perView, new LiveWatcher.TimepointHandler() {
+			@Override
+			public void timepointReady(Processor.Params params) throws InterruptedException, ExecutionException
+			{
+				runSteps(params, steps, null);
+			}
+		}).run();
+	}
+
+	private void runSteps(Processor.Params params, List<Step> steps, Archipelago archipelago) throws InterruptedException, ExecutionException
+	{
+		int chainIndex = 0;
+
+		for(Step step : steps)
+		{
+			if(step.chain != null)
+			{
+				runChain(params, step.chain, chainIndex++, archipelago);
+				continue;
+			}
+
+			IJ.log("~~~~~~~~~~~~~~~~ BEGIN " + step.stage.getTitle() + " STAGE ~~~~~~~~~~~~~~~~\n");
+
+			params.stage = step.stage;
+			setPoolSize(params, concurrency.get(step.stage));
+			runProcessor(params, step.proc);
+		}
+	}
+
+	private void runChain(Processor.Params params, Chain chain, int chainIndex, Archipelago archipelago) throws InterruptedException, ExecutionException
+	{
+		Set<String> titles = new LinkedHashSet<String>();
+		for(Processor.Stage stage : chain.stages)
+			titles.add(stage.getTitle());
+
+		IJ.log("~~~~~~~~~~~~~~~~ BEGIN PIPELINED " + titles + " STAGES ~~~~~~~~~~~~~~~~\n");
+
+		if(archipelago != null)
+		{
+			flushViews(params);
+			awaitWrites(params);
+			archipelago.runChain(chainIndex, params.spec);
+			return;
+		}
+
+		Integer threads = null;
+		for(Processor.Stage stage : chain.stages)
+			if(concurrency.containsKey(stage))
+				threads = Math.min(threads != null ? threads : Integer.MAX_VALUE, concurrency.get(stage));
+
+		setPoolSize(params, threads);
+
+		ViewProcessor.performPipelined(params, chain.processors, chain.paramsFor(params));
+		awaitWrites(params);
+	}
+}
@@ -0,0 +1,330 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.archipelago.Archipelago;
+import org.openspim.toolkit.io.IoLimiter;
+import org.openspim.toolkit.OpenSPIMToolkit.RegField;
+
+/**
+ * A declarative description of a pipeline run, stored as a properties file.
+ * A plan names the processors for each {@link Processor.Stage}, their
+ * settings, the data specifier and registration fields, and the thread
+ * count, e.g.:
+ *
+ * <pre>
+ * threads=8 (or auto)
+ * pipelined=true
+ * incremental=true
+ * live=false
+ * heap_share=0.75
+ * io_permits=4
+ * io_permits./mnt/nfs=1
+ * in_place=false
+ * archipelago=true
+ * archipelago.workers=4
+ * archipelago.port=0
+ * archipelago.remote=false
+ * archipelago.token=(generated, unless given)
+ * spim_data_directory=/data/embryo
+ * pattern_of_spim=spim_TL{tt}_Angle{a}.tiff
+ * timepoints_to_process=1-50
+ * angles_to_process=0-5:1
+ * stage.preprocess=OmeMetadataStripper
+ * stage.segmentation=DefaultSPIMRegistration
+ * stage.registration=DefaultSPIMRegistration
+ * stage.fusion=DefaultSPIMFusion
+ * OmeMetadataStripper.backup_originals=true
+ * DefaultSPIMFusion.downsample_factor=2
+ * </pre>
+ *
+ * Registration field keys are the {@link RegField} macro names; processor
+ * settings are keyed by the processor's simple class name followed by the
+ * {@link LayoutUtils#formKey(String)} of the label in its control panel.
+ *
+ * @author LOCI
+ *
+ */
+public class PipelinePlan
+{
+	public static final String THREADS = "threads";
+	public static final String PIPELINED = "pipelined";
+	public static final String INCREMENTAL = "incremental";
+	public static final String LIVE = "live";
+	public static final String HEAP_SHARE = "heap_share";
+	public static final String VIEW_CACHE_SHARE = "view_cache_share";
+	public static final String WRITE_BEHIND_SHARE = "write_behind_share";
+	public static final String IO_PERMITS = "io_permits"; // Followed by "." and a storage root, for that root's own.
+	public static final String IN_PLACE = "in_place";
+	public static final String ARCHIPELAGO = "archipelago";
+	public static final String ARCHIPELAGO_WORKERS = "archipelago.workers";
+	public static final String ARCHIPELAGO_PORT = "archipelago.port";
+	public static final String ARCHIPELAGO_REMOTE = "archipelago.remote";
+	public static final String ARCHIPELAGO_TOKEN = "archipelago.token";
+	private static final String STAGE_PREFIX = "stage.";
+
+	private static ServiceLoader<Processor> procs = ServiceLoader.load(Processor.class);
+
+	private Properties props;
+
+	public PipelinePlan()
+	{
+		this(new Properties());
+	}
+
+	public PipelinePlan(Properties props)
+	{
+		this.props = props;
+	}
+
+	public static PipelinePlan load(File from) throws IOException
+	{
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(from);
+
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		return new PipelinePlan(props);
+	}
+
+	public void save(File to) throws IOException
+	{
+		OutputStream out = new FileOutputStream(to);
+
+		try {
+			props.store(out, "OpenSPIM Toolkit pipeline plan");
+		} finally {
+			out.close();
+		}
+	}
+
+	public Properties getProperties()
+	{
+		return props;
+	}
+
+	public String get(String key, String def)
+	{
+		return props.getProperty(key, def);
+	}
+
+	public void set(String key, String value)
+	{
+		props.setProperty(key, value);
+	}
+
+	public boolean getBoolean(String key)
+	{
+		return Boolean.parseBoolean(get(key, "false").trim());
+	}
+
+	public boolean isAutoThreads()
+	{
+		return "auto".equalsIgnoreCase(get(THREADS, "").trim());
+	}
+
+	public int getThreads()
+	{
+		if(isAutoThreads())
+			return Runtime.getRuntime().availableProcessors();
+
+		return Integer.parseInt(get(THREADS, Integer.toString(Runtime.getRuntime().availableProcessors())).trim());
+	}
+
+	/**
+	 * Records the current registration fields, the processors (with their
+	 * current settings) of a pipeline and the options in its parameters.
+	 */
+	public static PipelinePlan capture(Pipeline pipeline, Processor.Params params, int threads)
+	{
+		PipelinePlan plan = new PipelinePlan();
+
+		plan.set(THREADS, pipeline.isAutoTune() ? "auto" : Integer.toString(threads));
+		plan.set(PIPELINED, Boolean.toString(pipeline.isPipelined()));
+		plan.set(LIVE, Boolean.toString(pipeline.isLive()));
+		plan.set(INCREMENTAL, Boolean.toString(params.incremental));
+		plan.set(IN_PLACE, Boolean.toString(params.inPlace));
+		if(params.memory != null)
+			plan.set(HEAP_SHARE, Double.toString((double) params.memory.getBudget() / Runtime.getRuntime().maxMemory()));
+		if(params.views != null)
+			plan.set(VIEW_CACHE_SHARE, Double.toString((double) params.views.getBudget() / Runtime.getRuntime().maxMemory()));
+		if(params.writes != null)
+			plan.set(WRITE_BEHIND_SHARE, Double.toString((double) params.writes.getLimit() / Runtime.getRuntime().maxMemory()));
+		if(params.io != null)
+		{
+			plan.set(IO_PERMITS, Integer.toString(params.io.getPermits()));
+
+			for(Map.Entry<File, Integer> root : params.io.getRootPermits().entrySet())
+				plan.set(IO_PERMITS + "." + root.getKey().getPath(), Integer.toString(root.getValue()));
+		}
+
+		if(pipeline.getArchipelago() != null)
+		{
+			plan.set(ARCHIPELAGO, "true");
+			plan.set(ARCHIPELAGO_WORKERS, Integer.toString(pipeline.getArchipelago().getLocalWorkers()));
+			plan.set(ARCHIPELAGO_PORT, Integer.toString(pipeline.getArchipelago().getPort()));
+			plan.set(ARCHIPELAGO_REMOTE, Boolean.toString(pipeline.getArchipelago().isRemote()));
+		}
+
+		for(RegField field : RegField.values())
+			plan.set(field.getName(), field.getStringValue());
+
+		for(Processor.Stage stage : Processor.Stage.values())
+		{
+			StringBuilder names = new StringBuilder();
+
+			for(Processor proc : pipeline.get(stage))
+			{
+				if(names.length() > 0)
+					names.append(',');
+
+				names.append(proc.getClass().getSimpleName());
+
+				for(Map.Entry<String, String> setting : LayoutUtils.readForm(proc.getControlPanel()).entrySet())
+					plan.set(proc.getClass().getSimpleName() + "." + setting.getKey(), setting.getValue());
+			}
+
+			if(names.length() > 0)
+				plan.set(STAGE_PREFIX + stage.name().toLowerCase(), names.toString());
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Applies this plan's registration fields and processor settings, and
+	 * builds the pipeline it describes.
+	 *
+	 * @throws IllegalArgumentException if the plan names an unknown processor,
+	 *         or one that cannot run in the stage it was listed under
+	 */
+	public Pipeline toPipeline()
+	{
+		for(RegField field : RegField.values())
+		{
+			String value = get(field.getName(), null);
+
+			if(value == null)
+				continue;
+
+			if(field.getValue() instanceof Integer)
+				field.setValue((int) Double.parseDouble(value.trim()));
+			else if(field.getValue() instanceof Double)
+				field.setValue(Double.parseDouble(value.trim()));
+			else
+				field.setValue(value);
+		}
+
+		Pipeline pipeline = new Pipeline();
+		pipeline.setPipelined(getBoolean(PIPELINED));
+		pipeline.setLive(getBoolean(LIVE));
+		pipeline.setAutoTune(isAutoThreads());
+
+		for(Processor.Stage stage : Processor.Stage.values())
+		{
+			String names = get(STAGE_PREFIX + stage.name().toLowerCase(), "").trim();
+
+			if(names.isEmpty())
+				continue;
+
+			for(String name : names.split(","))
+			{
+				Processor proc = findProcessor(name.trim());
+
+				if(proc == null)
+					throw new IllegalArgumentException("Unknown processor \"" + name.trim() + "\"");
+
+				if((proc.getCapabilities() & stage.getMask()) == 0)
+					throw new IllegalArgumentException(proc + " cannot be used in the " + stage.getTitle() + " stage");
+
+				configure(proc);
+				pipeline.add(stage, proc);
+			}
+		}
+
+		if(getBoolean(ARCHIPELAGO))
+			pipeline.setArchipelago(new Archipelago(this, Integer.parseInt(get(ARCHIPELAGO_WORKERS, "0").trim()),
+				Integer.parseInt(get(ARCHIPELAGO_PORT, "0").trim())));
+
+		return pipeline;
+	}
+
+	/**
+	 * Fills in the execution options of a set of parameters from this plan.
+	 */
+	public void applyTo(Processor.Params params)
+	{
+		params.incremental = getBoolean(INCREMENTAL);
+		params.inPlace = getBoolean(IN_PLACE);
+
+		if(get(HEAP_SHARE, null) != null)
+			params.memory = MemoryBudget.ofHeapShare(Double.parseDouble(get(HEAP_SHARE, null).trim()));
+
+		if(get(VIEW_CACHE_SHARE, null) != null)
+			params.views = ViewCache.ofHeapShare(Double.parseDouble(get(VIEW_CACHE_SHARE, null).trim()));
+
+		if(get(WRITE_BEHIND_SHARE, null) != null)
+			params.writes = WriteBehindQueue.ofHeapShare(Double.parseDouble(get(WRITE_BEHIND_SHARE, null).trim()));
+
+		if(get(IO_PERMITS, null) != null)
+		{
+			params.io = new IoLimiter(Integer.parseInt(get(IO_PERMITS, null).trim()));
+
+			String prefix = IO_PERMITS + ".";
+			for(String key : props.stringPropertyNames())
+				if(key.startsWith(prefix))
+					params.io.setPermits(new File(key.substring(prefix.length())), Integer.parseInt(props.getProperty(key).trim()));
+		}
+	}
+
+	private void configure(Processor proc)
+	{
+		String prefix = proc.getClass().getSimpleName() + ".";
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+
+		for(String key : props.stringPropertyNames())
+			if(key.startsWith(prefix))
+				settings.put(key.substring(prefix.length()), props.getProperty(key));
+
+		if(settings.isEmpty())
+			return;
+
+		List<String> unmatched = LayoutUtils.writeForm(proc.getControlPanel(), settings);
+
+		for(String key : unmatched)
+			IJ.log("Plan setting " + prefix + key + " does not match any option of " + proc + "; ignored.");
+	}
+
+	private static Processor findProcessor(String name)
+	{
+		Iterator<Processor> iter = procs.iterator();
+
+		while(iter.hasNext())
+		{
+			Processor proc = iter.next();
+
+			if(name.equals(proc.getClass().getName()) || name.equals(proc.getClass().getSimpleName()) || name.equals(proc.toString()))
+				return proc;
+		}
+
+		return null;
+	}
+}
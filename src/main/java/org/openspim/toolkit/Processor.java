@@ -5,22 +5,26 @@ import java.util.Iterator;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 
+import org.openspim.toolkit.io.IoLimiter;
+
 public interface Processor {
 	
 	public static enum Stage
 	{
-		PREPROCESS(PREPROCESSOR | PRE_SEGMENTATION),
-		SEGMENTATION(Processor.SEGMENTATION),
-		POST_SEG_PRE_REG(POST_SEGMENTATION | PRE_REGISTRATION),
-		REGISTRATION(Processor.REGISTRATION),
-		POST_REG_PRE_FUSE(POST_REGISTRATION | PRE_FUSION),
-		FUSION(Processor.FUSION),
-		POSTPROCESS(POST_FUSION | POSTPROCESSOR);
+		PREPROCESS("PREPROCESS", PREPROCESSOR | PRE_SEGMENTATION),
+		SEGMENTATION("SEGMENTATION", Processor.SEGMENTATION),
+		POST_SEG_PRE_REG("PRE-REGISTRATION", POST_SEGMENTATION | PRE_REGISTRATION),
+		REGISTRATION("REGISTRATION", Processor.REGISTRATION),
+		POST_REG_PRE_FUSE("PRE-FUSION", POST_REGISTRATION | PRE_FUSION),
+		FUSION("FUSION", Processor.FUSION),
+		POSTPROCESS("POSTPROCESS", POST_FUSION | POSTPROCESSOR);
 		
+		private String title;
 		private int mask = 0;
 		
-		private Stage(int mask)
+		private Stage(String title, int mask)
 		{
+			this.title = title;
 			this.mask = mask;
 		}
 		
@@ -28,6 +32,11 @@ public interface Processor {
 		{
 			return mask;
 		}
+		
+		public String getTitle()
+		{
+			return title;
+		}
 	}
 
 	public static final int PREPROCESSOR = 1 << 0;
@@ -87,7 +96,7 @@ public interface Processor {
 		}
 	}
 	
-	public static class Params
+	public static class Params implements Cloneable
 	{
 		public ExecutorService invokeOn;
 		public Stage stage; // Current stage of processing.
@@ -100,6 +109,40 @@ public interface Processor {
 		public double zUmPerPix;
 		
 		public float progressScale;
+
+		public boolean incremental; // Skip views whose inputs and settings are unchanged since the last run.
+		public MemoryBudget memory; // If set, view processors only start views that fit in this budget.
+		public StageTimings timings; // If set, processors record how long they took.
+		public RunReport report; // If set, processors record per-view performance measurements.
+		public ViewCache views; // If set, processors share decoded views through it.
+		public WriteBehindQueue writes; // If set, changed views are written in the background.
+		public IoLimiter io; // If set, I/O-heavy work takes permits from it, per storage device.
+		public boolean inPlace; // Edit uncompressed views in place through mapped files: less I/O, but not atomic.
+
+		/**
+		 * Copies these parameters for use by a single processor in a
+		 * different stage than the one currently running.
+		 */
+		public Params forStage(Stage stage)
+		{
+			try {
+				Params copy = (Params) clone();
+				copy.stage = stage;
+				return copy;
+			} catch(CloneNotSupportedException e) {
+				throw new Error(e);
+			}
+		}
+
+		/**
+		 * Copies these parameters for running on a subset of the data.
+		 */
+		public Params forSpec(SpimDataSpecifier spec)
+		{
+			Params copy = forStage(stage);
+			copy.spec = spec;
+			return copy;
+		}
 	}
 	
 	public abstract int getCapabilities();
@@ -0,0 +1,188 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the progress of one processor over a set of views, and passes it on
+ * to the registered sinks (the ImageJ status bar and the log, by default).
+ * Updates are lock-free: each view has its own counter, and the overall total
+ * is kept up to date by adding the difference. Sinks are rate-limited, so
+ * updating progress in a tight loop costs next to nothing.
+ *
+ * @author LOCI
+ *
+ */
+public class ProgressBus
+{
+	private static final int SCALE = 1000000;
+
+	public static interface Sink
+	{
+		/**
+		 * @param source the processor reporting progress
+		 * @param overall overall progress, 0-1
+		 * @param done the number of views finished
+		 * @param total the number of views
+		 * @param viewsPerSecond throughput so far
+		 * @param etaMillis estimated time remaining, or -1 if unknown
+		 */
+		public abstract void progress(String source, float overall, int done, int total, double viewsPerSecond, long etaMillis);
+
+		public abstract void event(String source, String message);
+	}
+
+	/**
+	 * Wraps a sink so it hears about progress at most once per interval
+	 * (and always when everything is done). Events are always passed on.
+	 */
+	public static class RateLimited implements Sink
+	{
+		private Sink sink;
+		private long intervalNanos;
+		private AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+
+		public RateLimited(Sink sink, long intervalMillis)
+		{
+			this.sink = sink;
+			this.intervalNanos = intervalMillis * 1000000L;
+		}
+
+		@Override
+		public void progress(String source, float overall, int done, int total, double viewsPerSecond, long etaMillis)
+		{
+			long now = System.nanoTime();
+			long prev = last.get();
+
+			if(done < total && prev != Long.MIN_VALUE && now - prev < intervalNanos)
+				return;
+
+			if(last.compareAndSet(prev, now))
+				sink.progress(source, overall, done, total, viewsPerSecond, etaMillis);
+		}
+
+		@Override
+		public void event(String source, String message)
+		{
+			sink.event(source, message);
+		}
+	}
+
+	public static final Sink STATUS_SINK = new Sink()
+	{
+		@Override
+		public void progress(String source, float overall, int done, int total, double viewsPerSecond, long etaMillis)
+		{
+			IJ.showProgress(overall);
+			IJ.showStatus(String.format("%s: %.2f%% (%d/%d views%s)", source, overall*100, done, total,
+				etaMillis >= 0 ? ", " + formatMillis(etaMillis) + " left" : ""));
+		}
+
+		@Override
+		public void event(String source, String message)
+		{
+		}
+	};
+
+	public static final Sink LOG_SINK = new Sink()
+	{
+		@Override
+		public void progress(String source, float overall, int done, int total, double viewsPerSecond, long etaMillis)
+		{
+			IJ.log(String.format("%s: %.1f%%, %d/%d views, %.2f views/s%s", source, overall*100, done, total, viewsPerSecond,
+				etaMillis >= 0 ? ", ETA " + formatMillis(etaMillis) : ""));
+		}
+
+		@Override
+		public void event(String source, String message)
+		{
+			IJ.log(source + ": " + message);
+		}
+	};
+
+	private static List<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+
+	static {
+		sinks.add(new RateLimited(STATUS_SINK, 100));
+		sinks.add(new RateLimited(LOG_SINK, 30000));
+	}
+
+	public static void addSink(Sink sink)
+	{
+		sinks.add(sink);
+	}
+
+	public static void removeSink(Sink sink)
+	{
+		sinks.remove(sink);
+	}
+
+	private final String source;
+	private final int total;
+	private final long startNanos = System.nanoTime();
+	private ConcurrentMap<File, AtomicInteger> views = new ConcurrentHashMap<File, AtomicInteger>();
+	private AtomicLong sum = new AtomicLong();
+	private AtomicInteger done = new AtomicInteger();
+
+	public ProgressBus(String source, int total)
+	{
+		this.source = source;
+		this.total = Math.max(total, 1);
+	}
+
+	public void update(File view, float progress)
+	{
+		AtomicInteger counter = views.get(view);
+
+		if(counter == null)
+		{
+			AtomicInteger fresh = new AtomicInteger();
+			counter = views.putIfAbsent(view, fresh);
+
+			if(counter == null)
+				counter = fresh;
+		}
+
+		int value = (int) (Math.min(Math.max(progress, 0), 1) * SCALE);
+		int old = counter.getAndSet(value);
+
+		if(old == value)
+			return;
+
+		long overall = sum.addAndGet(value - old);
+		int finished = (value == SCALE && old != SCALE) ? done.incrementAndGet() : done.get();
+
+		publish(overall, finished);
+	}
+
+	public void event(String message)
+	{
+		for(Sink sink : sinks)
+			sink.event(source, message);
+	}
+
+	private void publish(long overall, int finished)
+	{
+		float fraction = Math.min(1.0f, overall / ((float) SCALE * total));
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		double rate = seconds > 0 ? finished / seconds : 0;
+		long eta = fraction > 0 ? (long) (seconds * 1000 * (1 - fraction) / fraction) : -1;
+
+		for(Sink sink : sinks)
+			sink.progress(source, fraction, finished, total, rate, eta);
+	}
+
+	private static String formatMillis(long millis)
+	{
+		long s = millis / 1000;
+
+		return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+	}
+}
@@ -0,0 +1,295 @@
+package org.openspim.toolkit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects per-processor, per-view performance measurements over a pipeline
+ * run and writes them out as CSV, followed by one aggregate row per stage.
+ * <p>
+ * Bytes read are the sizes of the processor's declared inputs (see
+ * ViewProcessor.getInputs). Bytes written are the sizes of the view's files
+ * (see {@link #snapshot(File)}) that were created or changed while it was
+ * being processed; writes left to the view cache or the write-behind queue
+ * land later and aren't counted, and neither are files shared by all views
+ * (e.g. metadata.xml). Processors run over the whole dataset at once have
+ * no bytes written, and their CPU time is that of the whole process, since
+ * their work is spread over threads of their own; a stage's CPU time is left
+ * blank if it would mix the two, or if any of it is unknown. Peak heap is
+ * sampled in the background, so it is the whole JVM's heap while the view
+ * was being processed, not just that view's share of it.
+ *
+ * @author LOCI
+ *
+ */
+public class RunReport
+{
+	private static final long SAMPLE_MS = 100;
+
+	private static ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private static OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+
+	public class Measurement
+	{
+		private Processor.Stage stage;
+		private String processor, view;
+		private boolean wholeProcess;
+		private long startNanos, endNanos, startCpu, cpuNanos, queueWaitNanos;
+		private long bytesRead = -1, bytesWritten = -1;
+		private AtomicLong peakHeap = new AtomicLong();
+
+		private Measurement(Processor.Stage stage, Processor proc, String view, boolean wholeProcess, long queueWaitNanos)
+		{
+			this.stage = stage;
+			this.processor = proc.toString();
+			this.view = view;
+			this.wholeProcess = wholeProcess;
+			this.queueWaitNanos = queueWaitNanos;
+			this.startCpu = cpuTime(wholeProcess);
+			this.startNanos = System.nanoTime();
+			sample(this);
+		}
+
+		public void setBytes(long read, long written)
+		{
+			bytesRead = read;
+			bytesWritten = written;
+		}
+
+		public void end()
+		{
+			endNanos = System.nanoTime();
+			long cpu = cpuTime(wholeProcess);
+			cpuNanos = cpu >= 0 && startCpu >= 0 ? cpu - startCpu : -1;
+			sample(this);
+			active.remove(this);
+			finished.add(this);
+		}
+	}
+
+	private Set<Measurement> active = Collections.newSetFromMap(new ConcurrentHashMap<Measurement, Boolean>());
+	private List<Measurement> finished = Collections.synchronizedList(new ArrayList<Measurement>());
+	private Thread sampler;
+
+	public RunReport()
+	{
+		sampler = new Thread("Run report heap sampler")
+		{
+			@Override
+			public void run()
+			{
+				while(!isInterrupted()) try {
+					for(Measurement m : active)
+						sample(m);
+
+					Thread.sleep(SAMPLE_MS);
+				} catch(InterruptedException ie) {
+					break;
+				}
+			}
+		};
+
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	public static File defaultFile(SpimDataSpecifier spec)
+	{
+		return new File(spec.getRegistrationDirectory(),
+			"run-report-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".csv");
+	}
+
+	/**
+	 * Starts measuring a processor's work on one view (or, with a null view,
+	 * on the whole dataset). A view's measurement must be ended with
+	 * {@link Measurement#end()} on the same thread, for CPU time to be
+	 * meaningful.
+	 */
+	public Measurement begin(Processor.Stage stage, Processor proc, File view, long queueWaitNanos)
+	{
+		Measurement m = new Measurement(stage, proc, view != null ? view.getName() : "(all views)", view == null, queueWaitNanos);
+		active.add(m);
+		return m;
+	}
+
+	/**
+	 * Records the size and modification time of a view's files: the view, its
+	 * backup, and everything in its registration directory named after it.
+	 * Comparing two snapshots with {@link #bytesWritten(Map, Map)} gives how
+	 * much was written in between.
+	 */
+	public static Map<File, long[]> snapshot(File view)
+	{
+		Map<File, long[]> files = new HashMap<File, long[]>();
+		final String name = view.getName();
+
+		files.put(view, stat(view));
+
+		File backup = new File(new File(view.getParentFile(), "backup"), name);
+		files.put(backup, stat(backup));
+
+		File[] derived = OpenSPIMToolkit.getRegistrationDirectory(view).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String file)
+			{
+				return file.startsWith(name);
+			}
+		});
+
+		if(derived != null)
+			for(File f : derived)
+				files.put(f, stat(f));
+
+		return files;
+	}
+
+	/**
+	 * @return the total size of the files that are new or changed in the
+	 *         second snapshot (files that only exist in it, too)
+	 */
+	public static long bytesWritten(Map<File, long[]> before, Map<File, long[]> after)
+	{
+		long written = 0;
+
+		for(Map.Entry<File, long[]> file : after.entrySet())
+		{
+			long[] was = before.get(file.getKey());
+			long[] is = file.getValue();
+
+			if(is[0] >= 0 && (was == null || was[0] != is[0] || was[1] != is[1]))
+				written += is[0];
+		}
+
+		return written;
+	}
+
+	private static long[] stat(File file)
+	{
+		return file.isFile() ? new long[] { file.length(), file.lastModified() } : new long[] { -1, 0 };
+	}
+
+	private static void sample(Measurement m)
+	{
+		long used = memory.getHeapMemoryUsage().getUsed();
+		long peak;
+
+		while(used > (peak = m.peakHeap.get()) && !m.peakHeap.compareAndSet(peak, used))
+			;
+	}
+
+	/**
+	 * @return the CPU time used so far by the calling thread (or the whole
+	 *         process), or -1 if the JVM can't say
+	 */
+	private static long cpuTime(boolean wholeProcess)
+	{
+		if(!wholeProcess)
+			return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+
+		if(system instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) system).getProcessCpuTime();
+
+		return -1;
+	}
+
+	/**
+	 * Stops the heap sampler and writes the report.
+	 */
+	public void write(File to) throws IOException
+	{
+		sampler.interrupt();
+
+		if(!to.getParentFile().exists())
+			to.getParentFile().mkdirs();
+
+		PrintWriter out = new PrintWriter(new FileWriter(to));
+
+		try {
+			out.println("kind,stage,processor,view,views,wall_s,cpu_s,queue_wait_s,bytes_read,bytes_written,peak_heap_mb");
+
+			Map<Processor.Stage, Measurement[]> stages = new LinkedHashMap<Processor.Stage, Measurement[]>();
+			Map<Processor.Stage, long[]> totals = new LinkedHashMap<Processor.Stage, long[]>();
+
+			synchronized(finished)
+			{
+				for(Measurement m : finished)
+				{
+					out.println(row("view", m.stage, m.processor, m.view, 1, m.endNanos - m.startNanos, m.cpuNanos,
+						m.queueWaitNanos, m.bytesRead, m.bytesWritten, m.peakHeap.get()));
+
+					long[] t = totals.get(m.stage);
+					Measurement[] span = stages.get(m.stage);
+
+					if(t == null)
+					{
+						totals.put(m.stage, t = new long[8]);
+						stages.put(m.stage, span = new Measurement[] { m, m });
+					}
+
+					if(m.startNanos < span[0].startNanos)
+						span[0] = m;
+					if(m.endNanos > span[1].endNanos)
+						span[1] = m;
+
+					t[0] += 1;
+					t[1] += Math.max(m.cpuNanos, 0);
+					t[6] += m.wholeProcess ? 1 : 0;
+					t[7] += m.cpuNanos < 0 ? 1 : 0;
+					t[2] += m.queueWaitNanos;
+					t[3] += Math.max(m.bytesRead, 0);
+					t[4] += Math.max(m.bytesWritten, 0);
+					t[5] = Math.max(t[5], m.peakHeap.get());
+				}
+			}
+
+			for(Map.Entry<Processor.Stage, long[]> stage : totals.entrySet())
+			{
+				long[] t = stage.getValue();
+				Measurement[] span = stages.get(stage.getKey());
+
+				// Whole-process and per-thread CPU times don't add up to anything.
+				boolean mixed = t[6] > 0 && t[6] < t[0];
+				long cpu = mixed || t[7] > 0 ? -1 : t[1];
+
+				out.println(row("stage", stage.getKey(), "*", "*", t[0], span[1].endNanos - span[0].startNanos, cpu, t[2], t[3], t[4], t[5]));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String row(String kind, Processor.Stage stage, String processor, String view, long views,
+			long wallNanos, long cpuNanos, long queueNanos, long read, long written, long peak)
+	{
+		return String.format("%s,%s,%s,%s,%d,%.3f,%s,%.3f,%s,%s,%.1f", kind, stage, csv(processor), csv(view), views,
+			wallNanos / 1e9, cpuNanos >= 0 ? String.format("%.3f", cpuNanos / 1e9) : "", queueNanos / 1e9, read >= 0 ? Long.toString(read) : "",
+			written >= 0 ? Long.toString(written) : "", peak / (1024.0 * 1024.0));
+	}
+
+	private static String csv(String field)
+	{
+		if(field.indexOf(',') < 0 && field.indexOf('"') < 0)
+			return field;
+
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+}
@@ -8,8 +8,13 @@ import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 
 import javax.swing.JButton;
@@ -19,6 +24,8 @@ import javax.swing.JTextField;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.io.BigTiffWriter;
+import org.openspim.toolkit.io.IoLimiter;
 
 public class SliceCollector implements Processor {
 	@Override
@@ -26,32 +33,133 @@ public class SliceCollector implements Processor {
 		return Processor.POST_FUSION;
 	}
 
+	private static final Object END = new Object();
+
 	@Override
-	public void performProcessing(Params params) throws InterruptedException, ExecutionException {
+	public void performProcessing(final Params params) throws InterruptedException, ExecutionException {
 		File exemplar = params.spec.iterator().next();
-		File[] files = OpenSPIMToolkit.getOutputDirectory(exemplar).listFiles(tifFilter);
-		Arrays.sort(files);
+		File outputDir = OpenSPIMToolkit.getOutputDirectory(exemplar);
+		File[] files = outputDir.listFiles(FusedVolume.tifFilter);
+		File[] volumes = outputDir.listFiles(FusedVolume.n5Filter);
+
+		final FusedVolume source;
+
+		try {
+			// Fusion may have left chunked volumes (one per timepoint) instead
+			// of slices; like slices, they're all collected, in timepoint order.
+			if((files == null || files.length == 0) && volumes != null && volumes.length > 0) {
+				List<FusedVolume> chunked = new ArrayList<FusedVolume>(FusedVolume.find(outputDir, params.spec).values());
+
+				if(chunked.size() > 1)
+					IJ.log("Slice Collector: stacking " + chunked.size() + " timepoints' fused volumes in timepoint order.");
+
+				source = FusedVolume.concat("collected-output", chunked);
+			} else if(files != null && files.length > 0) {
+				Arrays.sort(files);
+				source = FusedVolume.ofSlices("collected-output", files);
+			} else {
+				IJ.log("Slice Collector: no fused output to collect.");
+				return;
+			}
+		} catch(IOException ioe) {
+			throw new ExecutionException("Couldn't open the fused output", ioe);
+		}
+
+		if(source.getBitDepth() == 24)
+			throw new ExecutionException(new IOException("Can't collect RGB slices"));
+
+		// Upcoming slices are read (and decoded, if they need to be) while the current one is written.
+		final BlockingQueue<Object> ahead = new ArrayBlockingQueue<Object>(PREFETCH);
+		final Throwable[] readFailure = new Throwable[1];
+		Thread reader = new Thread("Slice Collector reader") {
+			@Override
+			public void run() {
+				try {
+					for(int z = 0; z < source.getDepth(); ++z)
+						ahead.put(read(params, source, z));
+
+					ahead.put(END);
+				} catch(InterruptedException ie) {
+					// Collection gave up.
+				} catch(Throwable t) {
+					readFailure[0] = t;
+					ahead.offer(END);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		BigTiffWriter writer = null;
+		ImageStack stack = show.isSelected() ? new ImageStack(source.getWidth(), source.getHeight()) : null;
+
+		try {
+			if(!pathBox.getText().isEmpty())
+				writer = new BigTiffWriter(new File(pathBox.getText()), source.getWidth(), source.getHeight(), source.getBitDepth(), source.getBitDepth() == 32, source.getByteOrder(), source.getDepth());
+
+			for(int z = 0; z < source.getDepth(); ++z) {
+				Object next = ahead.take();
+
+				if(next == END)
+					throw new ExecutionException("Couldn't read fused slice " + z, readFailure[0]);
+
+				FusedVolume.Plane slice = (FusedVolume.Plane) next;
+
+				if(writer != null)
+					write(params, writer, slice);
 
-		ImageStack stack = null;
+				// Only the displayed stack needs every slice in memory.
+				if(stack != null)
+					stack.addSlice(FusedVolume.decode(slice));
+			}
+
+			if(writer != null) {
+				writer.close();
+				IJ.log("Slice Collector: wrote " + source.getDepth() + " slices to " + pathBox.getText());
+				writer = null;
+			}
+		} catch(IOException ioe) {
+			throw new ExecutionException("Couldn't write " + pathBox.getText(), ioe);
+		} finally {
+			reader.interrupt();
 
-		for (File f : files) {
-			ImagePlus imp = IJ.openImage(f.getAbsolutePath());
+			if(writer != null)
+				writer.abort();
+		}
 
-			if(stack == null)
-				stack = new ImageStack(imp.getWidth(), imp.getHeight());
+		if(stack != null)
+			new ImagePlus("collected-output", stack).show();
+	}
+
+	private static FusedVolume.Plane read(Params params, FusedVolume source, int z) throws IOException {
+		File exemplar = params.spec.iterator().next();
+		IoLimiter.Permit permit = IoLimiter.acquire(params.io, OpenSPIMToolkit.getOutputDirectory(exemplar));
 
-			stack.addSlice(imp.getProcessor());
-			imp.close();
+		try {
+			return source.read(z);
+		} finally {
+			permit.release();
 		}
+	}
+
+	private static void write(Params params, BigTiffWriter writer, FusedVolume.Plane slice) throws IOException {
+		IoLimiter.Permit permit = IoLimiter.acquire(params.io, new File(pathBox.getText()));
 
-		ImagePlus total = new ImagePlus("collected-output", stack);
-		if(!pathBox.getText().isEmpty())
-			IJ.saveAsTiff(total, pathBox.getText());
+		try {
+			if(slice.ip != null) {
+				writer.writePlane(slice.ip.getPixels());
+				return;
+			}
 
-		if(show.isSelected())
-			total.show();
-		else
-			total.close();
+			FileInputStream in = new FileInputStream(slice.raw);
+			try {
+				writer.copyPlane(in.getChannel(), slice.rawOffset);
+			} finally {
+				in.close();
+			}
+		} finally {
+			permit.release();
+		}
 	}
 
 	@Override
@@ -59,12 +167,7 @@ public class SliceCollector implements Processor {
 		return "Slice Collector";
 	}
 
-	private static FilenameFilter tifFilter = new FilenameFilter() {
-		@Override
-		public boolean accept(File dir, String name) {
-			return name.endsWith(".tif") || name.endsWith(".tiff");
-		}
-	};
+	private static final int PREFETCH = 4;
 
 	private static JTextField pathBox = new JTextField("collected-output.tif", 24);
 	private static JButton browseBtn = new JButton("Browse");
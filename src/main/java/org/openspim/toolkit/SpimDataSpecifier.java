@@ -1,9 +1,12 @@
 package org.openspim.toolkit;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,7 +19,7 @@ import java.util.regex.Pattern;
  * @author LOCI
  *
  */
-public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
+public class SpimDataSpecifier implements Iterable<File>
 {
 	/**
 	 * Implements a class representing the time/angle specifiers.
@@ -25,6 +28,9 @@ public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
 	 * - A range of values is given in min-max:step form.
 	 *   - If step is omitted, it is assumed to be 1.
 	 * - Multiple values or ranges are separated by commas.
+	 * <p>
+	 * Only the ranges themselves are stored, so a specifier covering a
+	 * hundred thousand timepoints takes no more memory than one covering ten.
 	 *
 	 * @author LOCI
 	 *
@@ -32,18 +38,16 @@ public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
 	public static class MultiSpec implements Iterable<Integer>
 	{
 		private static Pattern rangeRegex = Pattern.compile("^([0-9]+)(-([0-9]+)(:([0-9]+))?)?$");
-		
-		private List<Integer> sequence;
+
+		private int[] starts, steps, lengths;
+		private int[] offsets; // Index of each range's first value; one extra entry for the total count.
 		public String source;
 
 		public MultiSpec(String specifier)
 		{
-			source = specifier;
-
-			String[] inranges = specifier.split(",");
-			sequence = new LinkedList<Integer>();
+			Builder b = new Builder();
 
-			for(String r : inranges) {
+			for(String r : specifier.split(",")) {
 				Matcher m = rangeRegex.matcher(r.trim());
 				if(!m.matches())
 				{
@@ -60,25 +64,249 @@ public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
 				if(m.group(5) != null && !m.group(5).isEmpty())
 					step = Integer.parseInt(m.group(5));
 
-				for(int i = min; i <= max; i += step)
-					sequence.add(i);
+				if(max >= min)
+					b.addRange(min, Math.max(step, 1), (max - min) / Math.max(step, 1) + 1);
 			}
+
+			b.into(this);
+			source = specifier;
+		}
+
+		private MultiSpec()
+		{
+		}
+
+		public static MultiSpec of(int value)
+		{
+			Builder b = new Builder();
+			b.add(value);
+			return b.build();
 		}
 
 		public int count()
 		{
-			return sequence.size();
+			return offsets[starts.length];
 		}
 
 		public int get(int i)
 		{
-			return sequence.get(i);
+			if(i < 0 || i >= count())
+				throw new IndexOutOfBoundsException(i + " of " + count());
+
+			int r = Arrays.binarySearch(offsets, 0, starts.length, i);
+			if(r < 0)
+				r = -r - 2;
+
+			return starts[r] + (i - offsets[r]) * steps[r];
+		}
+
+		/**
+		 * @return the values from index <code>from</code> (inclusive) to
+		 *         <code>to</code> (exclusive)
+		 */
+		public MultiSpec slice(int from, int to)
+		{
+			Builder b = new Builder();
+
+			for(int r = 0; r < starts.length; ++r)
+			{
+				int lo = Math.max(from, offsets[r]), hi = Math.min(to, offsets[r + 1]);
+
+				if(hi > lo)
+					b.addRange(starts[r] + (lo - offsets[r]) * steps[r], steps[r], hi - lo);
+			}
+
+			return b.build();
+		}
+
+		/**
+		 * @return the index of the first occurrence of the given value, or -1
+		 */
+		public int indexOf(int value)
+		{
+			for(int r = 0; r < starts.length; ++r)
+			{
+				int d = value - starts[r];
+
+				if(d >= 0 && d % steps[r] == 0 && d / steps[r] < lengths[r])
+					return offsets[r] + d / steps[r];
+			}
+
+			return -1;
+		}
+
+		public boolean contains(int value)
+		{
+			return indexOf(value) >= 0;
+		}
+
+		/**
+		 * @return this spec's values, followed by those of the other that aren't in this one
+		 */
+		public MultiSpec union(MultiSpec other)
+		{
+			Builder b = new Builder();
+
+			for(int r = 0; r < starts.length; ++r)
+				b.addRange(starts[r], steps[r], lengths[r]);
+
+			for(int v : other)
+				if(!contains(v))
+					b.add(v);
+
+			return b.build();
+		}
+
+		/**
+		 * @return this spec's values that aren't in the other
+		 */
+		public MultiSpec difference(MultiSpec other)
+		{
+			Builder b = new Builder();
+
+			for(int v : this)
+				if(!other.contains(v))
+					b.add(v);
+
+			return b.build();
+		}
+
+		/**
+		 * @return this spec's values that are also in the other
+		 */
+		public MultiSpec intersection(MultiSpec other)
+		{
+			Builder b = new Builder();
+
+			for(int v : this)
+				if(other.contains(v))
+					b.add(v);
+
+			return b.build();
 		}
 
 		@Override
 		public Iterator<Integer> iterator()
 		{
-			return sequence.iterator();
+			return new Iterator<Integer>() {
+				private int range = 0, index = 0;
+
+				@Override
+				public boolean hasNext()
+				{
+					while(range < starts.length && index >= lengths[range])
+					{
+						++range;
+						index = 0;
+					}
+
+					return range < starts.length;
+				}
+
+				@Override
+				public Integer next()
+				{
+					if(!hasNext())
+						throw new NoSuchElementException();
+
+					return starts[range] + (index++) * steps[range];
+				}
+
+				@Override
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * @return the specifier in min-max:step form
+		 */
+		@Override
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder();
+
+			for(int r = 0; r < starts.length; ++r)
+			{
+				if(out.length() > 0)
+					out.append(',');
+
+				out.append(starts[r]);
+
+				if(lengths[r] > 1)
+				{
+					out.append('-').append(starts[r] + (lengths[r] - 1) * steps[r]);
+
+					if(steps[r] != 1)
+						out.append(':').append(steps[r]);
+				}
+			}
+
+			return out.toString();
+		}
+
+		/**
+		 * Collects values into as few evenly-stepped ranges as it can.
+		 */
+		private static class Builder
+		{
+			private int[] starts = new int[4], steps = new int[4], lengths = new int[4];
+			private int n = 0;
+
+			void add(int value)
+			{
+				int last = n - 1;
+
+				if(last >= 0 && lengths[last] == 1 && value > starts[last])
+				{
+					steps[last] = value - starts[last];
+					lengths[last] = 2;
+				}
+				else if(last >= 0 && lengths[last] > 1 && value == starts[last] + lengths[last] * steps[last])
+				{
+					++lengths[last];
+				}
+				else
+				{
+					addRange(value, 1, 1);
+				}
+			}
+
+			void addRange(int start, int step, int length)
+			{
+				if(n == starts.length)
+				{
+					starts = Arrays.copyOf(starts, n * 2);
+					steps = Arrays.copyOf(steps, n * 2);
+					lengths = Arrays.copyOf(lengths, n * 2);
+				}
+
+				starts[n] = start;
+				steps[n] = step;
+				lengths[n] = length;
+				++n;
+			}
+
+			void into(MultiSpec spec)
+			{
+				spec.starts = Arrays.copyOf(starts, n);
+				spec.steps = Arrays.copyOf(steps, n);
+				spec.lengths = Arrays.copyOf(lengths, n);
+				spec.offsets = new int[n + 1];
+
+				for(int r = 0; r < n; ++r)
+					spec.offsets[r + 1] = spec.offsets[r] + lengths[r];
+			}
+
+			MultiSpec build()
+			{
+				MultiSpec spec = new MultiSpec();
+				into(spec);
+				spec.source = spec.toString();
+				return spec;
+			}
 		}
 	}
 
@@ -86,20 +314,21 @@ public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
 	private String pattern;
 	private MultiSpec timepoints;
 	private MultiSpec angles;
-
-	private Integer timepoint;
-	private Iterator<Integer> angleIterator;
-	private Iterator<Integer> timepointIterator;
+	private volatile ViewSet views;
+	private volatile Pattern nameRegex;
+	private volatile String nameGroups;
 
 	public SpimDataSpecifier(File directory, String pattern, String timepoints, String angles)
+	{
+		this(directory, pattern, new MultiSpec(timepoints), new MultiSpec(angles));
+	}
+
+	public SpimDataSpecifier(File directory, String pattern, MultiSpec timepoints, MultiSpec angles)
 	{
 		this.directory = directory;
 		this.pattern = pattern;
-		this.timepoints = new MultiSpec(timepoints);
-		this.angles = new MultiSpec(angles);
-
-		angleIterator = timepointIterator = null;
-		timepoint = 0;
+		this.timepoints = timepoints;
+		this.angles = angles;
 	}
 
 	public int count()
@@ -107,64 +336,182 @@ public class SpimDataSpecifier implements Iterable<File>, Iterator<File>
 		return timepoints.count() * angles.count();
 	}
 
+	/**
+	 * Iterates over the views; each call returns an independent iterator, so
+	 * any number of threads can iterate at once.
+	 */
 	@Override
 	public Iterator<File> iterator()
 	{
-		if(angleIterator != null || timepointIterator != null)
-			throw new UnsupportedOperationException("multiple simultaneous iteration");
-
-		timepointIterator = timepoints.iterator();
-		angleIterator = angles.iterator();
-		timepoint = timepointIterator.next();
-		return this;
-	}
-
-	@Override
-	public boolean hasNext()
-	{
-		return angleIterator != null && timepointIterator != null && (angleIterator.hasNext() || timepointIterator.hasNext());
+		return getViews().iterator();
 	}
 
 	private static Pattern tpPat = Pattern.compile("\\{t+\\}");
 	private static Pattern aPat = Pattern.compile("\\{a+\\}");
 
-	public File next()
+	/**
+	 * @return the views; paths are worked out as they're asked for, so this
+	 *         is cheap however many views there are
+	 */
+	public ViewSet getViews()
 	{
-		if(!angleIterator.hasNext())
+		ViewSet v = views;
+
+		if(v == null)
 		{
-			angleIterator = angles.iterator();
-			timepoint = timepointIterator.next();
+			// Turn the pattern into a format string once, rather than matching it for every file.
+			String format = pattern.replace("%", "%%");
+			format = replaceAll(tpPat, format, "1");
+			format = replaceAll(aPat, format, "2");
+
+			views = v = new ViewSet(directory, format, timepoints, angles);
 		}
 
-		int angle = angleIterator.next();
+		return v;
+	}
 
-		String fn = pattern;
-		Matcher m = tpPat.matcher(fn);
-		while(m.find())
-			fn = fn.replace(m.group(), String.format("%0" + (m.group().length() - 2) + "d", timepoint));
+	/**
+	 * @return the index in {@link #getViews()} of the view with the given
+	 *         path relative to the data directory, or -1 if it isn't one
+	 */
+	public int indexOf(String name)
+	{
+		Pattern regex = nameRegex;
 
-		m = aPat.matcher(fn);
-		while(m.find())
-			fn = fn.replace(m.group(), String.format("%0" + (m.group().length() - 2) + "d", angle));
-		
-		if(!hasNext())
+		if(regex == null)
 		{
-			angleIterator = null;
-			timepointIterator = null;
+			// Each {tt}/{aa} becomes a named-by-letter capturing group; everything else must match literally.
+			Matcher m = Pattern.compile("\\{(t+|a+)\\}").matcher(pattern);
+			StringBuilder re = new StringBuilder();
+			StringBuilder groups = new StringBuilder();
+			int last = 0;
+
+			while(m.find())
+			{
+				re.append(Pattern.quote(pattern.substring(last, m.start()))).append("([0-9]+)");
+				groups.append(m.group(1).charAt(0));
+				last = m.end();
+			}
+
+			re.append(Pattern.quote(pattern.substring(last)));
+			nameGroups = groups.toString();
+			nameRegex = regex = Pattern.compile(re.toString());
 		}
 
-		return new File(directory, fn);
+		Matcher m = regex.matcher(name.replace(File.separatorChar, '/'));
+		if(!m.matches())
+			return -1;
+
+		Integer timepoint = null, angle = null;
+		for(int g = 0; g < nameGroups.length(); ++g)
+		{
+			int value = Integer.parseInt(m.group(g + 1));
+
+			if(nameGroups.charAt(g) == 't')
+				timepoint = value;
+			else
+				angle = value;
+		}
+
+		if(timepoint == null || angle == null)
+			return -1;
+
+		return getViews().indexOf(timepoint, angle);
 	}
 
-	public int getCurrentTimepoint()
+	private static String replaceAll(Pattern pat, String fn, String arg)
 	{
-		return timepoint;
+		Matcher m = pat.matcher(fn);
+		StringBuffer out = new StringBuffer();
+
+		while(m.find())
+			m.appendReplacement(out, Matcher.quoteReplacement("%" + arg + "$0" + (m.group().length() - 2) + "d"));
+
+		m.appendTail(out);
+		return out.toString();
 	}
 
-	@Override
-	public void remove()
+	public MultiSpec getTimepoints()
 	{
-		throw new UnsupportedOperationException();
+		return timepoints;
+	}
+
+	public MultiSpec getAngles()
+	{
+		return angles;
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	public String getPattern()
+	{
+		return pattern;
+	}
+
+	/**
+	 * @return where registration files for these views go (next to the
+	 *         first view), found without iterating the views
+	 */
+	public File getRegistrationDirectory()
+	{
+		return OpenSPIMToolkit.getRegistrationDirectory(getViews().get(0));
+	}
+
+	/**
+	 * @return where fused output for these views goes
+	 */
+	public File getOutputDirectory()
+	{
+		return OpenSPIMToolkit.getOutputDirectory(getViews().get(0));
+	}
+
+	/**
+	 * @return a specifier for the same files, restricted to one timepoint
+	 */
+	public SpimDataSpecifier forTimepoint(int timepoint)
+	{
+		return forTimepoints(MultiSpec.of(timepoint));
+	}
+
+	/**
+	 * @return a specifier for the same files, restricted to the given timepoints
+	 */
+	public SpimDataSpecifier forTimepoints(MultiSpec timepoints)
+	{
+		return new SpimDataSpecifier(directory, pattern, timepoints, angles);
+	}
+
+	/**
+	 * @return the timepoints for which every angle's file exists
+	 */
+	public MultiSpec getTimepointsOnDisk()
+	{
+		// One directory listing is much cheaper than checking each file (if the pattern doesn't name subdirectories).
+		boolean flat = pattern.indexOf('/') < 0 && pattern.indexOf(File.separatorChar) < 0;
+		String[] names = flat ? directory.list() : null;
+		Set<String> present = new HashSet<String>(names != null ? Arrays.asList(names) : Collections.<String>emptyList());
+
+		ViewSet all = getViews();
+		MultiSpec.Builder b = new MultiSpec.Builder();
+
+		for(int t = 0; t < timepoints.count(); ++t)
+		{
+			boolean complete = true;
+
+			for(int a = 0; a < angles.count() && complete; ++a)
+			{
+				File view = all.get(t * angles.count() + a);
+				complete = flat ? present.contains(view.getName()) : view.exists();
+			}
+
+			if(complete)
+				b.add(timepoints.get(t));
+		}
+
+		return b.build();
 	}
 
 	public String getParameterString()
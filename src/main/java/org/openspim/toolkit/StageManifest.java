@@ -0,0 +1,212 @@
+package org.openspim.toolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records, per view, which processors have completed and what their inputs
+ * looked like afterwards, so an incremental run can skip work that is still
+ * valid. The manifest lives next to the view's other registration files as
+ * <code>registration/&lt;view&gt;.manifest</code>, one completed step per line
+ * in the order the steps ran:
+ *
+ * <pre>
+ * stage.processor	config-hash	file=size:mtime	file=size:mtime...
+ * </pre>
+ *
+ * A step is up to date if its configuration is unchanged and each of its
+ * input files still looks the way the most recent step touching it left it.
+ * Re-running a step drops every step recorded after it, since those worked
+ * from its old output.
+ *
+ * @author LOCI
+ *
+ */
+public class StageManifest
+{
+	private static final Object lock = new Object();
+
+	private static class Entry
+	{
+		String key;
+		String config;
+		Map<String, String> states = new LinkedHashMap<String, String>();
+
+		String toLine()
+		{
+			StringBuilder sb = new StringBuilder(key).append('\t').append(config);
+
+			for(Map.Entry<String, String> state : states.entrySet())
+				sb.append('\t').append(state.getKey()).append('=').append(state.getValue());
+
+			return sb.toString();
+		}
+
+		static Entry fromLine(String line)
+		{
+			String[] parts = line.split("\t");
+
+			if(parts.length < 2)
+				return null;
+
+			Entry e = new Entry();
+			e.key = parts[0];
+			e.config = parts[1];
+
+			for(int i = 2; i < parts.length; ++i)
+			{
+				int eq = parts[i].lastIndexOf('=');
+
+				if(eq > 0)
+					e.states.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+			}
+
+			return e;
+		}
+	}
+
+	public static File manifestFile(File view)
+	{
+		return new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".manifest");
+	}
+
+	public static boolean isComplete(File view, String key, String config, File... inputs)
+	{
+		synchronized(lock)
+		{
+			List<Entry> entries = load(view);
+			String hash = hash(config);
+
+			int at = indexOf(entries, key);
+
+			if(at < 0 || !entries.get(at).config.equals(hash))
+				return false;
+
+			for(File input : inputs)
+			{
+				String state = state(input);
+
+				if(state == null || !state.equals(lastState(entries, input)))
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	public static void markComplete(File view, String key, String config, File... inputs)
+	{
+		synchronized(lock)
+		{
+			List<Entry> entries = load(view);
+
+			int at = indexOf(entries, key);
+			if(at >= 0)
+				entries.subList(at, entries.size()).clear();
+
+			Entry e = new Entry();
+			e.key = key;
+			e.config = hash(config);
+
+			for(File input : inputs)
+			{
+				String state = state(input);
+
+				if(state == null)
+					return; // Something went wrong; don't claim this step is done.
+
+				e.states.put(input.getName(), state);
+			}
+
+			entries.add(e);
+			save(view, entries);
+		}
+	}
+
+	private static int indexOf(List<Entry> entries, String key)
+	{
+		for(int i = 0; i < entries.size(); ++i)
+			if(entries.get(i).key.equals(key))
+				return i;
+
+		return -1;
+	}
+
+	private static String lastState(List<Entry> entries, File input)
+	{
+		for(int i = entries.size() - 1; i >= 0; --i)
+			if(entries.get(i).states.containsKey(input.getName()))
+				return entries.get(i).states.get(input.getName());
+
+		return null;
+	}
+
+	private static String state(File f)
+	{
+		if(!f.exists())
+			return null;
+
+		return f.length() + ":" + f.lastModified();
+	}
+
+	private static String hash(String config)
+	{
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return String.format("%032x", new BigInteger(1, md5.digest(config.getBytes("UTF-8"))));
+		} catch(NoSuchAlgorithmException e) {
+			throw new Error(e);
+		} catch(IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static List<Entry> load(File view)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		File manifest = manifestFile(view);
+
+		if(!manifest.exists())
+			return entries;
+
+		try {
+			for(String line : OpenSPIMToolkit.readAllLines(manifest))
+			{
+				Entry e = Entry.fromLine(line);
+
+				if(e != null)
+					entries.add(e);
+			}
+		} catch(IOException ioe) {
+			ij.IJ.log("Couldn't read manifest for view " + view.getName() + "; it will be reprocessed.");
+			entries.clear();
+		}
+
+		return entries;
+	}
+
+	private static void save(File view, List<Entry> entries)
+	{
+		File manifest = manifestFile(view);
+		List<String> lines = new ArrayList<String>(entries.size());
+
+		for(Entry e : entries)
+			lines.add(e.toLine());
+
+		try {
+			if(!manifest.getParentFile().exists())
+				manifest.getParentFile().mkdirs();
+
+			OpenSPIMToolkit.writeAllLines(manifest, lines);
+		} catch(IOException ioe) {
+			ij.IJ.log("Couldn't write manifest for view " + view.getName() + ": " + ioe.getMessage());
+		}
+	}
+}
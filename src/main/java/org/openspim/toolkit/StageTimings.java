@@ -0,0 +1,117 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers how long each processor took per gigabyte of (on-disk) view
+ * data in earlier runs on a dataset, stored as
+ * <code>registration/timings.properties</code>. View processors record the
+ * busy time of each view (so the rate is per thread); other processors record
+ * their wall time against the whole dataset.
+ *
+ * @author LOCI
+ *
+ */
+public class StageTimings
+{
+	private static final double GB = 1024.0 * 1024.0 * 1024.0;
+
+	private final File file;
+	private final Properties stored = new Properties();
+	private final Map<String, double[]> current = new HashMap<String, double[]>();
+
+	public StageTimings(File file)
+	{
+		this.file = file;
+
+		if(!file.exists())
+			return;
+
+		try {
+			InputStream in = new FileInputStream(file);
+
+			try {
+				stored.load(in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException ioe) {
+			IJ.log("Couldn't read stored timings from " + file.getPath() + "; starting over.");
+		}
+	}
+
+	public static StageTimings forSpec(SpimDataSpecifier spec)
+	{
+		return new StageTimings(new File(spec.getRegistrationDirectory(), "timings.properties"));
+	}
+
+	public synchronized void record(Processor proc, double seconds, long bytes)
+	{
+		String key = proc.getClass().getName();
+		double[] totals = current.get(key);
+
+		if(totals == null)
+			current.put(key, totals = new double[2]);
+
+		totals[0] += seconds;
+		totals[1] += bytes;
+	}
+
+	/**
+	 * @return seconds per gigabyte for the given processor, or NaN if it has
+	 *         never been timed on this dataset
+	 */
+	public synchronized double getSecondsPerGB(Processor proc)
+	{
+		String value = stored.getProperty(proc.getClass().getName());
+
+		return value != null ? Double.parseDouble(value) : Double.NaN;
+	}
+
+	/**
+	 * Folds this run's timings into the stored ones and writes them out.
+	 */
+	public synchronized void save()
+	{
+		for(Map.Entry<String, double[]> entry : current.entrySet())
+		{
+			if(entry.getValue()[1] <= 0)
+				continue;
+
+			double rate = entry.getValue()[0] / (entry.getValue()[1] / GB);
+			String old = stored.getProperty(entry.getKey());
+
+			if(old != null)
+				rate = (rate + Double.parseDouble(old)) / 2;
+
+			stored.setProperty(entry.getKey(), Double.toString(rate));
+		}
+
+		current.clear();
+
+		try {
+			if(!file.getParentFile().exists())
+				file.getParentFile().mkdirs();
+
+			OutputStream out = new FileOutputStream(file);
+
+			try {
+				stored.store(out, "Seconds per GB of view data, per processor");
+			} finally {
+				out.close();
+			}
+		} catch(IOException ioe) {
+			IJ.log("Couldn't save timings to " + file.getPath() + ": " + ioe.getMessage());
+		}
+	}
+}
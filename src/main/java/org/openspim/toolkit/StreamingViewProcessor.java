@@ -0,0 +1,125 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openspim.toolkit.io.PlaneStream;
+
+/**
+ * A view processor whose work is local to each z plane. Rather than being
+ * handed the whole stack, it sees the planes one at a time, in z order,
+ * through a {@link PlaneStream} that reads a few planes ahead. Only a handful
+ * of planes are in memory at once, so views larger than the heap can be
+ * read. Views that are changed are loaded whole and replaced atomically,
+ * unless the run {@link Processor.Params#inPlace edits in place}: then
+ * changed planes of uncompressed views are written straight back.
+ *
+ * @author LOCI
+ *
+ */
+public abstract class StreamingViewProcessor extends ViewProcessor
+{
+	/**
+	 * Called before the first plane of a view.
+	 */
+	protected abstract void beginStream(Params par, File view, PlaneStream stream);
+
+	/**
+	 * Processes one plane; changes to it are written back to the view if
+	 * this returns true.
+	 *
+	 * @param z the plane's index, from 0
+	 * @return whether the plane was changed
+	 */
+	protected abstract boolean processPlane(Params par, File view, int z, ImageProcessor plane);
+
+	/**
+	 * Called after the last plane of a view (even if processing failed).
+	 */
+	protected abstract void endStream(Params par, File view);
+
+	private volatile boolean inPlace; // For the current run; see prepare().
+
+	@Override
+	public void prepare(Params params)
+	{
+		super.prepare(params);
+		inPlace = params.inPlace;
+	}
+
+	/**
+	 * @return whether this processor ever changes planes; if not, views are
+	 *         opened read-only
+	 */
+	protected boolean modifiesPlanes()
+	{
+		return true;
+	}
+
+	/**
+	 * @return how many planes to read ahead of the one being processed
+	 */
+	protected int getLookAhead()
+	{
+		return 4;
+	}
+
+	@Override
+	public double getMemoryMultiplier()
+	{
+		// Changed views are loaded whole, unless edited in place.
+		if(modifiesPlanes() && !inPlace)
+			return 1.0;
+
+		// Only a few planes are held at once; this just leaves some room for them.
+		return 0.1;
+	}
+
+	@Override
+	public boolean processView(Params par, File view)
+	{
+		PlaneStream stream;
+
+		try {
+			stream = PlaneStream.open(view, modifiesPlanes(), par.inPlace, getLookAhead(), par.views, par.writes, par.io);
+		} catch(IOException ioe) {
+			IJ.handleException(ioe);
+			return false;
+		}
+
+		boolean done = false;
+
+		try {
+			beginStream(par, view, stream);
+
+			ImageProcessor plane;
+			for(int z = 0; (plane = stream.next()) != null; ++z)
+			{
+				if(processPlane(par, view, z, plane))
+					stream.write(z, plane);
+
+				reportProgress(view, (z + 1) / (float) stream.getDepth());
+			}
+
+			done = true;
+		} catch(IOException ioe) {
+			IJ.handleException(ioe);
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} finally {
+			endStream(par, view);
+
+			try {
+				stream.close();
+			} catch(IOException ioe) {
+				IJ.handleException(ioe);
+				done = false;
+			}
+		}
+
+		return done;
+	}
+}
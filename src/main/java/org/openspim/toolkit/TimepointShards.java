@@ -0,0 +1,80 @@
+package org.openspim.toolkit;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Splits an invocation covering a whole dataset into one invocation per
+ * timepoint, and runs them on the pipeline's executor. Shards see the same
+ * data directory, so their results land in the usual registration and
+ * output directories.
+ * <p>
+ * The legacy plugins shards call keep their settings in static fields, so
+ * calls into them must hold {@link #PLUGINS}, and shards run one after
+ * another (the plugins parallelize within a call themselves). Sharding
+ * doesn't make a run faster; it bounds what a single plugin call works on
+ * to one timepoint, and has each timepoint's results out as soon as it is
+ * done. Each shard reserves the estimated size of its timepoint's views
+ * (times a multiplier) from the memory budget just before it runs.
+ *
+ * @author LOCI
+ *
+ */
+public class TimepointShards
+{
+	/**
+	 * Held around each call of a legacy (static-state) plugin.
+	 */
+	public static final Object PLUGINS = new Object();
+
+	public static interface Invocation
+	{
+		public abstract void run(SpimDataSpecifier spec);
+	}
+
+	/**
+	 * @param title the name to report progress under
+	 * @param multiplier memory needed per shard, as a multiple of its views' decoded size
+	 */
+	public static void run(final Processor.Params params, String title, double multiplier, final Invocation invocation)
+			throws InterruptedException, ExecutionException
+	{
+		final ProgressBus progress = new ProgressBus(title, params.spec.getTimepoints().count());
+
+		for(int timepoint : params.spec.getTimepoints())
+		{
+			final SpimDataSpecifier shard = params.spec.forTimepoint(timepoint);
+			final File first = shard.getViews().get(0);
+			final long reserved = admit(params, shard, multiplier);
+
+			params.invokeOn.submit(new Callable<Void>() {
+				@Override
+				public Void call()
+				{
+					try {
+						invocation.run(shard);
+						progress.update(first, 1.0f);
+					} finally {
+						if(params.memory != null)
+							params.memory.release(reserved);
+					}
+
+					return null;
+				}
+			}).get();
+		}
+	}
+
+	private static long admit(Processor.Params params, SpimDataSpecifier shard, double multiplier) throws InterruptedException
+	{
+		if(params.memory == null)
+			return 0;
+
+		long bytes = 0;
+		for(File view : shard)
+			bytes += MemoryBudget.estimateViewBytes(view);
+
+		return params.memory.acquire((long) (bytes * multiplier));
+	}
+}
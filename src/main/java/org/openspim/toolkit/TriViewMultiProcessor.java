@@ -30,6 +30,8 @@ import javax.swing.JCheckBox;
 import org.apache.commons.math3.geometry.euclidean.threed.PolyhedronsSet;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.io.IoLimiter;
+import org.openspim.toolkit.io.PlaneStream;
 import org.python.antlr.PythonParser.attr_return;
 
 public class TriViewMultiProcessor {
@@ -46,19 +48,39 @@ public class TriViewMultiProcessor {
 		private final int depth;
 
 		public TriView(double zperxy, File f) {
+			this(zperxy, f, null, null);
+		}
+
+		public TriView(double zperxy, File f, ViewCache cache, IoLimiter io) {
 			this.zperxy = zperxy;
 			
-			ImagePlus src = IJ.openImage(f.getAbsolutePath());
+			// The projections only need one plane at a time.
+			PlaneStream src;
+			try {
+				src = PlaneStream.open(f, false, false, 4, cache, null, io);
+			} catch(IOException ioe) {
+				throw new RuntimeException("Couldn't open " + f.getName(), ioe);
+			}
+
+			int width = src.getWidth();
+			int height = src.getHeight();
+			int stackSize = src.getDepth();
 			
 			FloatProcessor ixy, ixz, izy, slice = null;
-			ixy = new FloatProcessor(src.getWidth(), src.getHeight());
+			ixy = new FloatProcessor(width, height);
 			ixy.and(0);
-			ixz = new FloatProcessor(src.getWidth(), src.getStackSize());
-			izy = new FloatProcessor(src.getStackSize(), src.getHeight());
-			float colavgs[] = new float[src.getWidth()];
-
-			for(int z = 1; z <= src.getStackSize(); ++z) {
-				slice = src.getStack().getProcessor(z).toFloat(0, slice);
+			ixz = new FloatProcessor(width, stackSize);
+			izy = new FloatProcessor(stackSize, height);
+			float colavgs[] = new float[width];
+
+			for(int z = 1; z <= stackSize; ++z) {
+				try {
+					slice = src.next().toFloat(0, slice);
+				} catch(IOException ioe) {
+					throw new RuntimeException("Couldn't read plane " + z + " of " + f.getName(), ioe);
+				} catch(InterruptedException ie) {
+					throw new RuntimeException("Interrupted while reading " + f.getName(), ie);
+				}
 				ixy.copyBits(slice, 0, 0, FloatBlitter.ADD);
 
 				for(int y = 0; y < slice.getHeight(); ++y) {
@@ -82,7 +104,7 @@ public class TriViewMultiProcessor {
 					ixz.setf(x, z - 1, colavgs[x] / (float)slice.getWidth());
 			}
 
-			ixy.multiply(1 / (double)src.getStackSize());
+			ixy.multiply(1 / (double)stackSize);
 			ixy = (FloatProcessor) ixy.resize((int) (ixy.getWidth() * SCALE), (int) (ixy.getHeight() * SCALE));
 			ixz = (FloatProcessor) ixz.resize((int) (ixz.getWidth() * SCALE), (int) (ixz.getHeight() * zperxy * SCALE));
 			izy = (FloatProcessor) izy.resize((int) (izy.getWidth() * zperxy * SCALE), (int) (izy.getHeight() * SCALE));
@@ -93,10 +115,14 @@ public class TriViewMultiProcessor {
 
 			ImagePlus.addImageListener(this);
 
-			procStack = new ImageStack(src.getWidth(), src.getHeight());
-			this.depth = src.getStackSize();
+			procStack = new ImageStack(width, height);
+			this.depth = stackSize;
 
-			src.close();
+			try {
+				src.close();
+			} catch(IOException ioe) {
+				IJ.log("Couldn't close " + f.getName() + ": " + ioe.getMessage());
+			}
 		}
 
 		public ImageStack show() {
@@ -196,31 +222,47 @@ public class TriViewMultiProcessor {
 		return new File(OpenSPIMToolkit.getRegistrationDirectory(view), view.getName() + ".3vmp.hull.tiff");
 	}
 
-	private static boolean loadHullForView(File view) {
+	private static boolean loadHullForView(Processor.Params par, File view) {
 		File hull = hullFilePath(view);
 
-		if(hull.exists())
+		if(!hull.exists())
+			return false;
+
+		IoLimiter.Permit permit = IoLimiter.acquire(par.io, hull);
+		try {
 			hullMap.put(view, IJ.openImage(hull.getAbsolutePath()));
+		} finally {
+			permit.release();
+		}
 
-		return hull.exists();
+		return true;
 	}
 
-	private static void saveHullForView(File view) {
+	private static boolean saveHullForView(Processor.Params par, File view) {
 		ImagePlus hull = hullMap.get(view);
 		File path = hullFilePath(view);
 
-		IJ.saveAsTiff(hull, path.getAbsolutePath());
+		IoLimiter.Permit permit = IoLimiter.acquire(par.io, path);
+		try {
+			return IJ.saveAsTiff(hull, path.getAbsolutePath());
+		} finally {
+			permit.release();
+		}
 	}
 
 	public static class SampleExcluder extends BeadProcessor {
+		private Map<File, Params> params = new Hashtable<File, Params>(); // For saving the hull.
+
 		@Override
 		public void beginView(Params par, File f) {
+			params.put(f, par);
+
 			if(leave.isSelected() && hullMap.containsKey(f))
 				return;
-			else if(load.isSelected() && loadHullForView(f))
+			else if(load.isSelected() && loadHullForView(par, f))
 				return;
 			else
-				hullMap.put(f, new ImagePlus("", new TriView(par.zUmPerPix / par.xyUmPerPix, f).show()));
+				hullMap.put(f, new ImagePlus("", new TriView(par.zUmPerPix / par.xyUmPerPix, f, par.views, par.io).show()));
 		}
 
 		@Override
@@ -228,15 +270,35 @@ public class TriViewMultiProcessor {
 			return hullMap.get(view).getStack().getProcessor((int) at.getZ() + 1).get((int) at.getX(), (int) at.getY()) == 0;
 		}
 
+		// Only reads the hull, so beads can be checked on every core at once.
+		@Override
+		public boolean filtersInParallel() {
+			return true;
+		}
+
 		@Override
-		public void endView(File view) {
-			if(save.isSelected())
-				saveHullForView(view);
+		protected void filterBeads(File view, double[] x, double[] y, double[] z, int from, int to, long[] keep) {
+			ImageStack hull = hullMap.get(view).getStack();
+
+			for(int i = from; i < to; ++i)
+				if(hull.getVoxel((int) x[i], (int) y[i], (int) z[i]) == 0)
+					keep[i >>> 6] |= 1L << (i & 63);
+		}
+
+		@Override
+		public boolean endView(File view) {
+			Params par = params.remove(view);
+
+			// The beads are filtered either way; only the next run has to ask again.
+			if(save.isSelected() && !saveHullForView(par, view))
+				IJ.log("Couldn't save the selection for view " + view.getName() + ".");
 
 			if(!leave.isSelected()) {
 				hullMap.get(view).close();
 				hullMap.remove(view);
 			}
+
+			return true;
 		}
 
 		@Override
@@ -256,117 +318,68 @@ public class TriViewMultiProcessor {
 		}
 	}
 
-	public static class SampleIsolator extends ViewProcessor {
-		// This is where Java falls flat on its face.
-		private void nullifierLoopByte(ImagePlus imp, ImagePlus hull) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int d = imp.getStackSize();
-			ImageStack stck = imp.getStack();
-			ImageStack hstck = hull.getStack();
+	public static class SampleIsolator extends StreamingViewProcessor {
+		private Map<File, byte[][]> hulls = new Hashtable<File, byte[][]>();
 
-			for(int z = 1; z <= d; ++z) {
-				byte[] pixels = (byte[]) stck.getPixels(z);
-				byte[] hullpix = (byte[]) hstck.getPixels(z);
-
-				for(int y=0; y < h; ++y)
-					for(int x = 0; x < w; ++x)
-						pixels[x + y*w] &= hullpix[x + y*w];
-
-				stck.setPixels(pixels, z);
-			}
-		}
-
-		private void nullifierLoopShort(ImagePlus imp, ImagePlus hull) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int d = imp.getStackSize();
-			ImageStack stck = imp.getStack();
-			ImageStack hstck = hull.getStack();
+		@Override
+		protected void beginStream(Params par, File view, PlaneStream stream) {
+			if(leave.isSelected() && hullMap.containsKey(view))
+				;
+			else if(load.isSelected() && loadHullForView(par, view))
+				;
+			else
+				hullMap.put(view, new ImagePlus("", new TriView(par.zUmPerPix / par.xyUmPerPix, view, par.views, par.io).show()));
 
-			for(int z = 1; z <= d; ++z) {
-				short[] pixels = (short[]) stck.getPixels(z);
-				byte[] hullpix = (byte[]) hstck.getPixels(z);
+			ImageStack hstck = hullMap.get(view).getStack();
+			byte[][] planes = new byte[hstck.getSize()][];
 
-				for(int y=0; y < h; ++y)
-					for(int x = 0; x < w; ++x)
-						pixels[x + y*w] *= (hullpix[x + y*w] & 1);
+			for(int z = 1; z <= planes.length; ++z)
+				planes[z - 1] = (byte[]) hstck.getPixels(z);
 
-				stck.setPixels(pixels, z);
-			}
+			hulls.put(view, planes);
 		}
 
-		private void nullifierLoopInt(ImagePlus imp, ImagePlus hull) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int d = imp.getStackSize();
-			ImageStack stck = imp.getStack();
-			ImageStack hstck = hull.getStack();
-
-			for(int z = 1; z <= d; ++z) {
-				int[] pixels = (int[]) stck.getPixels(z);
-				byte[] hullpix = (byte[]) hstck.getPixels(z);
-
-				for(int y=0; y < h; ++y)
-					for(int x = 0; x < w; ++x)
-						pixels[x + y*w] *= (hullpix[x + y*w] & 1);
-
-				stck.setPixels(pixels, z);
+		// Zeroes everything outside the hull, one plane at a time.
+		@Override
+		protected boolean processPlane(Params par, File view, int z, ImageProcessor plane) {
+			byte[] hullpix = hulls.get(view)[z];
+			Object pixels = plane.getPixels();
+
+			if(pixels instanceof byte[]) {
+				byte[] p = (byte[]) pixels;
+				for(int i = 0; i < p.length; ++i)
+					p[i] *= (hullpix[i] & 1);
+			} else if(pixels instanceof short[]) {
+				short[] p = (short[]) pixels;
+				for(int i = 0; i < p.length; ++i)
+					p[i] *= (hullpix[i] & 1);
+			} else if(pixels instanceof float[]) {
+				float[] p = (float[]) pixels;
+				for(int i = 0; i < p.length; ++i)
+					p[i] *= (hullpix[i] & 1);
+			} else {
+				int[] p = (int[]) pixels;
+				for(int i = 0; i < p.length; ++i)
+					p[i] *= (hullpix[i] & 1);
 			}
-		}
-
-		private void nullifierLoopFloat(ImagePlus imp, ImagePlus hull) {
-			int w = imp.getWidth();
-			int h = imp.getHeight();
-			int d = imp.getStackSize();
-			ImageStack stck = imp.getStack();
-			ImageStack hstck = hull.getStack();
-
-			for(int z = 1; z <= d; ++z) {
-				float[] pixels = (float[]) stck.getPixels(z);
-				byte[] hullpix = (byte[]) hstck.getPixels(z);
 
-				for(int y=0; y < h; ++y)
-					for(int x = 0; x < w; ++x)
-						pixels[x + y*w] *= (hullpix[x + y*w] & 1);
-
-				stck.setPixels(pixels, z);
-			}
+			return true;
 		}
 
 		@Override
-		public void processView(Params par, File view) {
-			if(leave.isSelected() && hullMap.containsKey(view))
-				;
-			else if(load.isSelected() && loadHullForView(view))
-				;
-			else
-				hullMap.put(view, new ImagePlus("", new TriView(par.zUmPerPix / par.xyUmPerPix, view).show()));
-
-			ImagePlus hull = hullMap.get(view);
+		protected void endStream(Params par, File view) {
+			hulls.remove(view);
 
-			ImagePlus imp = IJ.openImage(view.getAbsolutePath());
-
-			switch(imp.getType()) {
-			case ImagePlus.GRAY8:
-				nullifierLoopByte(imp, hull);
-				break;
-			case ImagePlus.GRAY16:
-				nullifierLoopShort(imp, hull);
-				break;
-			case ImagePlus.GRAY32:
-				nullifierLoopFloat(imp, hull);
-				break;
-			default:
-				nullifierLoopInt(imp, hull);
-				break;
+			if(hullMap.containsKey(view)) {
+				hullMap.get(view).close();
+				hullMap.remove(view);
 			}
+		}
 
-			IJ.save(imp, view.getAbsolutePath());
-			imp.close();
-
-			hullMap.get(view).close();
-			hullMap.remove(view);
+		@Override
+		public double getMemoryMultiplier() {
+			// A byte-per-voxel hull (as big as the view for 8-bit data); the view itself is streamed.
+			return 1.0;
 		}
 
 		@Override
@@ -0,0 +1,484 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openspim.toolkit.io.AtomicFiles;
+import org.openspim.toolkit.io.IoLimiter;
+
+/**
+ * Decoded views shared between processors, so that a view taken through
+ * several processors in a row is read and decoded once instead of once per
+ * processor. Views are keyed by file, and a cached view is only handed out
+ * while the file's modification time and length are those it was decoded
+ * (or last written back) with.
+ * <p>
+ * Processors {@link #acquire(File) acquire} a view, and {@link #release(File,
+ * boolean) release} it when they're done, saying whether they changed it.
+ * Changed views are only written back when they're evicted or
+ * {@link #flush() flushed}, so anything that reads views from disk rather
+ * than through the cache (e.g. registration and fusion) must be preceded by
+ * a flush. Once the cached views add up to more than the budget, the least
+ * recently used ones that nobody holds are evicted; changed ones are written
+ * back in the background if the cache has a {@link WriteBehindQueue}.
+ * <p>
+ * A view that can't be written back stays cached, and changed: evicting it
+ * puts it back (and logs why), and flushing it throws. Nothing is dropped
+ * until it has been written.
+ * <p>
+ * The cache takes its own {@link IoLimiter} permits for decoding and writing
+ * back views, so callers mustn't hold one for the view while acquiring,
+ * releasing or flushing it.
+ *
+ * @author LOCI
+ *
+ */
+public class ViewCache
+{
+	private static class Entry
+	{
+		final File view;
+		ImagePlus image; // Null while being decoded.
+		long modified, length; // Of the file, when it was decoded or last written.
+		long bytes;
+		int refs = 0;
+		boolean dirty = false;
+		boolean busy = false; // Being decoded or written back.
+
+		Entry(File view)
+		{
+			this.view = view;
+		}
+	}
+
+	private final long budget;
+	private long used;
+	private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+	private final Map<File, Entry> evicting = new HashMap<File, Entry>();
+	private volatile WriteBehindQueue writes;
+	private volatile IoLimiter io;
+
+	public ViewCache(long budget)
+	{
+		this.budget = budget;
+		this.used = 0;
+	}
+
+	/**
+	 * Creates a cache for the given share (0-1) of the maximum heap size.
+	 */
+	public static ViewCache ofHeapShare(double share)
+	{
+		return new ViewCache((long) (Runtime.getRuntime().maxMemory() * share));
+	}
+
+	/**
+	 * Has evicted views written back on the given queue (or, if null, by the
+	 * thread that evicted them).
+	 */
+	public void setWriteBehind(WriteBehindQueue writes)
+	{
+		this.writes = writes;
+	}
+
+	/**
+	 * Has views decoded and written back under permits from the given limiter
+	 * (or, if null, without any).
+	 */
+	public void setIoLimiter(IoLimiter io)
+	{
+		this.io = io;
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+
+	/**
+	 * Gets a view, decoding it if it isn't cached (or has changed on disk
+	 * since it was). The view must be {@link #release(File, boolean)
+	 * released} afterwards.
+	 *
+	 * @return the decoded view, or null if it couldn't be opened
+	 */
+	public ImagePlus acquire(File view)
+	{
+		Entry e;
+
+		synchronized(this)
+		{
+			e = settle(view);
+
+			if(e != null)
+			{
+				++e.refs;
+				return e.image;
+			}
+
+			e = new Entry(view);
+			e.busy = true;
+			e.refs = 1;
+			entries.put(view, e);
+		}
+
+		long modified = view.lastModified();
+		long length = view.length();
+		ImagePlus image = null;
+		List<Entry> evicted;
+
+		IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+		try {
+			image = IJ.openImage(view.getAbsolutePath());
+		} finally {
+			permit.release();
+
+			synchronized(this)
+			{
+				e.busy = false;
+
+				if(image == null)
+				{
+					entries.remove(view);
+					evicted = new ArrayList<Entry>();
+				}
+				else
+				{
+					e.image = image;
+					e.modified = modified;
+					e.length = length;
+					e.bytes = (long) image.getWidth() * image.getHeight() * image.getStackSize() * image.getBytesPerPixel();
+					used += e.bytes;
+					evicted = evict();
+				}
+
+				notifyAll();
+			}
+		}
+
+		writeBack(evicted);
+		return image;
+	}
+
+	/**
+	 * Like {@link #acquire(File)}, but only if the view is already cached.
+	 *
+	 * @return the decoded view, or null if it isn't cached
+	 */
+	public synchronized ImagePlus acquireIfCached(File view)
+	{
+		Entry e = settle(view);
+
+		if(e == null)
+			return null;
+
+		++e.refs;
+		return e.image;
+	}
+
+	/**
+	 * Gives back a view obtained from {@link #acquire(File)}.
+	 *
+	 * @param modified whether the view was changed, and so has to be written back
+	 */
+	public void release(File view, boolean modified)
+	{
+		List<Entry> evicted;
+
+		synchronized(this)
+		{
+			Entry e = entries.get(view);
+
+			if(e == null || e.refs == 0)
+				return;
+
+			--e.refs;
+			e.dirty |= modified;
+			evicted = evict();
+			notifyAll();
+		}
+
+		writeBack(evicted);
+	}
+
+	/**
+	 * Writes a view back to disk if it has been changed. It stays cached.
+	 *
+	 * @throws IOException if it couldn't be written (it stays changed)
+	 */
+	public void flush(File view) throws IOException
+	{
+		Entry e;
+
+		synchronized(this)
+		{
+			e = settle(view);
+
+			if(e == null || !e.dirty)
+				return;
+
+			e.busy = true;
+		}
+
+		try {
+			write(e);
+		} finally {
+			synchronized(this)
+			{
+				e.busy = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes every changed view back to disk.
+	 *
+	 * @throws IOException if any view couldn't be written (the rest are
+	 *         written all the same); the first failure, with how many there
+	 *         were
+	 */
+	public void flush() throws IOException
+	{
+		List<File> dirty = new ArrayList<File>();
+
+		synchronized(this)
+		{
+			for(Entry e : entries.values())
+				if(e.dirty)
+					dirty.add(e.view);
+		}
+
+		IOException first = null;
+		int failed = 0;
+
+		for(File view : dirty)
+		{
+			try {
+				flush(view);
+			} catch(IOException ioe) {
+				if(first == null)
+					first = ioe;
+
+				++failed;
+			}
+		}
+
+		if(first != null)
+			throw new IOException(failed + " view(s) couldn't be written back", first);
+	}
+
+	/**
+	 * Writes a view back if it has been changed, and drops it from the cache;
+	 * for processors about to change the file behind the cache's back. The
+	 * view must not be held.
+	 *
+	 * @throws IOException if the view's changes couldn't be written (it then
+	 *         stays cached)
+	 */
+	public void invalidate(File view) throws IOException
+	{
+		flush(view);
+
+		synchronized(this)
+		{
+			Entry e = settle(view);
+
+			if(e == null)
+				return;
+
+			entries.remove(view);
+			used -= e.bytes;
+			e.image.close();
+		}
+	}
+
+	/**
+	 * Writes every changed view back and empties the cache.
+	 *
+	 * @throws IOException if any view couldn't be written; its changes are
+	 *         lost, since the cache is emptied all the same
+	 */
+	public void close() throws IOException
+	{
+		try {
+			flush();
+		} finally {
+			synchronized(this)
+			{
+				for(Entry e : entries.values())
+					if(e.image != null)
+						e.image.close();
+
+				entries.clear();
+				used = 0;
+			}
+		}
+	}
+
+	/**
+	 * Waits until a view is neither being decoded nor written, and drops it if
+	 * its file has changed since.
+	 *
+	 * @return the view's entry, or null if it isn't (or is no longer) cached
+	 */
+	private Entry settle(File view)
+	{
+		boolean interrupted = false;
+
+		try {
+			while(true)
+			{
+				Entry e = entries.get(view);
+
+				if(evicting.containsKey(view) || (e != null && e.busy))
+				{
+					try {
+						wait();
+					} catch(InterruptedException ie) {
+						interrupted = true;
+					}
+
+					continue;
+				}
+
+				if(e == null || e.refs > 0 || (view.lastModified() == e.modified && view.length() == e.length))
+					return e;
+
+				if(e.dirty)
+					IJ.log("View " + view.getName() + " changed on disk; discarding its cached changes.");
+
+				entries.remove(view);
+				used -= e.bytes;
+				e.image.close();
+				return null;
+			}
+		} finally {
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Removes least recently used views that nobody holds until the cache is
+	 * within its budget. Changed views are set aside to be written back (by
+	 * {@link #writeBack(List)}, outside the lock).
+	 */
+	private List<Entry> evict()
+	{
+		List<Entry> evicted = new ArrayList<Entry>();
+
+		for(Iterator<Entry> it = entries.values().iterator(); used > budget && it.hasNext(); )
+		{
+			Entry e = it.next();
+
+			if(e.refs > 0 || e.busy)
+				continue;
+
+			it.remove();
+			used -= e.bytes;
+
+			if(e.dirty)
+			{
+				evicting.put(e.view, e);
+				evicted.add(e);
+			}
+			else
+			{
+				e.image.close();
+			}
+		}
+
+		return evicted;
+	}
+
+	private void writeBack(List<Entry> evicted)
+	{
+		WriteBehindQueue queue = writes;
+
+		for(final Entry e : evicted)
+		{
+			if(queue != null)
+			{
+				try {
+					queue.submit(e.view, e.bytes, new WriteBehindQueue.Job() {
+						@Override
+						public void run() throws IOException
+						{
+							writeBack(e);
+						}
+					});
+					continue;
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			try {
+				writeBack(e);
+			} catch(IOException ioe) {
+				// Already logged; the view stays cached.
+			}
+		}
+	}
+
+	/**
+	 * Writes back an evicted view, and lets go of it; or if it can't be
+	 * written, puts it back in the cache, still changed.
+	 */
+	private void writeBack(Entry e) throws IOException
+	{
+		boolean written = false;
+
+		try {
+			write(e);
+			written = true;
+		} catch(IOException ioe) {
+			IJ.log("Couldn't write back view " + e.view.getName() + " (" + ioe.getMessage() + "); keeping it cached.");
+			throw ioe;
+		} finally {
+			if(written)
+				e.image.close();
+
+			synchronized(this)
+			{
+				if(!written)
+				{
+					entries.put(e.view, e);
+					used += e.bytes;
+				}
+
+				evicting.remove(e.view);
+				notifyAll();
+			}
+		}
+	}
+
+	private void write(Entry e) throws IOException
+	{
+		IoLimiter.Permit permit = IoLimiter.acquire(io, e.view);
+		try {
+			AtomicFiles.saveTiff(e.image, e.view);
+		} finally {
+			permit.release();
+		}
+
+		e.modified = e.view.lastModified();
+		e.length = e.view.length();
+		e.dirty = false;
+	}
+}
@@ -1,9 +1,10 @@
 package org.openspim.toolkit;
 
 import ij.IJ;
+import ij.ImagePlus;
 
 import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -11,22 +12,36 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.io.AtomicFiles;
+import org.openspim.toolkit.io.IoLimiter;
+
 public abstract class ViewProcessor implements Processor {
-	private Map<File, Float> progressMap = new Hashtable<File, Float>();
+	private volatile ProgressBus progress;
+	private volatile String configuration; // For the current run; see prepare().
 	
 	@Override
 	public void performProcessing(final Params params) throws InterruptedException, ExecutionException
 	{
+		progress = new ProgressBus(toString(), params.spec.count());
+		prepare(params);
+
 		List<Future<Void>> futures = new LinkedList<Future<Void>>();
 		for(final File f : params.spec)
 		{
-			progressMap.put(f, 0.0f);
+			final long reserved = admit(params, f, getMemoryMultiplier());
+			final long queued = System.nanoTime();
 
 			futures.add(params.invokeOn.submit(new Callable<Void>() {
 				@Override
 				public Void call()
 				{
-					ViewProcessor.this.processView(params, f);
+					try {
+						ViewProcessor.this.runView(params, f, System.nanoTime() - queued);
+					} finally {
+						if(params.memory != null)
+							params.memory.release(reserved);
+					}
 
 					return null;
 				}
@@ -37,18 +52,307 @@ public abstract class ViewProcessor implements Processor {
 			f.get();
 	}
 
+	/**
+	 * Runs a chain of view processors over every view, letting each view
+	 * move through the whole chain on its own rather than waiting for all
+	 * other views to finish each processor.
+	 *
+	 * @param params the parameters shared by the chain (used for the spec and executor)
+	 * @param chain the processors, in order
+	 * @param chainParams per-processor parameters (e.g. with their own stage)
+	 */
+	public static void performPipelined(final Params params, final List<ViewProcessor> chain, final List<Params> chainParams) throws InterruptedException, ExecutionException
+	{
+		for(int i = 0; i < chain.size(); ++i)
+			chain.get(i).prepare(chainParams.get(i));
+
+		double multiplier = 0;
+		for(ViewProcessor proc : chain)
+			multiplier = Math.max(multiplier, proc.getMemoryMultiplier());
+
+		for(ViewProcessor proc : chain)
+			proc.progress = new ProgressBus(proc.toString(), params.spec.count());
+
+		List<Future<Void>> futures = new LinkedList<Future<Void>>();
+		for(final File f : params.spec)
+		{
+			final long reserved = admit(params, f, multiplier);
+			final long queued = System.nanoTime();
+
+			futures.add(params.invokeOn.submit(new Callable<Void>() {
+				@Override
+				public Void call()
+				{
+					try {
+						long wait = System.nanoTime() - queued;
+
+						for(int i = 0; i < chain.size(); ++i)
+							chain.get(i).runView(chainParams.get(i), f, i == 0 ? wait : 0);
+					} finally {
+						if(params.memory != null)
+							params.memory.release(reserved);
+					}
+
+					return null;
+				}
+			}));
+		}
+
+		for(Future<Void> f : futures)
+			f.get();
+	}
+
+	/**
+	 * Waits until the view's estimated footprint fits in the memory budget
+	 * (if there is one), and reserves it.
+	 */
+	private static long admit(Params params, File view, double multiplier) throws InterruptedException
+	{
+		if(params.memory == null)
+			return 0;
+
+		return params.memory.acquire((long) (MemoryBudget.estimateViewBytes(view) * multiplier));
+	}
+
+	/**
+	 * How much memory this processor needs per view, as a multiple of the
+	 * view's decoded size. Processors that hold more than the one decoded
+	 * stack at a time (e.g. an image and a mask) should override this. Asked
+	 * after {@link #prepare(Processor.Params)}.
+	 */
+	public double getMemoryMultiplier()
+	{
+		return 1.0;
+	}
+
+	/**
+	 * Reads this processor's settings for the coming run. This is done once,
+	 * on the thread setting the run up, rather than on the threads processing
+	 * views: the settings live in Swing components.
+	 */
+	public void prepare(Params params)
+	{
+		configuration = params.incremental ? getConfiguration(params) : null;
+	}
+
+	/**
+	 * Processes a single view; both the stage-at-a-time and the pipelined
+	 * modes of execution go through here.
+	 */
+	public void runView(Params params, File view)
+	{
+		runView(params, view, 0);
+	}
+
+	/**
+	 * @param queueWaitNanos how long the view waited in the executor's queue, for the run report
+	 */
+	public void runView(final Params params, final File view, long queueWaitNanos)
+	{
+		final String key = params.stage + "." + getClass().getName();
+		if(params.incremental && configuration == null)
+			prepare(params);
+
+		final String config = configuration;
+
+		// Whatever an earlier processor left to be written has to land first.
+		if(params.writes != null)
+		{
+			try {
+				for(File input : getInputs(view))
+					if(!params.writes.await(input))
+						reportEvent("writing " + input.getName() + " failed; using it as it was.");
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		if(params.incremental && StageManifest.isComplete(view, key, config, getInputs(view)))
+		{
+			reportEvent("view " + view.getName() + " is up to date; skipping.");
+			reportProgress(view, 1.0f);
+			return;
+		}
+
+		long read = 0;
+		for(File input : getInputs(view))
+			read += input.length();
+
+		Map<File, long[]> before = params.report != null ? RunReport.snapshot(view) : null;
+		RunReport.Measurement measurement = params.report != null ? params.report.begin(params.stage, this, view, queueWaitNanos) : null;
+		long start = System.nanoTime();
+		long bytes = view.length();
+
+		boolean processed = false;
+
+		try {
+			processed = processView(params, view);
+			reportProgress(view, 1.0f);
+		} finally {
+			if(measurement != null)
+			{
+				measurement.setBytes(read, RunReport.bytesWritten(before, RunReport.snapshot(view)));
+				measurement.end();
+			}
+		}
+
+		if(params.timings != null)
+			params.timings.record(this, (System.nanoTime() - start) / 1e9, bytes);
+
+		if(!processed)
+		{
+			reportEvent("processing view " + view.getName() + " failed" + (params.incremental ? "; it will be tried again next run." : "."));
+			return;
+		}
+
+		if(params.incremental)
+		{
+			// The manifest records the view as it is on disk.
+			if(params.views != null)
+			{
+				try {
+					params.views.flush(view);
+				} catch(IOException ioe) {
+					reportEvent("writing " + view.getName() + " failed (" + ioe.getMessage() + "); it will be processed again next run.");
+					return;
+				}
+			}
+
+			Runnable mark = new Runnable() {
+				@Override
+				public void run()
+				{
+					StageManifest.markComplete(view, key, config, getInputs(view));
+				}
+			};
+
+			if(params.writes != null)
+				params.writes.whenWritten(view, mark);
+			else
+				mark.run();
+		}
+	}
+
+	/**
+	 * Opens a whole view, through the view cache if there is one. Reading it
+	 * from disk takes an I/O permit (the cache takes its own).
+	 */
+	protected static ImagePlus openView(Params params, File view)
+	{
+		if(params.views != null)
+		{
+			ImagePlus cached = params.views.acquireIfCached(view);
+
+			if(cached != null)
+				return cached;
+		}
+
+		if(params.views != null)
+			return params.views.acquire(view);
+
+		IoLimiter.Permit permit = IoLimiter.acquire(params.io, view);
+		try {
+			return IJ.openImage(view.getAbsolutePath());
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Gives back a view from {@link #openView(Params, File)}, saving it if it
+	 * was changed (or leaving that to the cache, or the write-behind queue).
+	 *
+	 * @return false if the view couldn't be saved
+	 */
+	protected static boolean closeView(Params params, File view, ImagePlus image, boolean modified)
+	{
+		if(params.views != null)
+		{
+			params.views.release(view, modified);
+			return true;
+		}
+
+		if(modified && params.writes != null)
+		{
+			try {
+				params.writes.saveTiff(image, view);
+				return true;
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		boolean saved = true;
+
+		if(modified)
+		{
+			IoLimiter.Permit permit = IoLimiter.acquire(params.io, view);
+			try {
+				AtomicFiles.saveTiff(image, view);
+			} catch(IOException ioe) {
+				IJ.handleException(ioe);
+				saved = false;
+			} finally {
+				permit.release();
+			}
+		}
+
+		image.close();
+		return saved;
+	}
+
+	/**
+	 * The files this processor reads for a view. In incremental runs, a view
+	 * is reprocessed whenever any of them has changed.
+	 */
+	protected File[] getInputs(File view)
+	{
+		return new File[] { view };
+	}
+
+	/**
+	 * Everything about this processor's configuration that affects its
+	 * output; by default, its control panel's settings and the voxel size.
+	 */
+	protected String getConfiguration(Params params)
+	{
+		return LayoutUtils.readForm(getControlPanel()).toString() + " " + params.xyUmPerPix + "/" + params.zUmPerPix;
+	}
+
+	/**
+	 * Whether this processor must see every view finish the preceding
+	 * processors before it starts on any of them. Processors that only ever
+	 * look at one view at a time (the default) can be pipelined.
+	 */
+	public boolean requiresAllViews()
+	{
+		return false;
+	}
+
+	private ProgressBus getProgressBus()
+	{
+		ProgressBus bus = progress;
+
+		if(bus == null)
+			progress = bus = new ProgressBus(toString(), 1);
+
+		return bus;
+	}
+
 	protected void reportProgress(File f, float progress)
 	{
-		progressMap.put(f, progress);
-		
-		float overall = 0;
-		
-		for(Float value : progressMap.values())
-			overall += value / progressMap.size();
-		
-		IJ.showProgress(overall);
-		IJ.showStatus(String.format("%s: %.2f%%", toString(), overall*100));
+		getProgressBus().update(f, progress);
+	}
+
+	protected void reportEvent(String message)
+	{
+		getProgressBus().event(message);
 	}
 
-	public abstract void processView(Params p, File view);
+	/**
+	 * @return false if the view couldn't be processed (having said why); it
+	 *         is then not recorded as up to date
+	 */
+	public abstract boolean processView(Params p, File view);
 }
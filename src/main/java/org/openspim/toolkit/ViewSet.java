@@ -0,0 +1,158 @@
+package org.openspim.toolkit;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.openspim.toolkit.SpimDataSpecifier.MultiSpec;
+
+/**
+ * An immutable, indexed list of the views in a dataset, in timepoint-major
+ * order. Views are described by their timepoint and angle specifiers, and
+ * paths are only formatted when asked for, so even a set of millions of
+ * views is built instantly and takes constant memory. Being an immutable
+ * random-access list, it can be iterated by any number of threads at once,
+ * and split into independent pieces for parallel processing.
+ *
+ * @author LOCI
+ *
+ */
+public class ViewSet extends AbstractList<File> implements RandomAccess
+{
+	private final File directory;
+	private final String format;
+	private final MultiSpec timepoints;
+	private final MultiSpec angles;
+	private final int from, size;
+
+	/**
+	 * @param format the file name format; the timepoint is argument 1, the angle argument 2
+	 */
+	ViewSet(File directory, String format, MultiSpec timepoints, MultiSpec angles)
+	{
+		this(directory, format, timepoints, angles, 0, timepoints.count() * angles.count());
+	}
+
+	private ViewSet(File directory, String format, MultiSpec timepoints, MultiSpec angles, int from, int size)
+	{
+		this.directory = directory;
+		this.format = format;
+		this.timepoints = timepoints;
+		this.angles = angles;
+		this.from = from;
+		this.size = size;
+	}
+
+	@Override
+	public File get(int i)
+	{
+		return new File(directory, String.format(format, getTimepoint(i), getAngle(i)));
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	public int getTimepoint(int i)
+	{
+		return timepoints.get(absolute(i) / angles.count());
+	}
+
+	public int getAngle(int i)
+	{
+		return angles.get(absolute(i) % angles.count());
+	}
+
+	private int absolute(int i)
+	{
+		if(i < 0 || i >= size)
+			throw new IndexOutOfBoundsException(i + " of " + size);
+
+		return from + i;
+	}
+
+	/**
+	 * @return the index of the view at the given timepoint and angle, or -1
+	 *         if it isn't in this set
+	 */
+	public int indexOf(int timepoint, int angle)
+	{
+		int t = timepoints.indexOf(timepoint), a = angles.indexOf(angle);
+
+		if(t < 0 || a < 0)
+			return -1;
+
+		int i = t * angles.count() + a - from;
+		return i >= 0 && i < size ? i : -1;
+	}
+
+	/**
+	 * @return the view at the given timepoint and angle, or null if it isn't
+	 *         in this set
+	 */
+	public File get(int timepoint, int angle)
+	{
+		int i = indexOf(timepoint, angle);
+		return i >= 0 ? get(i) : null;
+	}
+
+	public ViewSet byTimepoint(int timepoint)
+	{
+		int t = timepoints.indexOf(timepoint);
+
+		if(t < 0)
+			return empty();
+
+		// A timepoint's views are contiguous; clip them to this set's range.
+		int start = Math.max(t * angles.count(), from), end = Math.min((t + 1) * angles.count(), from + size);
+
+		return end > start ? new ViewSet(directory, format, timepoints, angles, start, end - start) : empty();
+	}
+
+	public ViewSet byAngle(int angle)
+	{
+		int a = angles.indexOf(angle);
+
+		if(a < 0)
+			return empty();
+
+		// The first and last timepoints whose view at this angle falls in this set's range.
+		int n = angles.count();
+		int first = (from - a + n - 1) / n, last = (from + size - 1 - a) / n;
+
+		if(from - a < 0)
+			first = 0;
+
+		if(from + size - 1 - a < 0)
+			return empty();
+
+		return last >= first ? new ViewSet(directory, format, timepoints.slice(first, last + 1), MultiSpec.of(angle)) : empty();
+	}
+
+	private ViewSet empty()
+	{
+		return new ViewSet(directory, format, timepoints, angles, 0, 0);
+	}
+
+	/**
+	 * Splits this set into (at most) the given number of contiguous pieces of
+	 * nearly equal size.
+	 */
+	public List<ViewSet> split(int pieces)
+	{
+		pieces = Math.max(1, Math.min(pieces, size));
+		List<ViewSet> out = new ArrayList<ViewSet>(pieces);
+
+		for(int p = 0; p < pieces; ++p)
+		{
+			int start = (int) ((long) size * p / pieces), end = (int) ((long) size * (p + 1) / pieces);
+			out.add(new ViewSet(directory, format, timepoints, angles, from + start, end - start));
+		}
+
+		return out;
+	}
+}
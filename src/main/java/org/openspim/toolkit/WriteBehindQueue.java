@@ -0,0 +1,304 @@
+package org.openspim.toolkit;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.openspim.toolkit.io.AtomicFiles;
+import org.openspim.toolkit.io.IoLimiter;
+
+/**
+ * Writes views on a small pool of I/O threads of its own, so that the
+ * threads processing views can start on the next view rather than wait for
+ * the disk. Views waiting to be written hold on to their memory, so the
+ * queue only takes so many bytes: past that, {@link #submit(File, long, Job)
+ * submitting} blocks until earlier writes are done.
+ * <p>
+ * Writes to the same file happen in the order they were submitted. Anything
+ * about to read (or edit) a file that may still be being written should
+ * {@link #await(File) await} it, and anything that reads all the views from
+ * disk should wait at the {@link #barrier() barrier} first. Since views are
+ * written atomically, a reader that doesn't wait sees the file as it was
+ * before, never half-written.
+ * <p>
+ * Jobs take their own {@link IoLimiter} permits (as {@link #saveTiff(ImagePlus,
+ * File) saving} does), so the queue's threads count against the same
+ * per-device limit as everything else doing I/O.
+ *
+ * @author LOCI
+ *
+ */
+public class WriteBehindQueue
+{
+	public static final int THREADS = 2;
+
+	/**
+	 * The work of one write.
+	 */
+	public static interface Job
+	{
+		public abstract void run() throws IOException;
+	}
+
+	private static class Write
+	{
+		final File file;
+		final long bytes;
+		final List<Runnable> then = new ArrayList<Runnable>();
+		boolean written = false; // And now running what comes after.
+		boolean finished = false;
+		IOException failure;
+
+		Write(File file, long bytes)
+		{
+			this.file = file;
+			this.bytes = bytes;
+		}
+	}
+
+	private final long limit;
+	private long pending = 0;
+	private int outstanding = 0;
+	private final Map<File, Write> writes = new HashMap<File, Write>();
+	private final List<IOException> failures = new ArrayList<IOException>();
+	private final ExecutorService pool;
+	private volatile IoLimiter io;
+
+	/**
+	 * @param limit how many bytes may wait to be written at once (a single
+	 *        larger write is still let through on its own)
+	 * @param threads how many writes to run at once
+	 */
+	public WriteBehindQueue(long limit, int threads)
+	{
+		this.limit = limit;
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Write-behind " + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Creates a queue holding up to the given share (0-1) of the maximum heap
+	 * size.
+	 */
+	public static WriteBehindQueue ofHeapShare(double share)
+	{
+		return new WriteBehindQueue((long) (Runtime.getRuntime().maxMemory() * share), THREADS);
+	}
+
+	/**
+	 * Has views saved under permits from the given limiter (or, if null,
+	 * without any).
+	 */
+	public void setIoLimiter(IoLimiter io)
+	{
+		this.io = io;
+	}
+
+	public long getLimit()
+	{
+		return limit;
+	}
+
+	public synchronized long getPending()
+	{
+		return pending;
+	}
+
+	/**
+	 * Queues a write, first waiting for any earlier write of the same file,
+	 * and for room in the queue.
+	 *
+	 * @param bytes how much memory the write holds until it's done
+	 */
+	public void submit(File file, long bytes, final Job job) throws InterruptedException
+	{
+		final Write write = new Write(file, bytes);
+
+		synchronized(this)
+		{
+			while(writes.containsKey(file) || (outstanding > 0 && pending + bytes > limit))
+				wait();
+
+			writes.put(file, write);
+			pending += bytes;
+			++outstanding;
+		}
+
+		pool.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				IOException failure = null;
+
+				try {
+					job.run();
+				} catch(IOException ioe) {
+					failure = ioe;
+				} catch(RuntimeException re) {
+					failure = new IOException(re);
+				}
+
+				finish(write, failure);
+			}
+		});
+	}
+
+	/**
+	 * Saves a view in the background (atomically), and closes the image
+	 * once it's written; the image mustn't be touched after this.
+	 */
+	public void saveTiff(final ImagePlus image, final File to) throws InterruptedException
+	{
+		long bytes = (long) image.getWidth() * image.getHeight() * image.getStackSize() * image.getBytesPerPixel();
+
+		submit(to, bytes, new Job() {
+			@Override
+			public void run() throws IOException
+			{
+				IoLimiter.Permit permit = IoLimiter.acquire(io, to);
+				try {
+					AtomicFiles.saveTiff(image, to);
+				} finally {
+					permit.release();
+					image.close();
+				}
+			}
+		});
+	}
+
+	private void finish(Write write, IOException failure)
+	{
+		List<Runnable> then = null;
+
+		synchronized(this)
+		{
+			write.failure = failure;
+			write.written = true;
+
+			if(failure == null)
+				then = new ArrayList<Runnable>(write.then);
+		}
+
+		if(failure != null)
+			IJ.log("Couldn't write " + write.file.getName() + ": " + failure.getMessage());
+		else
+			for(Runnable r : then)
+				r.run();
+
+		synchronized(this)
+		{
+			write.finished = true;
+			writes.remove(write.file);
+			pending -= write.bytes;
+			--outstanding;
+
+			if(failure != null)
+				failures.add(failure);
+
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Runs something once a file's pending write has gone through (e.g.
+	 * recording that the file is up to date), on the I/O thread; or right
+	 * away, if the file isn't waiting to be written. If the write fails, it
+	 * isn't run at all.
+	 */
+	public void whenWritten(File file, Runnable action)
+	{
+		synchronized(this)
+		{
+			Write write = writes.get(file);
+
+			if(write != null && !write.written)
+			{
+				write.then.add(action);
+				return;
+			}
+
+			if(write != null && write.failure != null)
+				return;
+		}
+
+		action.run();
+	}
+
+	/**
+	 * Waits until a file is no longer waiting to be written.
+	 *
+	 * @return false if its write failed (so the file is as it was before)
+	 */
+	public boolean await(File file) throws InterruptedException
+	{
+		synchronized(this)
+		{
+			Write write = writes.get(file);
+
+			if(write == null)
+				return true;
+
+			while(!write.finished)
+				wait();
+
+			return write.failure == null;
+		}
+	}
+
+	/**
+	 * Waits until everything submitted so far has been written.
+	 *
+	 * @throws ExecutionException if any write has failed since the last barrier
+	 */
+	public void barrier() throws InterruptedException, ExecutionException
+	{
+		synchronized(this)
+		{
+			while(outstanding > 0)
+				wait();
+
+			if(!failures.isEmpty())
+			{
+				IOException first = failures.get(0);
+				int count = failures.size();
+				failures.clear();
+
+				throw new ExecutionException(count + " view write(s) failed", first);
+			}
+		}
+	}
+
+	/**
+	 * Waits for every write, and stops the I/O threads. Failures will have
+	 * been logged (and reported by the last barrier).
+	 */
+	public void close() throws InterruptedException
+	{
+		synchronized(this)
+		{
+			while(outstanding > 0)
+				wait();
+		}
+
+		pool.shutdown();
+	}
+}
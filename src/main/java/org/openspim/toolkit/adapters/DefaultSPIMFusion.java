@@ -1,18 +1,59 @@
 package org.openspim.toolkit.adapters;
 
 import ij.IJ;
+import ij.ImagePlus;
 
 import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
 
 import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.FusedVolume;
+import org.openspim.toolkit.OpenSPIMToolkit;
 import org.openspim.toolkit.Processor;
+import org.openspim.toolkit.SpimDataSpecifier;
+import org.openspim.toolkit.TimepointShards;
+import org.openspim.toolkit.io.ChunkedVolume;
+import org.openspim.toolkit.io.IoLimiter;
 
 public class DefaultSPIMFusion implements Processor {
+	/**
+	 * What fusion leaves in the output directory. The plugin only writes 2D
+	 * slices; the chunked format is a conversion step run after it, which
+	 * reads the slices back, writes them as a chunked volume and deletes
+	 * them. That is more I/O than slices alone, in exchange for output that
+	 * sub-volumes can be read from.
+	 */
+	public static enum OutputFormat
+	{
+		SLICES ("2D Slices"),
+		CHUNKED ("2D Slices, Converted to Chunked Volume (N5)");
+
+		private String text;
+
+		private OutputFormat(String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		public String toString()
+		{
+			return text;
+		}
+	};
+
 	@Override
 	public void performProcessing(final Params params) throws InterruptedException, ExecutionException {
 		// TODO Auto-generated method stub
@@ -23,24 +64,133 @@ public class DefaultSPIMFusion implements Processor {
 		 * crop_output_image_size_x=0 crop_output_image_size_y=0 crop_output_image_size_z=0 content_based_weights_(fast
 		 * fused_image_output=[Save 2d-slices, all in one directory]");
 		 */
-		params.invokeOn.submit(new Runnable() {
-			@Override
-			public void run() {
-				IJ.log("--- Begin SPIM Fusion Plugin Invocation ---");
-				IJ.run("Multi-view fusion",
-					"select_channel=Single-channel " +
-					"registration=[Individual registration of channel 0] " +
-					"fusion_method=[Fuse into a single image] " +
-					"process_views_in_parallel=" + (multithread.isSelected() ? "All " : "1 ") +
-					(blending.isSelected() ? "blending " : "") +
-					(cbw.isSelected() ? "content_basted_weights_(fast " : "") +
-					"downsample_output=" + ((Number)downsample.getValue()).intValue() + " " +
-					"fused_image_output=[Save 2d-slices, all in one directory] " +
-					params.spec.getParameterString()
-				);
-				IJ.log("--- End SPIM Fusion Plugin Invocation ---");
+		// Fused slices are named by timepoint, so shards can share the output directory.
+		if(shard.isSelected() && params.spec.getTimepoints().count() > 1) {
+			// All of a timepoint's views, plus the fused volume.
+			TimepointShards.run(params, toString(), 2.0, new TimepointShards.Invocation() {
+				@Override
+				public void run(SpimDataSpecifier spec) {
+					invoke(spec);
+				}
+			});
+		} else {
+			params.invokeOn.submit(new Runnable() {
+				@Override
+				public void run() {
+					invoke(params.spec);
+				}
+			}).get();
+		}
+
+		// The plugin can only write slices; convert them afterwards (extra I/O, not a faster write).
+		if(format.getSelectedItem() == OutputFormat.CHUNKED)
+			toChunked(params);
+	}
+
+	private static void toChunked(Params params) throws InterruptedException, ExecutionException {
+		File outputDir = OpenSPIMToolkit.getOutputDirectory(params.spec.getViews().get(0));
+
+		for(Map.Entry<Integer, List<File>> entry : FusedVolume.slicesByTimepoint(outputDir, params.spec).entrySet())
+			toChunked(params, entry.getValue(), FusedVolume.chunkedVolumeFor(outputDir, entry.getKey()));
+	}
+
+	/**
+	 * Converts one fused volume's slices, one slab of blocks at a time; the
+	 * blocks of a slab are written in parallel. The slices are removed once
+	 * the volume is complete.
+	 */
+	private static void toChunked(final Params params, List<File> slices, final File root) throws InterruptedException, ExecutionException {
+		ImagePlus first = IJ.openImage(slices.get(0).getAbsolutePath());
+
+		if(first == null)
+			throw new ExecutionException(new IOException("Couldn't open fused slice " + slices.get(0).getName()));
+
+		int block = ((Number)chunkSize.getValue()).intValue();
+		final ChunkedVolume volume;
+
+		try {
+			volume = ChunkedVolume.create(root, new int[] { first.getWidth(), first.getHeight(), slices.size() },
+				new int[] { block, block, block }, first.getBitDepth());
+		} catch(IOException ioe) {
+			throw new ExecutionException("Couldn't create " + root.getPath(), ioe);
+		} finally {
+			first.close();
+		}
+
+		int[] grid = volume.getGridSize();
+
+		for(int gz = 0; gz < grid[2]; ++gz) {
+			final Object[] planes = new Object[Math.min(block, slices.size() - gz * block)];
+
+			for(int z = 0; z < planes.length; ++z) {
+				IoLimiter.Permit permit = IoLimiter.acquire(params.io, root);
+				ImagePlus imp;
+				try {
+					imp = IJ.openImage(slices.get(gz * block + z).getAbsolutePath());
+				} finally {
+					permit.release();
+				}
+
+				if(imp == null)
+					throw new ExecutionException(new IOException("Couldn't open fused slice " + slices.get(gz * block + z).getName()));
+
+				planes[z] = imp.getProcessor().getPixels();
+				imp.close();
+			}
+
+			List<Future<Void>> futures = new LinkedList<Future<Void>>();
+
+			for(int gy = 0; gy < grid[1]; ++gy) {
+				for(int gx = 0; gx < grid[0]; ++gx) {
+					final int[] at = { gx, gy, gz };
+
+					futures.add(params.invokeOn.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							IoLimiter.Permit permit = IoLimiter.acquire(params.io, root);
+							try {
+								volume.writeFromPlanes(at[0], at[1], at[2], planes);
+							} finally {
+								permit.release();
+							}
+							return null;
+						}
+					}));
+				}
 			}
-		}).get();
+
+			for(Future<Void> f : futures)
+				f.get();
+		}
+
+		for(File slice : slices)
+			if(!slice.delete())
+				IJ.log("Couldn't remove fused slice " + slice.getName());
+
+		IJ.log("Wrote fused volume " + root.getName() + " (" + grid[0] * grid[1] * grid[2] + " blocks).");
+	}
+
+	private static void invoke(SpimDataSpecifier spec) {
+		// The plugin's settings are static; shards take turns.
+		synchronized(TimepointShards.PLUGINS) {
+			runPlugin(spec);
+		}
+	}
+
+	private static void runPlugin(SpimDataSpecifier spec) {
+		IJ.log("--- Begin SPIM Fusion Plugin Invocation ---");
+		IJ.run("Multi-view fusion",
+			"select_channel=Single-channel " +
+			"registration=[Individual registration of channel 0] " +
+			"fusion_method=[Fuse into a single image] " +
+			"process_views_in_parallel=" + (multithread.isSelected() ? "All " : "1 ") +
+			(blending.isSelected() ? "blending " : "") +
+			(cbw.isSelected() ? "content_basted_weights_(fast " : "") +
+			"downsample_output=" + ((Number)downsample.getValue()).intValue() + " " +
+			"fused_image_output=[Save 2d-slices, all in one directory] " +
+			spec.getParameterString()
+		);
+		IJ.log("--- End SPIM Fusion Plugin Invocation ---");
 	}
 	
 	@Override
@@ -53,8 +203,14 @@ public class DefaultSPIMFusion implements Processor {
 		return Processor.FUSION;
 	}
 	
-	private static JCheckBox multithread = new JCheckBox("", true), blending = new JCheckBox("", true), cbw = new JCheckBox("", true);
+	private static JCheckBox multithread = new JCheckBox("", true), blending = new JCheckBox("", true), cbw = new JCheckBox("", true), shard = new JCheckBox("", false);
 	private static JSpinner downsample = new JSpinner(new SpinnerNumberModel(1, 1, 8, 1));
+	private static JComboBox format = new JComboBox(OutputFormat.values());
+	private static JSpinner chunkSize = new JSpinner(new SpinnerNumberModel(64, 8, 1024, 8));
+
+	static {
+		shard.setToolTipText("If checked, the plugin is run once per timepoint (one after another), rather than on all of them at once.");
+	}
 
 	@Override
 	public Component getControlPanel() {
@@ -62,7 +218,10 @@ public class DefaultSPIMFusion implements Processor {
 			"Multithread:", multithread,
 			"Blending:", blending,
 			"Content-Based Weights (Approximate):", cbw,
-			"Downsample Factor:", downsample
+			"Downsample Factor:", downsample,
+			"Shard by Timepoint:", shard,
+			"Output Format:", format,
+			"Chunk Size (voxels):", chunkSize
 		);
 	}
 }
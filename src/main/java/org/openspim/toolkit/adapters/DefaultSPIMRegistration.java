@@ -3,12 +3,15 @@ package org.openspim.toolkit.adapters;
 import java.awt.Component;
 import java.util.concurrent.ExecutionException;
 
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 
 import ij.IJ;
 
 import org.openspim.gui.LayoutUtils;
 import org.openspim.toolkit.Processor;
+import org.openspim.toolkit.SpimDataSpecifier;
+import org.openspim.toolkit.TimepointShards;
 
 public class DefaultSPIMRegistration implements Processor {
 
@@ -23,36 +26,66 @@ public class DefaultSPIMRegistration implements Processor {
 	}
 
 	private static JComboBox mode = new JComboBox(new String[] {"Difference-of-Mean (Integral image based)", "Difference-of-Gaussian"});
+	private static JCheckBox shard = new JCheckBox("", false);
+
+	static {
+		shard.setToolTipText("If checked, the plugin is run once per timepoint (one after another), rather than on all of them at once.");
+	}
 	
 	@Override
 	public Component getControlPanel() {
-		return LayoutUtils.form("Detection method:", mode);
+		return LayoutUtils.form(
+			"Detection method:", mode,
+			"Shard by Timepoint:", shard
+		);
 	}
 	
 	@Override
 	public void performProcessing(final Params params) throws InterruptedException, ExecutionException {
+		// Each timepoint is registered on its own, one after another.
+		if(shard.isSelected() && params.spec.getTimepoints().count() > 1) {
+			TimepointShards.run(params, toString(), 1.0, new TimepointShards.Invocation() {
+				@Override
+				public void run(SpimDataSpecifier spec) {
+					invoke(params, spec);
+				}
+			});
+			return;
+		}
+
 		params.invokeOn.submit(new Runnable() {
 			@Override
 			public void run() {
-				IJ.log("--- Begin SPIM Registration Plugin Invocation ---");
-				IJ.run("Bead-based registration",
-					"select_type_of_registration=Single-channel " +
-					"select_type_of_detection=[" + mode.getSelectedItem().toString() + "] " +
-					"subpixel_localization=[3-dimensional quadratic fit (all detections)] " +
-					"transformation_model=[" + (params.stage == Processor.Stage.SEGMENTATION ? "Translation" : "Affine") + "] " +
-					"bead_brightness=[Advanced ...] " +
-					"channel_0_radius_1=" + params.beadRadius1 + " " +
-					"channel_0_radius_2=" + params.beadRadius2 + " " +
-					"channel_0_threshold=" + params.threshold + " " +
-					"specify_calibration_manually " +
-					"xy_resolution=" + params.xyUmPerPix + " " +
-					"z_resolution=" + params.zUmPerPix + " " +
-					(params.stage == Processor.Stage.REGISTRATION ? "load_segmented_beads " : "") +
-					params.spec.getParameterString()
-				);		
-				IJ.log("--- End SPIM Registration Plugin Invocation ---");
+				invoke(params, params.spec);
 			}
 		}).get();
 	}
 
+	private static void invoke(Params params, SpimDataSpecifier spec) {
+		// The plugin's settings are static; shards take turns.
+		synchronized(TimepointShards.PLUGINS) {
+			runPlugin(params, spec);
+		}
+	}
+
+	private static void runPlugin(Params params, SpimDataSpecifier spec) {
+		IJ.log("--- Begin SPIM Registration Plugin Invocation ---");
+		IJ.run("Bead-based registration",
+			"select_type_of_registration=Single-channel " +
+			"select_type_of_detection=[" + mode.getSelectedItem().toString() + "] " +
+			"subpixel_localization=[3-dimensional quadratic fit (all detections)] " +
+			"transformation_model=[" + (params.stage == Processor.Stage.SEGMENTATION ? "Translation" : "Affine") + "] " +
+			"bead_brightness=[Advanced ...] " +
+			"channel_0_radius_1=" + params.beadRadius1 + " " +
+			"channel_0_radius_2=" + params.beadRadius2 + " " +
+			"channel_0_threshold=" + params.threshold + " " +
+			"specify_calibration_manually " +
+			"xy_resolution=" + params.xyUmPerPix + " " +
+			"z_resolution=" + params.zUmPerPix + " " +
+			(params.stage == Processor.Stage.REGISTRATION ? "load_segmented_beads " : "") +
+			spec.getParameterString()
+		);		
+		IJ.log("--- End SPIM Registration Plugin Invocation ---");
+	}
+
 }
@@ -0,0 +1,680 @@
+package org.openspim.toolkit.archipelago;
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.PipelinePlan;
+import org.openspim.toolkit.SpimDataSpecifier;
+
+/**
+ * Coordinates distributed execution of a pipeline's view chains over worker
+ * JVMs (see {@link ArchipelagoWorker}). Workers connect over a plain TCP
+ * socket, so they can be processes launched on this machine or started by
+ * hand (or by a cluster scheduler) on other nodes sharing the data directory.
+ * The socket only listens on the loopback interface unless remote workers are
+ * {@link PipelinePlan#ARCHIPELAGO_REMOTE enabled}, and workers must present
+ * the archipelago's token (given to remote workers in the
+ * <code>ARCHIPELAGO_TOKEN</code> environment variable) before they are sent
+ * anything.
+ * <p>
+ * The protocol is line-based UTF-8 text; arguments are URL-encoded:
+ *
+ * <pre>
+ * worker:      HELLO name token [id]    (id: the one a local worker was launched with)
+ * coordinator: PLAN properties
+ * coordinator: TASK id chain view-path
+ * worker:      BUSY id                 (every few seconds while working)
+ * worker:      DONE id | FAIL id message
+ * coordinator: BYE
+ * </pre>
+ *
+ * Failed tasks are retried on other workers up to {@link #MAX_ATTEMPTS}
+ * times. A task is handed to another worker once the first has stopped: when
+ * its connection closes and, for a local worker, once its process has
+ * exited. Workers that stop sending heartbeats, or take far longer than usual
+ * over a view (and at least {@link #HEARTBEAT_TIMEOUT_MS}), are taken to have
+ * hung: local ones are killed, and remote ones disconnected. Views are written
+ * atomically, so a view a stopped worker was on is safe to redo. Local
+ * workers that exit are replaced.
+ * <p>
+ * Local workers are told apart by an unguessable id they are launched with,
+ * not by the name they give, so no other worker can pass for one.
+ *
+ * @author LOCI
+ *
+ */
+public class Archipelago
+{
+	public static final int MAX_ATTEMPTS = 3;
+	private static final double SLOW_FACTOR = 4.0;
+	private static final int MIN_SAMPLES = 3;
+	private static final long HEARTBEAT_TIMEOUT_MS = 60000;
+	private static final long NO_WORKERS_TIMEOUT_MS = 5 * 60000;
+	public static final String TOKEN_VARIABLE = "ARCHIPELAGO_TOKEN";
+
+	private class Task
+	{
+		Job job;
+		int id;
+		int chain;
+		File view;
+		int attempts;
+		boolean done;
+		Link runningOn;
+		long startedAt;
+		boolean reported; // As slow or silent.
+	}
+
+	private class Job
+	{
+		LinkedList<Task> queue = new LinkedList<Task>();
+		List<Long> durations = new ArrayList<Long>();
+		int remaining;
+		String failure;
+
+		long medianDuration()
+		{
+			List<Long> sorted = new ArrayList<Long>(durations);
+			Collections.sort(sorted);
+			return sorted.get(sorted.size() / 2);
+		}
+	}
+
+	private class Link implements Runnable
+	{
+		Socket socket;
+		BufferedReader in;
+		PrintWriter out;
+		String name = "?";
+		String processId; // If it's a local worker: the id it was launched with,
+		Process process;  // and its process.
+		volatile long lastHeard = System.currentTimeMillis();
+		Task current;
+
+		Link(Socket socket) throws IOException
+		{
+			this.socket = socket;
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				String[] hello = split(in.readLine());
+
+				if(hello == null || !"HELLO".equals(hello[0]))
+					throw new IOException("worker didn't say hello");
+
+				if(hello.length < 3 || !MessageDigest.isEqual(token.getBytes("UTF-8"), decode(hello[2]).getBytes("UTF-8")))
+					throw new IOException("worker at " + socket.getRemoteSocketAddress() + " didn't give the right token");
+
+				name = decode(hello[1]);
+				linkUp(this, hello.length > 3 ? decode(hello[3]) : null);
+				out.println("PLAN " + encode(planText));
+
+				Task task;
+				while((task = nextTask(this)) != null)
+				{
+					String id = Integer.toString(task.id);
+					out.println("TASK " + id + " " + task.chain + " " + encode(task.view.getAbsolutePath()));
+
+					String[] reply;
+					while((reply = split(in.readLine())) != null)
+					{
+						// Anything about another task is stale; only this one's outcome counts.
+						if(reply.length < 2 || !id.equals(reply[1]))
+						{
+							IJ.log("Archipelago: ignoring \"" + reply[0] + "\" from worker " + name + " (not about task " + id + ").");
+							continue;
+						}
+
+						if("BUSY".equals(reply[0]))
+							lastHeard = System.currentTimeMillis();
+						else if("DONE".equals(reply[0]) || "FAIL".equals(reply[0]))
+							break;
+					}
+
+					if(reply == null)
+						throw new IOException("connection closed");
+					else if("DONE".equals(reply[0]))
+						finished(this, task, null);
+					else
+						finished(this, task, reply.length > 2 ? decode(reply[2]) : "unknown failure");
+				}
+
+				out.println("BYE");
+			} catch(IOException ioe) {
+				if(!closed)
+					IJ.log("Archipelago: lost worker " + name + " (" + ioe.getMessage() + ")");
+			} finally {
+				linkDown(this);
+			}
+		}
+
+		void drop()
+		{
+			try {
+				socket.close();
+			} catch(IOException ioe) {
+				// It's going away either way.
+			}
+		}
+	}
+
+	private final String planText;
+	private final int localWorkers;
+	private final int port;
+	private final boolean remote;
+	private final String token;
+
+	private ServerSocket server;
+	private volatile boolean closed;
+	private Job job;
+	private int nextTaskId = 0;
+	private int nextWorkerId = 0;
+	private long noWorkersSince = System.currentTimeMillis();
+	private Set<Link> links = new HashSet<Link>();
+	private Map<String, Process> processes = new HashMap<String, Process>(); // By the id they were launched with.
+	private Set<String> claimed = new HashSet<String>(); // Ids of connected local workers.
+	private File logDirectory;
+
+	/**
+	 * @param plan the plan workers should build their pipeline from
+	 * @param localWorkers how many worker processes to launch on this machine
+	 * @param port the port to listen on for workers, or 0 for any free port
+	 */
+	public Archipelago(PipelinePlan plan, int localWorkers, int port)
+	{
+		// Workers just run what they're given; they shouldn't start archipelagos of their own.
+		Properties props = new Properties();
+		props.putAll(plan.getProperties());
+		props.remove(PipelinePlan.ARCHIPELAGO);
+		props.remove(PipelinePlan.ARCHIPELAGO_WORKERS);
+		props.remove(PipelinePlan.ARCHIPELAGO_PORT);
+		props.remove(PipelinePlan.ARCHIPELAGO_REMOTE);
+		props.remove(PipelinePlan.ARCHIPELAGO_TOKEN);
+
+		StringWriter text = new StringWriter();
+
+		try {
+			props.store(text, null);
+		} catch(IOException ioe) {
+			throw new Error(ioe); // Can't happen with a StringWriter.
+		}
+
+		this.planText = text.toString();
+		this.localWorkers = localWorkers;
+		this.port = port;
+		this.remote = plan.getBoolean(PipelinePlan.ARCHIPELAGO_REMOTE);
+
+		String given = plan.get(PipelinePlan.ARCHIPELAGO_TOKEN, "").trim();
+		this.token = given.isEmpty() ? newToken() : given;
+	}
+
+	private static String newToken()
+	{
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b : bytes)
+			hex.append(String.format("%02x", b & 0xff));
+
+		return hex.toString();
+	}
+
+	public int getLocalWorkers()
+	{
+		return localWorkers;
+	}
+
+	/**
+	 * @return whether workers on other machines may connect
+	 */
+	public boolean isRemote()
+	{
+		return remote;
+	}
+
+	/**
+	 * @return the port workers connect to; before {@link #start()}, the port
+	 *         that was asked for
+	 */
+	public int getPort()
+	{
+		return server != null ? server.getLocalPort() : port;
+	}
+
+	/**
+	 * Starts listening for workers, and launches the local ones.
+	 */
+	public void start() throws ExecutionException
+	{
+		try {
+			server = new ServerSocket();
+			server.bind(remote ? new InetSocketAddress(port) : new InetSocketAddress(InetAddress.getByName(null), port));
+		} catch(IOException ioe) {
+			server = null;
+			throw new ExecutionException("Couldn't listen for archipelago workers on port " + port, ioe);
+		}
+
+		closed = false;
+		logDirectory = OpenSPIMToolkit.getLastSpecifier().getRegistrationDirectory();
+
+		Thread acceptor = new Thread("Archipelago acceptor")
+		{
+			@Override
+			public void run()
+			{
+				while(!closed) try {
+					Socket socket = server.accept();
+					Thread t = new Thread(new Link(socket), "Archipelago link " + socket.getRemoteSocketAddress());
+					t.setDaemon(true);
+					t.start();
+				} catch(SocketException se) {
+					break; // Server closed.
+				} catch(IOException ioe) {
+					IJ.log("Archipelago: couldn't accept worker: " + ioe.getMessage());
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		if(remote)
+			IJ.log("Archipelago: listening for workers on port " + getPort() + "; start remote workers with " + TOKEN_VARIABLE + "=" + token + ".");
+		else
+			IJ.log("Archipelago: listening for local workers on port " + getPort() + ".");
+
+		for(int i = 0; i < localWorkers; ++i)
+			launchLocalWorker();
+	}
+
+	private synchronized void launchLocalWorker()
+	{
+		String name = "local-" + (nextWorkerId++);
+		String id = newToken();
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+
+		ProcessBuilder pb = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp", ArchipelagoWorker.classPath(),
+			ArchipelagoWorker.class.getName(), "localhost", Integer.toString(getPort()), name, id);
+
+		pb.environment().put(TOKEN_VARIABLE, token);
+		pb.redirectErrorStream(true);
+		logDirectory.mkdirs();
+		pb.redirectOutput(new File(logDirectory, "archipelago-" + name + ".log"));
+
+		try {
+			processes.put(id, pb.start());
+		} catch(IOException ioe) {
+			IJ.log("Archipelago: couldn't launch local worker " + name + ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the given chain of the pipeline on every view in the spec, and
+	 * waits for all of them to finish.
+	 */
+	public void runChain(int chain, SpimDataSpecifier spec) throws InterruptedException, ExecutionException
+	{
+		Job j = new Job();
+
+		for(File view : spec)
+		{
+			Task task = new Task();
+			task.job = j;
+			task.id = nextTaskId++;
+			task.chain = chain;
+			task.view = view;
+			j.queue.add(task);
+		}
+
+		j.remaining = j.queue.size();
+
+		synchronized(this)
+		{
+			job = j;
+			notifyAll();
+
+			try {
+				while(j.remaining > 0 && j.failure == null)
+				{
+					wait(1000);
+					checkWorkers(j);
+				}
+			} finally {
+				job = null;
+			}
+
+			if(j.failure != null)
+				throw new ExecutionException(new IOException("Archipelago: " + j.failure));
+		}
+	}
+
+	/**
+	 * Stops workers that have gone quiet or are taking far longer than usual
+	 * (so their task is retried elsewhere), disconnects local workers whose
+	 * process has exited, and gives up if no workers have been around for a
+	 * while.
+	 */
+	private synchronized void checkWorkers(Job j)
+	{
+		long now = System.currentTimeMillis();
+
+		for(Link link : new ArrayList<Link>(links))
+		{
+			if(link.process != null && exited(link.process))
+			{
+				link.drop();
+				continue;
+			}
+
+			Task task = link.current;
+
+			if(task == null || task.reported)
+				continue;
+
+			boolean silent = now - link.lastHeard > HEARTBEAT_TIMEOUT_MS;
+			boolean slow = j.durations.size() >= MIN_SAMPLES && now - task.startedAt > Math.max(SLOW_FACTOR * j.medianDuration(), HEARTBEAT_TIMEOUT_MS);
+
+			if(silent || slow)
+			{
+				IJ.log("Archipelago: worker " + link.name + " is " + (silent ? "unresponsive" : "stuck") + " on view " +
+					task.view.getName() + "; stopping it, and retrying the view elsewhere.");
+				task.reported = true;
+
+				// The link goes down once the process is gone, and the view is retried then.
+				if(link.process != null)
+					link.process.destroy();
+				else
+					link.drop();
+			}
+		}
+
+		if(!links.isEmpty())
+			noWorkersSince = now;
+		else if(now - noWorkersSince > NO_WORKERS_TIMEOUT_MS)
+			j.failure = "no workers connected for " + (NO_WORKERS_TIMEOUT_MS / 1000) + " seconds";
+	}
+
+	private synchronized Task nextTask(Link link) throws IOException
+	{
+		link.current = null;
+
+		while(!closed)
+		{
+			if(job != null && job.failure == null && !job.queue.isEmpty())
+			{
+				Task task = job.queue.removeFirst();
+				task.runningOn = link;
+				task.startedAt = System.currentTimeMillis();
+				link.current = task;
+				link.lastHeard = task.startedAt;
+				return task;
+			}
+
+			try {
+				wait(1000);
+			} catch(InterruptedException ie) {
+				throw new IOException("interrupted");
+			}
+		}
+
+		return null;
+	}
+
+	private synchronized void finished(Link link, Task task, String failure)
+	{
+		link.current = null;
+
+		if(task.done || task.runningOn != link)
+			return;
+
+		task.runningOn = null;
+
+		if(failure == null)
+		{
+			task.done = true;
+
+			if(task.job == job)
+			{
+				job.durations.add(System.currentTimeMillis() - task.startedAt);
+				--job.remaining;
+			}
+		}
+		else
+		{
+			IJ.log("Archipelago: worker " + link.name + " failed on view " + task.view.getName() + ": " + failure);
+			retry(task, failure);
+		}
+
+		notifyAll();
+	}
+
+	private void retry(Task task, String failure)
+	{
+		if(task.job != job)
+			return;
+
+		if(++task.attempts < MAX_ATTEMPTS)
+			job.queue.addFirst(task);
+		else
+			job.failure = "view " + task.view.getName() + " failed " + MAX_ATTEMPTS + " times; last error: " + failure;
+	}
+
+	/**
+	 * @param id the id the worker says it was launched with, if any
+	 */
+	private synchronized void linkUp(Link link, String id) throws IOException
+	{
+		if(id != null)
+		{
+			if(!processes.containsKey(id) || claimed.contains(id))
+				throw new IOException("worker " + link.name + " gave an unknown worker id");
+
+			claimed.add(id);
+			link.processId = id;
+			link.process = processes.get(id);
+		}
+
+		links.add(link);
+		IJ.log("Archipelago: worker " + link.name + " connected.");
+		notifyAll();
+	}
+
+	/**
+	 * Hands a disconnected worker's task on. A local worker may still be
+	 * running (finishing its view before it notices), so its task waits for
+	 * its process to exit; that of a remote worker is taken to have stopped
+	 * with its connection.
+	 */
+	private synchronized void linkDown(final Link link)
+	{
+		links.remove(link);
+		link.drop();
+
+		final Task task = link.current;
+		link.current = null;
+
+		final Process process = link.process;
+		if(process == null)
+		{
+			abandoned(link, task);
+			return;
+		}
+
+		Thread reaper = new Thread("Archipelago reaper " + link.name)
+		{
+			@Override
+			public void run()
+			{
+				try {
+					process.waitFor();
+				} catch(InterruptedException ie) {
+					return;
+				}
+
+				synchronized(Archipelago.this)
+				{
+					processes.remove(link.processId);
+					claimed.remove(link.processId);
+					abandoned(link, task);
+
+					if(!closed)
+						launchLocalWorker();
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	private synchronized void abandoned(Link link, Task task)
+	{
+		if(task != null && !task.done && task.runningOn == link)
+		{
+			task.runningOn = null;
+			retry(task, "worker " + link.name + " disconnected");
+		}
+
+		notifyAll();
+	}
+
+	private static boolean exited(Process process)
+	{
+		try {
+			process.exitValue();
+			return true;
+		} catch(IllegalThreadStateException itse) {
+			return false;
+		}
+	}
+
+	/**
+	 * Tells the workers to quit and stops listening. Local workers still
+	 * busy with a view are waited for, rather than killed halfway through
+	 * rewriting it; those that never connected are stopped.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			closed = true;
+			notifyAll();
+		}
+
+		if(server != null) try {
+			server.close();
+		} catch(IOException ioe) {
+			// Nothing more to do.
+		}
+
+		// Links send BYE on their way out; give them a moment before pulling the plug.
+		long deadline = System.currentTimeMillis() + 5000;
+		List<Process> busy = new ArrayList<Process>();
+
+		synchronized(this)
+		{
+			while(!links.isEmpty() && System.currentTimeMillis() < deadline) try {
+				wait(100);
+			} catch(InterruptedException ie) {
+				break;
+			}
+
+			Set<Process> connected = new HashSet<Process>();
+			for(Link link : links)
+			{
+				if(link.current != null && link.process != null)
+					connected.add(link.process);
+
+				link.drop();
+			}
+
+			for(Process process : processes.values())
+			{
+				if(connected.contains(process))
+					busy.add(process);
+				else if(!exited(process))
+					process.destroy();
+			}
+		}
+
+		if(!busy.isEmpty())
+			IJ.log("Archipelago: waiting for " + busy.size() + " local worker(s) to finish their views.");
+
+		for(Process process : busy) try {
+			process.waitFor();
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			break;
+		}
+
+		synchronized(this)
+		{
+			processes.clear();
+			claimed.clear();
+		}
+	}
+
+	static String[] split(String line)
+	{
+		return line != null ? line.trim().split(" ") : null;
+	}
+
+	static String encode(String text)
+	{
+		try {
+			return URLEncoder.encode(text, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	static String decode(String text)
+	{
+		try {
+			return URLDecoder.decode(text, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+
+	static String localHostName()
+	{
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch(IOException ioe) {
+			return "worker";
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package org.openspim.toolkit.archipelago;
+
+import ij.IJ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.Pipeline;
+import org.openspim.toolkit.PipelinePlan;
+import org.openspim.toolkit.Processor;
+
+/**
+ * A worker process for an {@link Archipelago}. Connects to the coordinator,
+ * builds the pipeline from the plan it is sent, and runs the view chains it is
+ * given one view at a time until told to quit. Run it as
+ * <code>ArchipelagoWorker host port [name]</code>, with ImageJ and this
+ * plugin's dependencies on the class path, the dataset visible at the same
+ * paths as on the coordinator, and the coordinator's token in the
+ * <code>ARCHIPELAGO_TOKEN</code> environment variable.
+ *
+ * @author LOCI
+ *
+ */
+public class ArchipelagoWorker
+{
+	private static final long HEARTBEAT_MS = 5000;
+
+	public static void main(String[] args)
+	{
+		if(args.length < 2)
+		{
+			System.err.println("Usage: ArchipelagoWorker <host> <port> [name]");
+			System.exit(2);
+		}
+
+		String name = args.length > 2 ? args[2] : Archipelago.localHostName();
+		String workerId = args.length > 3 ? args[3] : null; // Given to local workers by the coordinator.
+
+		try {
+			work(args[0], Integer.parseInt(args[1]), name, workerId);
+		} catch(Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * @param workerId the id the coordinator launched this worker under, or
+	 *        null if it was started some other way
+	 */
+	public static void work(String host, int port, String name, String workerId) throws IOException
+	{
+		Socket socket = new Socket(host, port);
+
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			final PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+
+			String token = System.getenv(Archipelago.TOKEN_VARIABLE);
+			if(token == null || token.isEmpty())
+				throw new IOException(Archipelago.TOKEN_VARIABLE + " isn't set");
+
+			out.println("HELLO " + Archipelago.encode(name) + " " + Archipelago.encode(token) + (workerId != null ? " " + Archipelago.encode(workerId) : ""));
+
+			String[] plan = Archipelago.split(in.readLine());
+			if(plan == null || !"PLAN".equals(plan[0]))
+				throw new IOException("coordinator didn't send a plan");
+
+			Properties props = new Properties();
+			props.load(new StringReader(Archipelago.decode(plan.length > 1 ? plan[1] : "")));
+
+			PipelinePlan pipelinePlan = new PipelinePlan(props);
+			Pipeline pipeline = pipelinePlan.toPipeline();
+			List<Pipeline.Chain> chains = pipeline.getChains();
+
+			Processor.Params params = OpenSPIMToolkit.getLastParams();
+			params.invokeOn = Executors.newSingleThreadExecutor();
+			params.progressScale = 1;
+			pipelinePlan.applyTo(params);
+
+			if(params.views != null)
+				params.views.setIoLimiter(params.io);
+
+			if(params.writes != null)
+				params.writes.setIoLimiter(params.io);
+
+			for(Pipeline.Chain c : chains)
+				c.prepare(params);
+
+			try {
+				String[] line;
+				while((line = Archipelago.split(in.readLine())) != null && "TASK".equals(line[0]))
+				{
+					final String id = line[1];
+					int chain = Integer.parseInt(line[2]);
+					File view = new File(Archipelago.decode(line[3]));
+
+					Thread heartbeat = new Thread("Archipelago heartbeat")
+					{
+						@Override
+						public void run()
+						{
+							while(!isInterrupted()) try {
+								Thread.sleep(HEARTBEAT_MS);
+
+								synchronized(out)
+								{
+									out.println("BUSY " + id);
+								}
+							} catch(InterruptedException ie) {
+								break;
+							}
+						}
+					};
+					heartbeat.setDaemon(true);
+					heartbeat.start();
+
+					String failure = null;
+					try {
+						IJ.log(name + ": running chain " + chain + " on " + view.getName());
+						chains.get(chain).runView(params, view);
+
+						// The coordinator (and the next worker) read the view from disk.
+						if(params.views != null)
+							params.views.flush(view);
+
+						if(params.writes != null && !params.writes.await(view))
+							failure = "couldn't write " + view.getName();
+					} catch(Throwable t) {
+						t.printStackTrace();
+						failure = t.toString();
+					} finally {
+						heartbeat.interrupt();
+					}
+
+					synchronized(out)
+					{
+						out.println(failure == null ? "DONE " + id : "FAIL " + id + " " + Archipelago.encode(failure));
+					}
+				}
+			} finally {
+				params.invokeOn.shutdownNow();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return a class path for launching workers: wherever this plugin, ImageJ
+	 *         and commons-math were loaded from, plus this JVM's class path
+	 */
+	static String classPath()
+	{
+		Set<String> entries = new LinkedHashSet<String>();
+
+		for(Class<?> c : new Class<?>[] { ArchipelagoWorker.class, IJ.class, Vector3D.class })
+		{
+			CodeSource source = c.getProtectionDomain().getCodeSource();
+
+			if(source != null && source.getLocation() != null) try {
+				entries.add(new File(source.getLocation().toURI()).getAbsolutePath());
+			} catch(URISyntaxException use) {
+				// Fall back on java.class.path.
+			}
+		}
+
+		for(String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+			if(!entry.isEmpty())
+				entries.add(entry);
+
+		StringBuilder path = new StringBuilder();
+		for(String entry : entries)
+		{
+			if(path.length() > 0)
+				path.append(File.pathSeparator);
+
+			path.append(entry);
+		}
+
+		return path.toString();
+	}
+}
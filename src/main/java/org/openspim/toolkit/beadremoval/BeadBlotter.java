@@ -5,6 +5,10 @@ import ij.ImagePlus;
 
 import java.awt.Component;
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+import java.util.Map;
 
 import javax.swing.JComboBox;
 import javax.swing.JSlider;
@@ -15,6 +19,8 @@ import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.openspim.gui.LayoutUtils;
 import org.openspim.toolkit.BeadProcessor;
 import org.openspim.toolkit.Processor;
+import org.openspim.toolkit.io.IoLimiter;
+import org.openspim.toolkit.io.MappedTiff;
 
 public class BeadBlotter extends BeadProcessor
 {
@@ -22,26 +28,72 @@ public class BeadBlotter extends BeadProcessor
 	{
 	}
 
-	private ImagePlus currentImage;
-	private String currentViewPath;
-	private double zperxy;
+	/**
+	 * Everything about the view being blotted; views are blotted concurrently.
+	 */
+	private static class State
+	{
+		Params params;
+		File view;
+		ImagePlus image;
+		MappedTiff tiff;
+		ByteBuffer[] planes;
+		double zperxy;
+		double s, min, max, ds;
+		BlotMode mode;
+		boolean failed; // Once the view couldn't be changed, it's given up on.
+	}
+
+	private Map<File, State> states = new Hashtable<File, State>();
 
 	@Override
 	public void beginView(Params par, File view)
 	{
-		zperxy = par.zUmPerPix / par.xyUmPerPix;
-		currentImage = IJ.openImage(currentViewPath = view.getAbsolutePath());
+		State st = new State();
+		st.zperxy = par.zUmPerPix / par.xyUmPerPix;
+		st.params = par;
+		st.view = view;
+		st.s = ((Number)sigmaSpinner.getValue()).doubleValue();
+		st.mode = (BlotMode)modeCombo.getSelectedItem();
+		st.min = ((Number)minSpinner.getValue()).doubleValue();
+		st.max = ((Number)maxSpinner.getValue()).doubleValue();
+		st.ds = st.s*dsSlider.getValue();
+
+		// If the run edits in place, uncompressed views are blotted through a
+		// mapping, one plane at a time (each bead's slab under an I/O permit,
+		// since touching the mapping pages it in and out), unless they're
+		// already decoded in the view cache. That isn't atomic: a view the run
+		// stops in the middle of is left partly blotted.
+		st.image = par.views != null ? par.views.acquireIfCached(view) : null;
+		st.tiff = st.image == null && par.inPlace ? MappedTiff.openIfSupported(view, true) : null;
+
+		if(st.tiff != null)
+			st.planes = new ByteBuffer[st.tiff.getDepth()];
+		else if(st.image == null)
+			st.image = openView(par, view);
+
+		states.put(view, st);
 	}
 
 	@Override
 	public boolean processBead(File view, Vector3D bead)
 	{
-		double s = ((Number)sigmaSpinner.getValue()).doubleValue();
+		State st = states.get(view);
+
+		if(st.failed)
+			return true;
+
+		if(st.tiff != null)
+			return processBeadMapped(st, bead);
+
+		ImagePlus currentImage = st.image;
+		double s = st.s;
 		int stride = currentImage.getWidth();
-		BlotMode mode = (BlotMode)modeCombo.getSelectedItem();
-		double min = ((Number)minSpinner.getValue()).doubleValue();
-		double max = ((Number)maxSpinner.getValue()).doubleValue();
-		double ds = s*dsSlider.getValue();
+		BlotMode mode = st.mode;
+		double min = st.min;
+		double max = st.max;
+		double ds = st.ds;
+		double zperxy = st.zperxy;
 
 		for(int z = Math.max((int)(bead.getZ() - ds*zperxy), 1); z <= Math.min((int)(bead.getZ() + ds*zperxy), currentImage.getStackSize()); ++z)
 		{
@@ -51,16 +103,20 @@ public class BeadBlotter extends BeadProcessor
 			{
 				for(int x = Math.max((int)(bead.getX() - ds), 0); x <= Math.min((int)(bead.getX() + ds), stride - 1); ++x)
 				{
+					double factor = Math.min(Math.max(mode.attenuatePixel(new Vector3D(x, y, z), bead, s), min), max);
+					int i = y*stride + x;
+
+					// Samples are unsigned, and rounded and clamped like the mapped path's.
 					switch(currentImage.getType())
 					{
 					case ImagePlus.GRAY8:
-						((byte[])pix)[y*stride + x] *= Math.min(Math.max(mode.attenuatePixel(new Vector3D(x, y, z), bead, s), min), max);
+						((byte[])pix)[i] = (byte) Math.max(0, Math.min(255, Math.round((float) ((((byte[])pix)[i] & 0xff) * factor))));
 						break;
 					case ImagePlus.GRAY16:
-						((short[])pix)[y*stride + x] *= Math.min(Math.max(mode.attenuatePixel(new Vector3D(x, y, z), bead, s), min), max);
+						((short[])pix)[i] = (short) Math.max(0, Math.min(65535, Math.round((float) ((((short[])pix)[i] & 0xffff) * factor))));
 						break;
 					case ImagePlus.GRAY32:
-						((float[])pix)[y*stride + x] *= Math.min(Math.max(mode.attenuatePixel(new Vector3D(x, y, z), bead, s), min), max);
+						((float[])pix)[i] = (float) (((float[])pix)[i] * factor);
 						break;
 					default:
 						throw new Error("Unsupported image type (" + currentImage.getType() + ")!");
@@ -72,11 +128,67 @@ public class BeadBlotter extends BeadProcessor
 		return true;
 	}
 	
+	private boolean processBeadMapped(State st, Vector3D bead)
+	{
+		MappedTiff currentTiff = st.tiff;
+		ByteBuffer[] currentPlanes = st.planes;
+		double s = st.s;
+		int stride = currentTiff.getWidth();
+		BlotMode mode = st.mode;
+		double min = st.min;
+		double max = st.max;
+		double ds = st.ds;
+		double zperxy = st.zperxy;
+
+		IoLimiter.Permit permit = IoLimiter.acquire(st.params.io, st.view);
+		try {
+			for(int z = Math.max((int)(bead.getZ() - ds*zperxy), 1); z <= Math.min((int)(bead.getZ() + ds*zperxy), currentTiff.getDepth()); ++z)
+			{
+				if(currentPlanes[z - 1] == null)
+					currentPlanes[z - 1] = currentTiff.getPlane(z - 1);
+
+				ByteBuffer plane = currentPlanes[z - 1];
+
+				for(int y = Math.max((int)(bead.getY() - ds), 0); y <= Math.min((int)(bead.getY() + ds), currentTiff.getHeight() - 1); ++y)
+				{
+					for(int x = Math.max((int)(bead.getX() - ds), 0); x <= Math.min((int)(bead.getX() + ds), stride - 1); ++x)
+					{
+						double factor = Math.min(Math.max(mode.attenuatePixel(new Vector3D(x, y, z), bead, s), min), max);
+						currentTiff.setf(plane, y*stride + x, (float) (currentTiff.getf(plane, y*stride + x) * factor));
+					}
+				}
+			}
+		} catch(IOException ioe) {
+			IJ.log("Couldn't blot view " + st.view.getName() + " (" + ioe.getMessage() + "); it's only partly blotted.");
+			st.failed = true;
+		} finally {
+			permit.release();
+		}
+
+		return true;
+	}
+	
 	@Override
-	public void endView(File view)
+	public boolean endView(File view)
 	{
-		IJ.saveAs(currentImage, "Tiff", currentViewPath);
-		currentImage.close();
+		State st = states.remove(view);
+
+		if(st.tiff != null)
+		{
+			IoLimiter.Permit permit = IoLimiter.acquire(st.params.io, view);
+			try {
+				st.tiff.close();
+			} catch(IOException ioe) {
+				IJ.handleException(ioe);
+				return false;
+			} finally {
+				permit.release();
+			}
+
+			return !st.failed;
+		}
+
+		return closeView(st.params, view, st.image, true) && !st.failed;
 	}
 
 	private static interface FillFunction
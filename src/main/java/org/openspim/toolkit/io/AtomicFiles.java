@@ -0,0 +1,121 @@
+package org.openspim.toolkit.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replacing files without ever leaving a half-written one behind, and
+ * backing them up with hard links where possible.
+ * <p>
+ * A hard-linked backup shares its data with the original, so it only stays
+ * a backup as long as the original is never changed in place: views are
+ * rewritten by writing a new file next to them and renaming it over the old
+ * one ({@link #saveTiff(ImagePlus, File)}), and anything about to edit a
+ * file in place first {@link #unshare(File) unshares} it.
+ *
+ * @author LOCI
+ *
+ */
+public class AtomicFiles
+{
+	/**
+	 * @return a temporary file next to the given one (so it can be renamed
+	 *         over it), with the same extension (which ImageJ insists on)
+	 */
+	public static File tempFileFor(File target)
+	{
+		return new File(target.getAbsoluteFile().getParentFile(), ".tmp-" + target.getName());
+	}
+
+	/**
+	 * Renames a file over another, atomically if the file system can.
+	 */
+	public static void replace(File from, File to) throws IOException
+	{
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException amnse) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Saves an image as a TIFF to a temporary file, and renames it over the
+	 * target.
+	 */
+	public static void saveTiff(ImagePlus image, File to) throws IOException
+	{
+		File temp = tempFileFor(to);
+
+		if(!IJ.saveAsTiff(image, temp.getAbsolutePath()))
+		{
+			temp.delete();
+			throw new IOException("Couldn't write " + temp.getPath());
+		}
+
+		replace(temp, to);
+	}
+
+	/**
+	 * Hard-links a file to a new name. Only done where the file system
+	 * reports link counts, since otherwise {@link #unshare(File)} couldn't
+	 * tell that the file needs unsharing before it's edited in place (NTFS,
+	 * for one, has hard links but no <code>unix:nlink</code>).
+	 *
+	 * @return false if the link couldn't be made (e.g. across file systems,
+	 *         or on file systems without hard links or link counts); the
+	 *         caller should copy the file instead
+	 */
+	public static boolean link(File existing, File link)
+	{
+		if(linkCount(existing) < 0)
+			return false;
+
+		try {
+			Files.deleteIfExists(link.toPath());
+			Files.createLink(link.toPath(), existing.toPath());
+			return true;
+		} catch(UnsupportedOperationException uoe) {
+			return false;
+		} catch(IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * If a file has other hard links (e.g. a backup), gives it its own copy
+	 * of the data, so that editing it in place leaves the others alone.
+	 */
+	public static void unshare(File file) throws IOException
+	{
+		// Where links can't be counted, none were made.
+		if(linkCount(file) <= 1)
+			return;
+
+		File temp = tempFileFor(file);
+		Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		replace(temp, file);
+	}
+
+	/**
+	 * @return how many names the file has, or -1 if the file system can't say
+	 */
+	private static int linkCount(File file)
+	{
+		try {
+			return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+		} catch(UnsupportedOperationException uoe) {
+			return -1;
+		} catch(IllegalArgumentException iae) {
+			return -1;
+		} catch(IOException ioe) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,510 @@
+package org.openspim.toolkit.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+/**
+ * The beads of a view's <code>.beads.txt</code>, as primitive columns (bead
+ * id, view id, coordinates, and where each bead's line starts in the text),
+ * kept in a binary sidecar next to it (<code>.beads.bin</code>) that is
+ * memory-mapped rather than parsed. The sidecar remembers the length and
+ * modification time of the text it was made from, and is made again
+ * whenever the text has changed.
+ * <p>
+ * The text itself is read by a {@link Parser} that works on the bytes
+ * directly, rather than through a <code>Scanner</code> per line.
+ *
+ * @author LOCI
+ *
+ */
+public class BeadStore
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x42454144; // "BEAD"
+	private static final int VERSION = 1;
+	private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4;
+
+	/**
+	 * Reads bead lines (<code>id view x y z ...</code>, whitespace separated,
+	 * after one header line) one at a time. Anything past the coordinates is
+	 * skipped, but kept in the {@link #getLine() line}.
+	 */
+	public static class Parser
+	{
+		private final InputStream in;
+		private final byte[] buf = new byte[1 << 16];
+		private int pos = 0, limit = 0;
+		private long offset = 0; // Of buf[0] in the stream.
+
+		private byte[] line = new byte[256];
+		private int length;
+		private long lineStart;
+		private int lineNumber = 0;
+		private String header;
+
+		private int at; // Within the line, while parsing.
+
+		public int id, view;
+		public double x, y, z;
+
+		public Parser(InputStream in) throws IOException
+		{
+			this.in = in;
+
+			if(readLine())
+				header = new String(line, 0, length, UTF8);
+		}
+
+		/**
+		 * @return the header line, or null if the text was empty
+		 */
+		public String getHeader()
+		{
+			return header;
+		}
+
+		/**
+		 * Moves to the next bead (skipping blank lines).
+		 *
+		 * @return false at the end of the text
+		 */
+		public boolean next() throws IOException
+		{
+			while(readLine())
+			{
+				at = 0;
+				skipSpace();
+
+				if(at == length)
+					continue;
+
+				id = (int) parseLong();
+				view = (int) parseLong();
+				x = parseDouble();
+				y = parseDouble();
+				z = parseDouble();
+				return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * @return the current line's bytes (without its line break); valid
+		 *         until the next call to {@link #next()}
+		 */
+		public byte[] getLine()
+		{
+			return line;
+		}
+
+		public int getLineLength()
+		{
+			return length;
+		}
+
+		/**
+		 * @return where the current line starts in the text
+		 */
+		public long getLineStart()
+		{
+			return lineStart;
+		}
+
+		private boolean fill() throws IOException
+		{
+			offset += limit;
+			pos = 0;
+			limit = Math.max(in.read(buf), 0);
+			return limit > 0;
+		}
+
+		private boolean readLine() throws IOException
+		{
+			if(pos == limit && !fill())
+				return false;
+
+			lineStart = offset + pos;
+			length = 0;
+			++lineNumber;
+
+			while(true)
+			{
+				if(pos == limit && !fill())
+					break;
+
+				byte b = buf[pos++];
+
+				if(b == '\n')
+					break;
+
+				if(length == line.length)
+					line = Arrays.copyOf(line, length * 2);
+
+				line[length++] = b;
+			}
+
+			if(length > 0 && line[length - 1] == '\r')
+				--length;
+
+			return true;
+		}
+
+		private void skipSpace()
+		{
+			while(at < length && (line[at] == ' ' || line[at] == '\t' || line[at] == ','))
+				++at;
+		}
+
+		private IOException malformed()
+		{
+			return new IOException("Malformed bead on line " + lineNumber + ": " + new String(line, 0, length, UTF8));
+		}
+
+		private long parseLong() throws IOException
+		{
+			skipSpace();
+
+			boolean negative = at < length && line[at] == '-';
+			if(negative || (at < length && line[at] == '+'))
+				++at;
+
+			int start = at;
+			long value = 0;
+
+			while(at < length && line[at] >= '0' && line[at] <= '9')
+				value = value * 10 + (line[at++] - '0');
+
+			if(at == start)
+				throw malformed();
+
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Reads decimals exactly when the digits fit in a double's mantissa
+		 * and the scale is an exact power of ten (as bead coordinates always
+		 * do); anything else goes to Double.parseDouble.
+		 */
+		private double parseDouble() throws IOException
+		{
+			skipSpace();
+
+			int start = at;
+			boolean negative = at < length && line[at] == '-';
+			if(negative || (at < length && line[at] == '+'))
+				++at;
+
+			long mantissa = 0;
+			int digits = 0, scale = 0;
+			boolean exact = true;
+
+			for(boolean fraction = false; at < length; ++at)
+			{
+				byte b = line[at];
+
+				if(b >= '0' && b <= '9')
+				{
+					if(mantissa < (1L << 53) / 10)
+					{
+						mantissa = mantissa * 10 + (b - '0');
+						if(fraction)
+							++scale;
+					}
+					else
+					{
+						exact = false;
+					}
+
+					++digits;
+				}
+				else if(b == '.' && !fraction)
+				{
+					fraction = true;
+				}
+				else
+				{
+					break;
+				}
+			}
+
+			// Exponents, NaN, Infinity and the like.
+			while(at < length && line[at] != ' ' && line[at] != '\t' && line[at] != ',')
+			{
+				exact = false;
+				++at;
+			}
+
+			if(at == start)
+				throw malformed();
+
+			if(exact && digits > 0 && scale < POWERS.length)
+			{
+				double value = mantissa / POWERS[scale];
+				return negative ? -value : value;
+			}
+
+			try {
+				return Double.parseDouble(new String(line, start, at - start, UTF8));
+			} catch(NumberFormatException nfe) {
+				throw malformed();
+			}
+		}
+
+		private static final double[] POWERS = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+		};
+	}
+
+	private final int count;
+	private final String header;
+	private final LongBuffer offsets;
+	private final DoubleBuffer xs, ys, zs;
+	private final IntBuffer ids, views;
+
+	private BeadStore(ByteBuffer data) throws IOException
+	{
+		if(data.getInt(0) != MAGIC || data.getInt(4) != VERSION)
+			throw new IOException("Not a bead store");
+
+		count = data.getInt(24);
+		int headerBytes = data.getInt(28);
+
+		byte[] text = new byte[headerBytes];
+		data.position(HEADER);
+		data.get(text);
+		header = new String(text, UTF8);
+
+		int p = align(HEADER + headerBytes);
+		offsets = column(data, p).asLongBuffer();
+		xs = column(data, p += 8 * count).asDoubleBuffer();
+		ys = column(data, p += 8 * count).asDoubleBuffer();
+		zs = column(data, p += 8 * count).asDoubleBuffer();
+		ids = column(data, p += 8 * count).asIntBuffer();
+		views = column(data, p += 4 * count).asIntBuffer();
+	}
+
+	private static int align(int p)
+	{
+		return (p + 7) & ~7;
+	}
+
+	private static ByteBuffer column(ByteBuffer data, int at)
+	{
+		data.position(at);
+		return data.slice();
+	}
+
+	/**
+	 * @return where the sidecar of a bead text file goes
+	 */
+	public static File sidecarFor(File text)
+	{
+		String name = text.getName();
+		return new File(text.getAbsoluteFile().getParentFile(), (name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name) + ".bin");
+	}
+
+	/**
+	 * Opens the beads of a text file, from its sidecar if that's up to date,
+	 * or else by parsing the text (and making the sidecar, if it can be
+	 * written).
+	 */
+	public static BeadStore open(File text) throws IOException
+	{
+		long length = text.length(), modified = text.lastModified();
+		File sidecar = sidecarFor(text);
+
+		if(sidecar.exists())
+		{
+			RandomAccessFile raf = new RandomAccessFile(sidecar, "r");
+
+			try {
+				if(raf.length() >= HEADER)
+				{
+					ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+					if(mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION &&
+							mapped.getLong(8) == length && mapped.getLong(16) == modified)
+						return new BeadStore(mapped);
+				}
+			} finally {
+				// The mapping outlives the file.
+				raf.close();
+			}
+		}
+
+		ByteBuffer data = parse(text, length, modified);
+
+		try {
+			File temp = AtomicFiles.tempFileFor(sidecar);
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+
+			try {
+				raf.setLength(0);
+				ByteBuffer out = data.duplicate();
+				out.clear();
+
+				while(out.hasRemaining())
+					raf.getChannel().write(out);
+			} finally {
+				raf.close();
+			}
+
+			AtomicFiles.replace(temp, sidecar);
+		} catch(IOException ioe) {
+			// Read-only, perhaps; the beads are parsed, which is all that's needed now.
+		}
+
+		return new BeadStore(data);
+	}
+
+	private static ByteBuffer parse(File text, long length, long modified) throws IOException
+	{
+		int n = 0;
+		long[] offsets = new long[1024];
+		double[] xyz = new double[3 * 1024];
+		int[] idv = new int[2 * 1024];
+		String header;
+
+		InputStream in = new FileInputStream(text);
+		try {
+			Parser parser = new Parser(in);
+			header = parser.getHeader() != null ? parser.getHeader() : "";
+
+			while(parser.next())
+			{
+				if(n == offsets.length)
+				{
+					offsets = Arrays.copyOf(offsets, n * 2);
+					xyz = Arrays.copyOf(xyz, 3 * n * 2);
+					idv = Arrays.copyOf(idv, 2 * n * 2);
+				}
+
+				offsets[n] = parser.getLineStart();
+				xyz[3*n] = parser.x;
+				xyz[3*n + 1] = parser.y;
+				xyz[3*n + 2] = parser.z;
+				idv[2*n] = parser.id;
+				idv[2*n + 1] = parser.view;
+				++n;
+			}
+		} finally {
+			in.close();
+		}
+
+		byte[] headerBytes = header.getBytes(UTF8);
+		int p = align(HEADER + headerBytes.length);
+		ByteBuffer data = ByteBuffer.allocate(p + n * (8 + 3 * 8 + 2 * 4));
+
+		data.putInt(MAGIC).putInt(VERSION).putLong(length).putLong(modified).putInt(n).putInt(headerBytes.length);
+		data.put(headerBytes);
+
+		data.position(p);
+		for(int i = 0; i < n; ++i)
+			data.putLong(offsets[i]);
+		for(int d = 0; d < 3; ++d)
+			for(int i = 0; i < n; ++i)
+				data.putDouble(xyz[3*i + d]);
+		for(int c = 0; c < 2; ++c)
+			for(int i = 0; i < n; ++i)
+				data.putInt(idv[2*i + c]);
+
+		return data;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * @return the text's header line
+	 */
+	public String getHeader()
+	{
+		return header;
+	}
+
+	public int getId(int i)
+	{
+		return ids.get(i);
+	}
+
+	public int getViewId(int i)
+	{
+		return views.get(i);
+	}
+
+	public double getX(int i)
+	{
+		return xs.get(i);
+	}
+
+	public double getY(int i)
+	{
+		return ys.get(i);
+	}
+
+	public double getZ(int i)
+	{
+		return zs.get(i);
+	}
+
+	/**
+	 * @return a copy of the x column
+	 */
+	public double[] getXs()
+	{
+		return copy(xs);
+	}
+
+	public double[] getYs()
+	{
+		return copy(ys);
+	}
+
+	public double[] getZs()
+	{
+		return copy(zs);
+	}
+
+	private double[] copy(DoubleBuffer column)
+	{
+		double[] out = new double[count];
+		column.duplicate().get(out);
+		return out;
+	}
+
+	/**
+	 * @return where bead i's line starts in the text
+	 */
+	public long getLineOffset(int i)
+	{
+		return offsets.get(i);
+	}
+
+	public List<Vector3D> toVectors()
+	{
+		List<Vector3D> list = new ArrayList<Vector3D>(count);
+
+		for(int i = 0; i < count; ++i)
+			list.add(new Vector3D(xs.get(i), ys.get(i), zs.get(i)));
+
+		return list;
+	}
+}
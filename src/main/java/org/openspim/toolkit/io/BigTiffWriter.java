@@ -0,0 +1,292 @@
+package org.openspim.toolkit.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an uncompressed, single-channel BigTIFF stack one plane at a time,
+ * so stacks of any size (past the 4 GB of classic TIFF, too) can be written
+ * with only one plane in memory. Each plane is followed by its own IFD. The
+ * file is written next to its destination, and only renamed into place once
+ * it is complete.
+ * <p>
+ * Stacks that are known to fit in 4 GB are written as classic TIFF instead,
+ * which plain ImageJ (without Bio-Formats) can open.
+ * <p>
+ * Planes already stored uncompressed, in the writer's byte order, in another
+ * file can be {@link #copyPlane(FileChannel, long) copied} byte for byte
+ * without being decoded.
+ *
+ * @author LOCI
+ *
+ */
+public class BigTiffWriter
+{
+	private static final short TYPE_SHORT = 3;
+	private static final short TYPE_LONG = 4;
+	private static final short TYPE_LONG8 = 16;
+	private static final int ENTRIES = 10;
+
+	private final File target, temp;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final int width, height, bitDepth;
+	private final boolean floatingPoint;
+	private final ByteOrder order;
+	private final boolean big;
+	private final long planeBytes;
+
+	private long lastNextPointer; // Where the previous IFD's (or the header's) next-IFD offset goes.
+	private int planes = 0;
+
+	/**
+	 * @param bitDepth 8, 16 (unsigned integers) or 32
+	 * @param floatingPoint whether 32-bit samples are floating point (rather than unsigned integers)
+	 * @param order the byte order of the file (best chosen to match any planes to be copied)
+	 * @param expectedPlanes how many planes will be written, if known (or 0), to
+	 *        choose between classic TIFF and BigTIFF
+	 */
+	public BigTiffWriter(File target, int width, int height, int bitDepth, boolean floatingPoint, ByteOrder order, int expectedPlanes) throws IOException
+	{
+		if(bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IOException("Can't write " + bitDepth + "-bit samples");
+
+		this.target = target;
+		this.temp = AtomicFiles.tempFileFor(target);
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.floatingPoint = floatingPoint;
+		this.order = order;
+		this.planeBytes = (long) width * height * (bitDepth / 8);
+		this.big = expectedPlanes <= 0 || 16 + expectedPlanes * (planeBytes + 1 + ifdSize(false)) > 0xFFFFFFFFL;
+
+		this.raf = new RandomAccessFile(temp, "rw");
+		raf.setLength(0);
+		this.channel = raf.getChannel();
+
+		ByteBuffer header = buffer(big ? 16 : 8);
+		byte mark = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+		header.put(mark).put(mark);
+
+		// The first IFD's offset is filled in by the first plane.
+		if(big)
+		{
+			header.putShort((short) 43);
+			header.putShort((short) 8); // Offset size.
+			header.putShort((short) 0);
+			header.putLong(0);
+			lastNextPointer = 8;
+		}
+		else
+		{
+			header.putShort((short) 42);
+			header.putInt(0);
+			lastNextPointer = 4;
+		}
+
+		write(header, 0);
+	}
+
+	private static int ifdSize(boolean big)
+	{
+		return big ? 8 + ENTRIES * 20 + 8 : 2 + ENTRIES * 12 + 4;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	public boolean isFloatingPoint()
+	{
+		return floatingPoint;
+	}
+
+	public ByteOrder getByteOrder()
+	{
+		return order;
+	}
+
+	public boolean isBigTiff()
+	{
+		return big;
+	}
+
+	public int getPlaneCount()
+	{
+		return planes;
+	}
+
+	private ByteBuffer buffer(int size)
+	{
+		return ByteBuffer.allocate(size).order(order);
+	}
+
+	private void write(ByteBuffer data, long at) throws IOException
+	{
+		data.flip();
+
+		while(data.hasRemaining())
+			channel.write(data, at + data.position());
+	}
+
+	/**
+	 * Appends a plane.
+	 *
+	 * @param pixels byte[], short[] or float[], as per the bit depth (int[]
+	 *        for 32-bit integer samples)
+	 */
+	public void writePlane(Object pixels) throws IOException
+	{
+		long at = channel.size();
+		ByteBuffer data = buffer((int) planeBytes);
+
+		if(pixels instanceof byte[])
+			data.put((byte[]) pixels);
+		else if(pixels instanceof short[])
+			data.asShortBuffer().put((short[]) pixels);
+		else if(pixels instanceof float[])
+			data.asFloatBuffer().put((float[]) pixels);
+		else
+			data.asIntBuffer().put((int[]) pixels);
+
+		data.position(data.capacity());
+		write(data, at);
+		endPlane(at);
+	}
+
+	/**
+	 * Appends a plane by copying its bytes from another file, where they are
+	 * stored in this writer's format and byte order.
+	 */
+	public void copyPlane(FileChannel from, long offset) throws IOException
+	{
+		long at = channel.size();
+		long copied = 0;
+
+		while(copied < planeBytes)
+		{
+			long n = from.transferTo(offset + copied, planeBytes - copied, channel.position(at + copied));
+
+			if(n <= 0)
+				throw new IOException("Source plane is truncated");
+
+			copied += n;
+		}
+
+		endPlane(at);
+	}
+
+	/**
+	 * Writes the IFD for a plane just written at the given offset, and links
+	 * it to the previous one.
+	 */
+	private void endPlane(long dataAt) throws IOException
+	{
+		long ifdAt = channel.size();
+		ifdAt += ifdAt & 1; // IFDs start on a word boundary.
+
+		if(!big && ifdAt + ifdSize(false) > 0xFFFFFFFFL)
+			throw new IOException(target.getName() + " has outgrown classic TIFF; more planes were written than expected");
+
+		short offsetType = big ? TYPE_LONG8 : TYPE_LONG;
+		ByteBuffer ifd = buffer(ifdSize(big));
+
+		if(big)
+			ifd.putLong(ENTRIES);
+		else
+			ifd.putShort((short) ENTRIES);
+
+		entry(ifd, 256, TYPE_LONG, width);
+		entry(ifd, 257, TYPE_LONG, height);
+		entry(ifd, 258, TYPE_SHORT, bitDepth);
+		entry(ifd, 259, TYPE_SHORT, 1); // No compression.
+		entry(ifd, 262, TYPE_SHORT, 1); // Black is zero.
+		entry(ifd, 273, offsetType, dataAt);
+		entry(ifd, 277, TYPE_SHORT, 1);
+		entry(ifd, 278, TYPE_LONG, height); // One strip per plane.
+		entry(ifd, 279, offsetType, planeBytes);
+		entry(ifd, 339, TYPE_SHORT, floatingPoint ? 3 : 1);
+		pointer(ifd, 0); // Last IFD, for now.
+		write(ifd, ifdAt);
+
+		ByteBuffer next = buffer(big ? 8 : 4);
+		pointer(next, ifdAt);
+		write(next, lastNextPointer);
+
+		lastNextPointer = ifdAt + ifdSize(big) - (big ? 8 : 4);
+		++planes;
+	}
+
+	private void pointer(ByteBuffer into, long offset)
+	{
+		if(big)
+			into.putLong(offset);
+		else
+			into.putInt((int) offset);
+	}
+
+	private void entry(ByteBuffer ifd, int tag, short type, long value)
+	{
+		ifd.putShort((short) tag);
+		ifd.putShort(type);
+
+		if(big)
+			ifd.putLong(1);
+		else
+			ifd.putInt(1);
+
+		int start = ifd.position();
+		switch(type)
+		{
+		case TYPE_SHORT: ifd.putShort((short) value); break;
+		case TYPE_LONG: ifd.putInt((int) value); break;
+		default: ifd.putLong(value); break;
+		}
+
+		ifd.position(start + (big ? 8 : 4));
+	}
+
+	/**
+	 * Finishes the file and moves it into place.
+	 */
+	public void close() throws IOException
+	{
+		try {
+			channel.force(false);
+		} finally {
+			raf.close();
+		}
+
+		AtomicFiles.replace(temp, target);
+	}
+
+	/**
+	 * Gives up on the file.
+	 */
+	public void abort()
+	{
+		try {
+			raf.close();
+		} catch(IOException ioe) {
+			// Removing it is all that's left.
+		}
+
+		temp.delete();
+	}
+}
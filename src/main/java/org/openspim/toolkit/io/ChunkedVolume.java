@@ -0,0 +1,364 @@
+package org.openspim.toolkit.io;
+
+import ij.ImageStack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A 3D volume stored as independently gzipped blocks, in the N5 layout: a
+ * directory with an <code>attributes.json</code> describing the volume, and
+ * one file per block at <code>x/y/z</code> (in block coordinates) holding a
+ * small header and the block's big-endian samples. Blocks at the far edges
+ * are cut to the volume's size.
+ * <p>
+ * Blocks are written to their own files, so any number of threads (or
+ * processes) can write different blocks at once, and a sub-volume can be
+ * read without touching the blocks around it.
+ *
+ * @author LOCI
+ *
+ */
+public class ChunkedVolume
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String ATTRIBUTES = "attributes.json";
+
+	private final File root;
+	private final int[] dimensions;
+	private final int[] blockSize;
+	private final int bitDepth;
+
+	private ChunkedVolume(File root, int[] dimensions, int[] blockSize, int bitDepth)
+	{
+		this.root = root;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Creates an empty volume, replacing any volume already at the given
+	 * directory.
+	 *
+	 * @param bitDepth 8 or 16 (unsigned integers) or 32 (floating point)
+	 */
+	public static ChunkedVolume create(File root, int[] dimensions, int[] blockSize, int bitDepth) throws IOException
+	{
+		if(bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IOException("Can't store " + bitDepth + "-bit samples");
+
+		if(root.exists())
+			delete(root);
+
+		if(!root.mkdirs())
+			throw new IOException("Couldn't create " + root.getPath());
+
+		ChunkedVolume vol = new ChunkedVolume(root, dimensions.clone(), blockSize.clone(), bitDepth);
+
+		String json = "{\"n5\":\"2.0.0\"," +
+			"\"dimensions\":[" + dimensions[0] + "," + dimensions[1] + "," + dimensions[2] + "]," +
+			"\"blockSize\":[" + blockSize[0] + "," + blockSize[1] + "," + blockSize[2] + "]," +
+			"\"dataType\":\"" + dataType(bitDepth) + "\"," +
+			"\"compression\":{\"type\":\"gzip\",\"level\":-1}}";
+
+		OutputStream out = new FileOutputStream(new File(root, ATTRIBUTES));
+		try {
+			out.write(json.getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+
+		return vol;
+	}
+
+	public static ChunkedVolume open(File root) throws IOException
+	{
+		File attributes = new File(root, ATTRIBUTES);
+		byte[] bytes = new byte[(int) attributes.length()];
+
+		DataInputStream in = new DataInputStream(new FileInputStream(attributes));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+
+		String json = new String(bytes, UTF8);
+		int[] dimensions = intArray(json, "dimensions");
+		int[] blockSize = intArray(json, "blockSize");
+		Matcher type = Pattern.compile("\"dataType\"\\s*:\\s*\"(\\w+)\"").matcher(json);
+
+		if(dimensions.length != 3 || blockSize.length != 3 || !type.find())
+			throw new IOException(attributes.getPath() + " doesn't describe a 3D volume");
+
+		Matcher compression = Pattern.compile("\"compression\"\\s*:\\s*\\{[^}]*\"type\"\\s*:\\s*\"(\\w+)\"").matcher(json);
+		if(compression.find() && !compression.group(1).equals("gzip"))
+			throw new IOException(root.getName() + " isn't gzip-compressed (" + compression.group(1) + ")");
+
+		int bitDepth;
+		if(type.group(1).equals("uint8"))
+			bitDepth = 8;
+		else if(type.group(1).equals("uint16"))
+			bitDepth = 16;
+		else if(type.group(1).equals("float32"))
+			bitDepth = 32;
+		else
+			throw new IOException(root.getName() + " has unsupported samples (" + type.group(1) + ")");
+
+		return new ChunkedVolume(root, dimensions, blockSize, bitDepth);
+	}
+
+	private static int[] intArray(String json, String key) throws IOException
+	{
+		Matcher m = Pattern.compile("\"" + key + "\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+
+		if(!m.find())
+			throw new IOException("No " + key + " in attributes");
+
+		String[] parts = m.group(1).split(",");
+		int[] out = new int[parts.length];
+
+		for(int i = 0; i < parts.length; ++i)
+			out[i] = Integer.parseInt(parts[i].trim());
+
+		return out;
+	}
+
+	private static String dataType(int bitDepth)
+	{
+		return bitDepth == 8 ? "uint8" : bitDepth == 16 ? "uint16" : "float32";
+	}
+
+	private static void delete(File f) throws IOException
+	{
+		File[] children = f.listFiles();
+
+		if(children != null)
+			for(File child : children)
+				delete(child);
+
+		if(!f.delete())
+			throw new IOException("Couldn't remove " + f.getPath());
+	}
+
+	public File getRoot()
+	{
+		return root;
+	}
+
+	public int[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	/**
+	 * @return the number of blocks along each axis
+	 */
+	public int[] getGridSize()
+	{
+		int[] grid = new int[3];
+
+		for(int d = 0; d < 3; ++d)
+			grid[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+
+		return grid;
+	}
+
+	/**
+	 * @return the size of the block at the given grid position (smaller than
+	 *         the block size at the far edges)
+	 */
+	public int[] getBlockSize(int[] grid)
+	{
+		int[] size = new int[3];
+
+		for(int d = 0; d < 3; ++d)
+			size[d] = Math.min(blockSize[d], dimensions[d] - grid[d] * blockSize[d]);
+
+		return size;
+	}
+
+	private File blockFile(int[] grid)
+	{
+		return new File(new File(new File(root, Integer.toString(grid[0])), Integer.toString(grid[1])), Integer.toString(grid[2]));
+	}
+
+	/**
+	 * Writes one block. Different blocks may be written concurrently.
+	 *
+	 * @param data the block's samples (byte[], short[] or float[] as per the
+	 *        bit depth), x fastest, then y, then z
+	 */
+	public void writeBlock(int[] grid, Object data) throws IOException
+	{
+		int[] size = getBlockSize(grid);
+		int n = size[0] * size[1] * size[2];
+		ByteBuffer buf = ByteBuffer.allocate(n * (bitDepth / 8)).order(ByteOrder.BIG_ENDIAN);
+
+		switch(bitDepth)
+		{
+		case 8: buf.put((byte[]) data, 0, n); break;
+		case 16: buf.asShortBuffer().put((short[]) data, 0, n); break;
+		default: buf.asFloatBuffer().put((float[]) data, 0, n); break;
+		}
+
+		File to = blockFile(grid);
+		to.getParentFile().mkdirs();
+		File temp = AtomicFiles.tempFileFor(to);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeShort(0); // Default mode: the block's size, then its samples.
+			out.writeShort(3);
+			for(int d = 0; d < 3; ++d)
+				out.writeInt(size[d]);
+
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(buf.array());
+			gzip.finish();
+		} finally {
+			out.close();
+		}
+
+		AtomicFiles.replace(temp, to);
+	}
+
+	/**
+	 * Reads one block.
+	 *
+	 * @return the block's samples (as for {@link #writeBlock(int[], Object)}),
+	 *         or null if it was never written
+	 */
+	public Object readBlock(int[] grid) throws IOException
+	{
+		File from = blockFile(grid);
+
+		if(!from.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(from)));
+		try {
+			in.readShort();
+			int dims = in.readShort();
+			int n = 1;
+			for(int d = 0; d < dims; ++d)
+				n *= in.readInt();
+
+			byte[] bytes = new byte[n * (bitDepth / 8)];
+			InputStream gzip = new GZIPInputStream(in);
+			new DataInputStream(gzip).readFully(bytes);
+
+			ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+
+			switch(bitDepth)
+			{
+			case 8:
+				return bytes;
+			case 16:
+				short[] shorts = new short[n];
+				buf.asShortBuffer().get(shorts);
+				return shorts;
+			default:
+				float[] floats = new float[n];
+				buf.asFloatBuffer().get(floats);
+				return floats;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a sub-volume, touching only the blocks it overlaps. Parts of it
+	 * that were never written (or lie outside the volume) read as zero.
+	 */
+	public ImageStack read(int x, int y, int z, int width, int height, int depth) throws IOException
+	{
+		ImageStack stack = ImageStack.create(width, height, depth, bitDepth);
+
+		int[] from = { Math.max(x, 0) / blockSize[0], Math.max(y, 0) / blockSize[1], Math.max(z, 0) / blockSize[2] };
+		int[] to = {
+			(Math.min(x + width, dimensions[0]) - 1) / blockSize[0],
+			(Math.min(y + height, dimensions[1]) - 1) / blockSize[1],
+			(Math.min(z + depth, dimensions[2]) - 1) / blockSize[2]
+		};
+
+		int[] grid = new int[3];
+		for(grid[2] = from[2]; grid[2] <= to[2]; ++grid[2])
+			for(grid[1] = from[1]; grid[1] <= to[1]; ++grid[1])
+				for(grid[0] = from[0]; grid[0] <= to[0]; ++grid[0])
+				{
+					Object block = readBlock(grid);
+
+					if(block != null)
+						copyOut(grid, block, stack, x, y, z);
+				}
+
+		return stack;
+	}
+
+	private void copyOut(int[] grid, Object block, ImageStack stack, int x, int y, int z)
+	{
+		int[] size = getBlockSize(grid);
+		int bx = grid[0] * blockSize[0], by = grid[1] * blockSize[1], bz = grid[2] * blockSize[2];
+		int x0 = Math.max(bx, x), x1 = Math.min(bx + size[0], x + stack.getWidth());
+		int y0 = Math.max(by, y), y1 = Math.min(by + size[1], y + stack.getHeight());
+		int z0 = Math.max(bz, z), z1 = Math.min(bz + size[2], z + stack.getSize());
+
+		for(int vz = z0; vz < z1; ++vz)
+		{
+			Object plane = stack.getPixels(vz - z + 1);
+
+			for(int vy = y0; vy < y1; ++vy)
+				System.arraycopy(block, ((vz - bz) * size[1] + (vy - by)) * size[0] + (x0 - bx),
+					plane, (vy - y) * stack.getWidth() + (x0 - x), x1 - x0);
+		}
+	}
+
+	/**
+	 * Cuts the blocks of one slab (one row of blocks in z) out of that slab's
+	 * planes and writes the block at the given x/y grid position.
+	 *
+	 * @param planes the slab's planes (as many as its blocks are deep)
+	 */
+	public void writeFromPlanes(int gx, int gy, int gz, Object[] planes) throws IOException
+	{
+		int[] grid = { gx, gy, gz };
+		int[] size = getBlockSize(grid);
+		int bx = gx * blockSize[0], by = gy * blockSize[1];
+		int n = size[0] * size[1] * size[2];
+		Object block = bitDepth == 8 ? new byte[n] : bitDepth == 16 ? (Object) new short[n] : new float[n];
+
+		for(int z = 0; z < size[2]; ++z)
+			for(int y = 0; y < size[1]; ++y)
+				System.arraycopy(planes[z], (by + y) * dimensions[0] + bx, block, (z * size[1] + y) * size[0], size[0]);
+
+		writeBlock(grid, block);
+	}
+}
@@ -0,0 +1,149 @@
+package org.openspim.toolkit.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many I/O-heavy operations run against each storage device at
+ * once, independently of how many threads there are to compute with; a
+ * spinning array or a network mount is much faster at a few streams than at
+ * dozens seeking back and forth. Devices are told apart by their file store,
+ * so all the directories on one mount share their permits.
+ * <p>
+ * Permits are meant to be held around single reads and writes (a view, a
+ * slice, a block), not around computation, and are taken without regard to
+ * interruption since the wait for one is bounded by such an operation.
+ *
+ * @author LOCI
+ *
+ */
+public class IoLimiter
+{
+	/**
+	 * A permit to do I/O on one device; must be {@link #release() released}.
+	 */
+	public static class Permit
+	{
+		/** What is taken when there is no limiter. */
+		public static final Permit NONE = new Permit(null);
+
+		private Semaphore from;
+
+		private Permit(Semaphore from)
+		{
+			this.from = from;
+		}
+
+		public synchronized void release()
+		{
+			if(from != null)
+				from.release();
+
+			from = null;
+		}
+	}
+
+	private final int permits;
+	private final Map<Object, Integer> overrides = new HashMap<Object, Integer>(); // By device.
+	private final Map<File, Integer> roots = new HashMap<File, Integer>(); // As set.
+	private final Map<Object, Semaphore> devices = new HashMap<Object, Semaphore>();
+	private final Map<File, Object> deviceOf = new HashMap<File, Object>(); // By directory.
+
+	/**
+	 * @param permits how many operations may run at once on each device,
+	 *        unless {@link #setPermits(File, int) set} otherwise
+	 */
+	public IoLimiter(int permits)
+	{
+		if(permits < 1)
+			throw new IllegalArgumentException("An I/O limiter needs at least one permit per device");
+
+		this.permits = permits;
+	}
+
+	public int getPermits()
+	{
+		return permits;
+	}
+
+	/**
+	 * Sets how many operations may run at once on the device the given
+	 * storage root is on. Only takes effect for devices not yet used.
+	 */
+	public synchronized void setPermits(File root, int permits)
+	{
+		overrides.put(device(root.isDirectory() ? root : root.getAbsoluteFile().getParentFile()), Math.max(1, permits));
+		roots.put(root, Math.max(1, permits));
+	}
+
+	/**
+	 * @return the storage roots given their own number of permits
+	 */
+	public synchronized Map<File, Integer> getRootPermits()
+	{
+		return new HashMap<File, Integer>(roots);
+	}
+
+	/**
+	 * Waits for a permit to do I/O on the device a file is (or will be) on.
+	 */
+	public Permit acquire(File file)
+	{
+		Semaphore semaphore;
+
+		synchronized(this)
+		{
+			File dir = file.isDirectory() ? file : file.getAbsoluteFile().getParentFile();
+			Object device = deviceOf.get(dir);
+
+			if(device == null)
+				deviceOf.put(dir, device = device(dir));
+
+			semaphore = devices.get(device);
+
+			if(semaphore == null)
+			{
+				Integer count = overrides.get(device);
+				devices.put(device, semaphore = new Semaphore(count != null ? count : permits, true));
+			}
+		}
+
+		semaphore.acquireUninterruptibly();
+		return new Permit(semaphore);
+	}
+
+	/**
+	 * Takes a permit from the limiter, if there is one.
+	 *
+	 * @param limiter the limiter (e.g. the pipeline's), or null for no limit
+	 */
+	public static Permit acquire(IoLimiter limiter, File file)
+	{
+		return limiter != null ? limiter.acquire(file) : Permit.NONE;
+	}
+
+	/**
+	 * @return the file store of the nearest existing directory at or above
+	 *         the given one, or (if that can't be found) the directory itself
+	 */
+	private static Object device(File dir)
+	{
+		File at = dir.getAbsoluteFile();
+
+		while(at != null && !at.exists())
+			at = at.getParentFile();
+
+		if(at == null)
+			return dir.getAbsoluteFile();
+
+		try {
+			return Files.getFileStore(at.toPath());
+		} catch(IOException ioe) {
+			return at;
+		}
+	}
+}
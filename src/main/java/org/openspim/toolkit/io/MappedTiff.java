@@ -0,0 +1,553 @@
+package org.openspim.toolkit.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads (and edits in place) uncompressed, single-channel TIFF stacks through
+ * memory-mapped planes, rather than decoding the whole stack onto the heap.
+ * The IFDs are parsed once when the file is opened; after that, each plane
+ * is available as a mapped {@link ByteBuffer} (or {@link ShortBuffer}) in
+ * the file's own byte order, so reading or changing a slice touches only
+ * the pages involved. Both classic TIFF and BigTIFF files are understood,
+ * as are ImageJ's large stacks that only describe their first plane.
+ * <p>
+ * Files this can't map (compressed, tiled, multi-sample, or with planes
+ * split into scattered strips) make {@link #open(File, boolean)} throw an
+ * {@link UnsupportedTiffException}; {@link #openIfSupported(File, boolean)}
+ * returns null instead, so callers can fall back on ImageJ.
+ *
+ * @author LOCI
+ *
+ */
+public class MappedTiff
+{
+	public static class UnsupportedTiffException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public UnsupportedTiffException(String message)
+		{
+			super(message);
+		}
+	}
+
+	private static final int TAG_WIDTH = 256;
+	private static final int TAG_HEIGHT = 257;
+	private static final int TAG_BITS_PER_SAMPLE = 258;
+	private static final int TAG_COMPRESSION = 259;
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+	private static final int TAG_STRIP_OFFSETS = 273;
+	private static final int TAG_SAMPLES_PER_PIXEL = 277;
+	private static final int TAG_STRIP_BYTE_COUNTS = 279;
+	private static final int TAG_TILE_WIDTH = 322;
+	private static final int TAG_SAMPLE_FORMAT = 339;
+
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	private static final Pattern IMAGEJ_IMAGES = Pattern.compile("(?m)^images=([0-9]+)$");
+
+	private final File file;
+	private final boolean writable;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private ByteOrder order;
+	private boolean big;
+
+	private int width, height, bitsPerSample;
+	private boolean floatingPoint;
+	private long[] planeOffsets;
+	private long descriptionEntry = -1, descriptionOffset = -1, descriptionLength = 0;
+	private List<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>();
+
+	private MappedTiff(File file, boolean writable) throws IOException
+	{
+		this.file = file;
+		this.writable = writable;
+
+		// Don't edit a hard-linked backup along with the view.
+		if(writable)
+			AtomicFiles.unshare(file);
+
+		this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		this.channel = raf.getChannel();
+
+		try {
+			parse();
+		} catch(IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @param writable whether planes should be mapped for in-place editing
+	 * @throws UnsupportedTiffException if the file's planes can't be mapped
+	 */
+	public static MappedTiff open(File file, boolean writable) throws IOException
+	{
+		return new MappedTiff(file, writable);
+	}
+
+	/**
+	 * @return the mapped file, or null if it can't be mapped (or read)
+	 */
+	public static MappedTiff openIfSupported(File file, boolean writable)
+	{
+		try {
+			return open(file, writable);
+		} catch(IOException ioe) {
+			return null;
+		}
+	}
+
+	private void parse() throws IOException
+	{
+		ByteBuffer header = read(0, 16);
+
+		if(header.get(0) == 'I' && header.get(1) == 'I')
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if(header.get(0) == 'M' && header.get(1) == 'M')
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException(file.getName() + " is not a TIFF file");
+
+		header.order(order);
+
+		int magic = header.getShort(2) & 0xFFFF;
+		long ifd;
+
+		if(magic == 42)
+		{
+			big = false;
+			ifd = header.getInt(4) & 0xFFFFFFFFL;
+		}
+		else if(magic == 43)
+		{
+			big = true;
+			ifd = header.getLong(8);
+		}
+		else
+		{
+			throw new IOException(file.getName() + " is not a TIFF file");
+		}
+
+		List<Long> offsets = new ArrayList<Long>();
+		Set<Long> visited = new HashSet<Long>(); // A corrupt chain can loop back on itself.
+		boolean first = true;
+
+		while(ifd != 0)
+		{
+			if(!visited.add(ifd))
+				throw new UnsupportedTiffException(file.getName() + " has a looping IFD chain");
+
+			ifd = readIFD(ifd, offsets, first);
+			first = false;
+		}
+
+		if(offsets.isEmpty())
+			throw new UnsupportedTiffException(file.getName() + " has no planes");
+
+		// ImageJ writes only the first IFD of very large stacks; the rest of the planes follow it directly.
+		if(offsets.size() == 1 && descriptionOffset >= 0)
+		{
+			Matcher m = IMAGEJ_IMAGES.matcher(getImageDescription());
+
+			if(m.find())
+			{
+				int images = Integer.parseInt(m.group(1));
+				long start = offsets.get(0);
+
+				for(int z = 1; z < images; ++z)
+					offsets.add(start + z * getPlaneBytes());
+			}
+		}
+
+		planeOffsets = new long[offsets.size()];
+		for(int z = 0; z < planeOffsets.length; ++z)
+		{
+			planeOffsets[z] = offsets.get(z);
+
+			if(planeOffsets[z] + getPlaneBytes() > channel.size())
+				throw new UnsupportedTiffException(file.getName() + " is truncated (plane " + z + ")");
+		}
+	}
+
+	/**
+	 * Reads one IFD, adding its plane's offset.
+	 *
+	 * @return the offset of the next IFD, or 0
+	 */
+	private long readIFD(long at, List<Long> offsets, boolean first) throws IOException
+	{
+		int countSize = big ? 8 : 2, entrySize = big ? 20 : 12, pointerSize = big ? 8 : 4;
+
+		long size = channel.size();
+
+		if(at < 0 || at + countSize > size)
+			throw new UnsupportedTiffException(file.getName() + " has an IFD past its end");
+
+		ByteBuffer countBuf = read(at, countSize);
+		long entries = big ? countBuf.getLong(0) : countBuf.getShort(0) & 0xFFFF;
+
+		if(entries < 0 || entries > (size - at - countSize - pointerSize) / entrySize)
+			throw new UnsupportedTiffException(file.getName() + " has an IFD running past its end");
+
+		ByteBuffer ifd = read(at + countSize, (int) (entries * entrySize + pointerSize));
+
+		int w = 0, h = 0, bits = 1, spp = 1, compression = 1, format = 1;
+		long[] stripOffsets = null, stripCounts = null;
+
+		for(int e = 0; e < entries; ++e)
+		{
+			int base = e * entrySize;
+			int tag = ifd.getShort(base) & 0xFFFF;
+
+			switch(tag)
+			{
+			case TAG_WIDTH: w = (int) values(ifd, base)[0]; break;
+			case TAG_HEIGHT: h = (int) values(ifd, base)[0]; break;
+			case TAG_BITS_PER_SAMPLE: bits = (int) values(ifd, base)[0]; break;
+			case TAG_COMPRESSION: compression = (int) values(ifd, base)[0]; break;
+			case TAG_SAMPLES_PER_PIXEL: spp = (int) values(ifd, base)[0]; break;
+			case TAG_SAMPLE_FORMAT: format = (int) values(ifd, base)[0]; break;
+			case TAG_STRIP_OFFSETS: stripOffsets = values(ifd, base); break;
+			case TAG_STRIP_BYTE_COUNTS: stripCounts = values(ifd, base); break;
+			case TAG_TILE_WIDTH: throw new UnsupportedTiffException(file.getName() + " is tiled");
+			case TAG_IMAGE_DESCRIPTION:
+				if(first)
+				{
+					descriptionEntry = at + countSize + base;
+					descriptionLength = count(ifd, base);
+					descriptionOffset = descriptionLength <= pointerSize ? descriptionEntry + (big ? 12 : 8) : pointer(ifd, base);
+				}
+				break;
+			}
+		}
+
+		if(compression != 1)
+			throw new UnsupportedTiffException(file.getName() + " is compressed");
+		if(spp != 1)
+			throw new UnsupportedTiffException(file.getName() + " has " + spp + " samples per pixel");
+		if(bits != 8 && bits != 16 && bits != 32)
+			throw new UnsupportedTiffException(file.getName() + " has " + bits + " bits per sample");
+		if(stripOffsets == null || stripCounts == null || stripOffsets.length != stripCounts.length)
+			throw new UnsupportedTiffException(file.getName() + " has no usable strips");
+
+		for(int s = 1; s < stripOffsets.length; ++s)
+			if(stripOffsets[s] != stripOffsets[s - 1] + stripCounts[s - 1])
+				throw new UnsupportedTiffException(file.getName() + " has non-contiguous strips");
+
+		if(first)
+		{
+			width = w;
+			height = h;
+			bitsPerSample = bits;
+			floatingPoint = format == SAMPLE_FORMAT_FLOAT;
+		}
+		else if(w != width || h != height || bits != bitsPerSample)
+		{
+			throw new UnsupportedTiffException(file.getName() + " has planes of different sizes");
+		}
+
+		offsets.add(stripOffsets[0]);
+
+		int next = (int) (entries * entrySize);
+		return big ? ifd.getLong(next) : ifd.getInt(next) & 0xFFFFFFFFL;
+	}
+
+	private long count(ByteBuffer ifd, int base)
+	{
+		return big ? ifd.getLong(base + 4) : ifd.getInt(base + 4) & 0xFFFFFFFFL;
+	}
+
+	private long pointer(ByteBuffer ifd, int base)
+	{
+		return big ? ifd.getLong(base + 12) : ifd.getInt(base + 8) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Reads the (integer) values of an IFD entry, whether they are stored
+	 * inline or elsewhere in the file.
+	 */
+	private long[] values(ByteBuffer ifd, int base) throws IOException
+	{
+		int type = ifd.getShort(base + 2) & 0xFFFF;
+		int n = (int) count(ifd, base);
+		int size = type == 3 ? 2 : type == 4 ? 4 : type == 16 ? 8 : type == 1 ? 1 : 0;
+
+		if(size == 0)
+			throw new UnsupportedTiffException(file.getName() + " has an unexpected field type " + type);
+
+		ByteBuffer data;
+		int start;
+
+		if(n * size <= (big ? 8 : 4))
+		{
+			data = ifd;
+			start = base + (big ? 12 : 8);
+		}
+		else
+		{
+			data = read(pointer(ifd, base), n * size);
+			start = 0;
+		}
+
+		long[] out = new long[n];
+		for(int i = 0; i < n; ++i)
+		{
+			int at = start + i * size;
+
+			switch(size)
+			{
+			case 1: out[i] = data.get(at) & 0xFF; break;
+			case 2: out[i] = data.getShort(at) & 0xFFFF; break;
+			case 4: out[i] = data.getInt(at) & 0xFFFFFFFFL; break;
+			default: out[i] = data.getLong(at); break;
+			}
+		}
+
+		return out;
+	}
+
+	private ByteBuffer read(long at, int length) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(length);
+
+		while(buf.hasRemaining())
+			if(channel.read(buf, at + buf.position()) < 0)
+				throw new IOException(file.getName() + " is truncated");
+
+		buf.flip();
+		buf.order(order != null ? order : ByteOrder.BIG_ENDIAN);
+		return buf;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return planeOffsets.length;
+	}
+
+	public int getBitsPerSample()
+	{
+		return bitsPerSample;
+	}
+
+	public boolean isFloatingPoint()
+	{
+		return floatingPoint;
+	}
+
+	public ByteOrder getByteOrder()
+	{
+		return order;
+	}
+
+	public boolean isBigTiff()
+	{
+		return big;
+	}
+
+	public long getPlaneBytes()
+	{
+		return (long) width * height * (bitsPerSample / 8);
+	}
+
+	public long getPlaneOffset(int z)
+	{
+		return planeOffsets[z];
+	}
+
+	/**
+	 * @return the first IFD's ImageDescription, or an empty string if it has none
+	 */
+	public String getImageDescription() throws IOException
+	{
+		if(descriptionOffset < 0)
+			return "";
+
+		ByteBuffer text = read(descriptionOffset, (int) descriptionLength);
+		int length = (int) descriptionLength;
+
+		while(length > 0 && text.get(length - 1) == 0)
+			--length;
+
+		return new String(text.array(), 0, length, Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * @return the file offset of the first IFD's ImageDescription entry, or
+	 *         -1 if it has none
+	 */
+	public long getImageDescriptionEntry()
+	{
+		return descriptionEntry;
+	}
+
+	/**
+	 * Maps plane z (0-based), read-only or writable depending on how the file
+	 * was opened. The buffer is in the file's byte order.
+	 */
+	public MappedByteBuffer getPlane(int z) throws IOException
+	{
+		MappedByteBuffer buf = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+			planeOffsets[z], getPlaneBytes());
+
+		buf.order(order);
+
+		if(writable)
+		{
+			synchronized(dirty)
+			{
+				dirty.add(buf);
+			}
+		}
+
+		return buf;
+	}
+
+	/**
+	 * Maps plane z of a 16-bit file as shorts (which are unsigned in the
+	 * image; mask with 0xFFFF).
+	 */
+	public ShortBuffer getShortPlane(int z) throws IOException
+	{
+		if(bitsPerSample != 16)
+			throw new IllegalStateException(file.getName() + " is not 16-bit");
+
+		return getPlane(z).asShortBuffer();
+	}
+
+	/**
+	 * Copies plane z into an array (byte[], short[] or float[]/int[] to match
+	 * the sample type) in one bulk transfer.
+	 */
+	public void readPixels(int z, Object pixels) throws IOException
+	{
+		MappedByteBuffer plane = channel.map(FileChannel.MapMode.READ_ONLY, planeOffsets[z], getPlaneBytes());
+		plane.order(order);
+
+		if(pixels instanceof byte[])
+			plane.get((byte[]) pixels);
+		else if(pixels instanceof short[])
+			plane.asShortBuffer().get((short[]) pixels);
+		else if(pixels instanceof float[])
+			plane.asFloatBuffer().get((float[]) pixels);
+		else
+			plane.asIntBuffer().get((int[]) pixels);
+	}
+
+	/**
+	 * Copies an array back over plane z in one bulk transfer; the file must
+	 * have been opened writable.
+	 */
+	public void writePixels(int z, Object pixels) throws IOException
+	{
+		MappedByteBuffer plane = getPlane(z);
+
+		if(pixels instanceof byte[])
+			plane.put((byte[]) pixels);
+		else if(pixels instanceof short[])
+			plane.asShortBuffer().put((short[]) pixels);
+		else if(pixels instanceof float[])
+			plane.asFloatBuffer().put((float[]) pixels);
+		else
+			plane.asIntBuffer().put((int[]) pixels);
+	}
+
+	/**
+	 * Reads a pixel of a mapped plane as a float, whatever the sample type.
+	 */
+	public float getf(ByteBuffer plane, int index)
+	{
+		switch(bitsPerSample)
+		{
+		case 8:
+			return plane.get(index) & 0xFF;
+		case 16:
+			return plane.getShort(index * 2) & 0xFFFF;
+		default:
+			return floatingPoint ? plane.getFloat(index * 4) : plane.getInt(index * 4);
+		}
+	}
+
+	/**
+	 * Writes a pixel of a mapped plane from a float, whatever the sample
+	 * type; integer values are rounded and clamped to the type's range.
+	 */
+	public void setf(ByteBuffer plane, int index, float value)
+	{
+		switch(bitsPerSample)
+		{
+		case 8:
+			plane.put(index, (byte) Math.max(0, Math.min(255, Math.round(value))));
+			break;
+		case 16:
+			plane.putShort(index * 2, (short) Math.max(0, Math.min(65535, Math.round(value))));
+			break;
+		default:
+			if(floatingPoint)
+				plane.putFloat(index * 4, value);
+			else
+				plane.putInt(index * 4, Math.round(value));
+			break;
+		}
+	}
+
+	/**
+	 * Writes changes made through writable mappings back to the file.
+	 */
+	public void force() throws IOException
+	{
+		if(!writable)
+			return;
+
+		synchronized(dirty)
+		{
+			for(MappedByteBuffer buf : dirty)
+				buf.force();
+
+			dirty.clear();
+		}
+
+		channel.force(false);
+	}
+
+	/**
+	 * Closes the file. Buffers already mapped stay valid until they are
+	 * garbage collected.
+	 */
+	public void close() throws IOException
+	{
+		force();
+		raf.close();
+	}
+}
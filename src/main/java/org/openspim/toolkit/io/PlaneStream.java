@@ -0,0 +1,316 @@
+package org.openspim.toolkit.io;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.openspim.toolkit.ViewCache;
+import org.openspim.toolkit.WriteBehindQueue;
+
+/**
+ * Delivers the planes of a view in z order, reading a bounded number of
+ * planes ahead on a background thread, and writes changed planes straight
+ * back. Only the planes read ahead (plus the one being processed and the one
+ * being read) are in memory at a time, so views larger than the heap can be
+ * processed.
+ * <p>
+ * Views already in the {@link ViewCache} (if there is one) are streamed
+ * from the cached copy. Otherwise, uncompressed views are read through a
+ * {@link MappedTiff}, and anything else is loaded whole through the cache,
+ * or without one, read through an ImageJ virtual stack. A view that is to be
+ * written is loaded whole and saved (atomically) when the stream is closed,
+ * in the background if there is a {@link WriteBehindQueue}; unless editing in
+ * place was asked for, in which case uncompressed views are written straight
+ * through the mapping. That needs no more memory than reading, but isn't
+ * atomic: if the run stops partway through a view, the view is left partly
+ * processed.
+ * <p>
+ * Every read and write that goes to disk takes an {@link IoLimiter} permit
+ * for just that plane (or whole view), so the reader thread never holds one
+ * while it waits for room to read ahead.
+ *
+ * @author LOCI
+ *
+ */
+public class PlaneStream
+{
+	private static final Object END = new Object();
+
+	private final File view;
+	private final MappedTiff tiff;
+	private final ImagePlus image;
+	private final ViewCache cache;
+	private final WriteBehindQueue writes;
+	private final IoLimiter io;
+	private final boolean loadedWhole;
+	private final int width, height, depth, bitDepth;
+
+	private final BlockingQueue<Object> ahead;
+	private final Thread reader;
+	private volatile Throwable readFailure;
+	private boolean modified = false;
+	private int nextZ = 0;
+
+	private PlaneStream(File view, boolean writable, boolean inPlace, int lookAhead, ViewCache cache, WriteBehindQueue writes, IoLimiter io) throws IOException
+	{
+		this.view = view;
+		this.writes = writes;
+		this.io = io;
+
+		ImagePlus cached = cache != null ? cache.acquireIfCached(view) : null;
+		this.tiff = cached == null && (!writable || inPlace) ? MappedTiff.openIfSupported(view, writable) : null;
+
+		if(tiff == null && cached == null && cache != null)
+			cached = cache.acquire(view);
+
+		this.cache = cached != null ? cache : null;
+
+		if(cached != null)
+		{
+			image = cached;
+			loadedWhole = true;
+			width = image.getWidth();
+			height = image.getHeight();
+			depth = image.getStackSize();
+			bitDepth = image.getBitDepth();
+		}
+		else if(tiff != null)
+		{
+			image = null;
+			loadedWhole = false;
+			width = tiff.getWidth();
+			height = tiff.getHeight();
+			depth = tiff.getDepth();
+			bitDepth = tiff.getBitsPerSample();
+		}
+		else
+		{
+			loadedWhole = writable;
+
+			IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+			try {
+				image = writable ? IJ.openImage(view.getAbsolutePath()) : IJ.openVirtual(view.getAbsolutePath());
+			} finally {
+				permit.release();
+			}
+
+			if(image == null)
+				throw new IOException("Couldn't open " + view.getPath());
+
+			width = image.getWidth();
+			height = image.getHeight();
+			depth = image.getStackSize();
+			bitDepth = image.getBitDepth();
+		}
+
+		ahead = new ArrayBlockingQueue<Object>(Math.max(1, lookAhead));
+		reader = new Thread("Plane reader for " + view.getName())
+		{
+			@Override
+			public void run()
+			{
+				try {
+					for(int z = 0; z < depth; ++z)
+						ahead.put(read(z));
+
+					ahead.put(END);
+				} catch(InterruptedException ie) {
+					// Closed early.
+				} catch(Throwable t) {
+					readFailure = t;
+					ahead.offer(END);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @param writable whether planes will be written back with {@link #write(int, ImageProcessor)}
+	 * @param inPlace whether uncompressed views may be written through a
+	 *        mapping, in place (see above)
+	 * @param lookAhead how many planes to read ahead of the one being processed
+	 * @param cache the cache to share decoded views through, or null
+	 * @param writes the queue to save whole-loaded views through, or null
+	 * @param io the limiter to take I/O permits from, or null
+	 */
+	public static PlaneStream open(File view, boolean writable, boolean inPlace, int lookAhead, ViewCache cache, WriteBehindQueue writes, IoLimiter io) throws IOException
+	{
+		return new PlaneStream(view, writable, inPlace, lookAhead, cache, writes, io);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	private ImageProcessor read(int z) throws IOException
+	{
+		if(loadedWhole)
+			return image.getStack().getProcessor(z + 1);
+
+		IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+		try {
+			return tiff != null ? readMapped(z) : image.getStack().getProcessor(z + 1);
+		} finally {
+			permit.release();
+		}
+	}
+
+	private ImageProcessor readMapped(int z) throws IOException
+	{
+
+		ImageProcessor ip;
+		switch(bitDepth)
+		{
+		case 8: ip = new ByteProcessor(width, height); break;
+		case 16: ip = new ShortProcessor(width, height); break;
+		default: ip = new FloatProcessor(width, height); break;
+		}
+
+		if(bitDepth == 32 && !tiff.isFloatingPoint())
+		{
+			// 32-bit integer samples; ImageJ only has float for 32 bits.
+			int[] raw = new int[width * height];
+			float[] pixels = (float[]) ip.getPixels();
+			tiff.readPixels(z, raw);
+
+			for(int i = 0; i < raw.length; ++i)
+				pixels[i] = raw[i];
+		}
+		else
+		{
+			tiff.readPixels(z, ip.getPixels());
+		}
+
+		return ip;
+	}
+
+	/**
+	 * @return the next plane (in z order), or null when there are no more
+	 */
+	public ImageProcessor next() throws IOException, InterruptedException
+	{
+		if(nextZ >= depth)
+			return null;
+
+		Object plane = ahead.take();
+
+		if(plane == END)
+		{
+			if(readFailure instanceof IOException)
+				throw (IOException) readFailure;
+
+			throw new IOException("Couldn't read " + view.getName(), readFailure);
+		}
+
+		++nextZ;
+		return (ImageProcessor) plane;
+	}
+
+	/**
+	 * Writes a changed plane (0-based z) back to the view.
+	 */
+	public void write(int z, ImageProcessor plane) throws IOException
+	{
+		modified = true;
+
+		if(tiff == null)
+		{
+			image.getStack().setPixels(plane.getPixels(), z + 1);
+			return;
+		}
+
+		Object pixels = plane.getPixels();
+
+		if(bitDepth == 32 && !tiff.isFloatingPoint())
+		{
+			float[] floats = (float[]) pixels;
+			int[] raw = new int[floats.length];
+
+			for(int i = 0; i < raw.length; ++i)
+				raw[i] = Math.round(floats[i]);
+
+			pixels = raw;
+		}
+
+		IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+		try {
+			tiff.writePixels(z, pixels);
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Stops reading ahead and flushes any changes to the view.
+	 */
+	public void close() throws IOException
+	{
+		reader.interrupt();
+
+		if(tiff != null)
+		{
+			IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+			try {
+				tiff.close();
+			} finally {
+				permit.release();
+			}
+
+			return;
+		}
+
+		if(cache != null)
+		{
+			cache.release(view, modified);
+			return;
+		}
+
+		if(loadedWhole && modified && writes != null)
+		{
+			try {
+				writes.saveTiff(image, view);
+				return;
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if(loadedWhole && modified)
+		{
+			IoLimiter.Permit permit = IoLimiter.acquire(io, view);
+			try {
+				AtomicFiles.saveTiff(image, view);
+			} finally {
+				permit.release();
+			}
+		}
+
+		image.close();
+	}
+}
@@ -0,0 +1,282 @@
+package org.openspim.toolkit.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads and rewrites the ImageDescription tags of a TIFF (or BigTIFF) file
+ * by walking its IFD chain, without touching (or even understanding) the
+ * pixel data; this works on compressed files too. Rewriting a description
+ * changes only its IFD entry and the text itself, so stripping the OME-XML
+ * off a multi-gigabyte view is a write of a few kilobytes rather than a
+ * decode and re-encode of the whole stack.
+ *
+ * @author LOCI
+ *
+ */
+public class TiffMetadata
+{
+	private static final int TAG_IMAGE_DESCRIPTION = 270;
+	private static final int TYPE_ASCII = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private ByteOrder order;
+	private boolean big;
+
+	private List<Long> descriptionEntries = new ArrayList<Long>(); // File offsets of the ImageDescription entries, by IFD.
+
+	private TiffMetadata(File file, boolean writable) throws IOException
+	{
+		this.file = file;
+
+		if(writable)
+			AtomicFiles.unshare(file);
+
+		this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		this.channel = raf.getChannel();
+
+		try {
+			parse();
+		} catch(IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @return the first IFD's ImageDescription, or an empty string if it has none
+	 */
+	public static String readDescription(File file) throws IOException
+	{
+		TiffMetadata tiff = new TiffMetadata(file, false);
+
+		try {
+			return tiff.descriptionEntries.isEmpty() ? "" : tiff.text(tiff.descriptionEntries.get(0));
+		} finally {
+			tiff.raf.close();
+		}
+	}
+
+	/**
+	 * Replaces the first IFD's ImageDescription with the given text, and
+	 * empties any other IFDs' descriptions. The old text is zeroed; the new
+	 * one goes where the old one was if it fits, and at the end of the file
+	 * otherwise.
+	 *
+	 * @return false if the file has no ImageDescription to replace
+	 */
+	public static boolean replaceDescription(File file, String text) throws IOException
+	{
+		TiffMetadata tiff = new TiffMetadata(file, true);
+
+		try {
+			if(tiff.descriptionEntries.isEmpty())
+				return false;
+
+			byte[] bytes = (text + "\0").getBytes(UTF8);
+
+			// IFDs may share one description, so blank them all before writing any.
+			for(long entry : tiff.descriptionEntries)
+				tiff.blank(entry);
+
+			for(int i = 0; i < tiff.descriptionEntries.size(); ++i)
+				tiff.rewrite(tiff.descriptionEntries.get(i), i == 0 ? bytes : new byte[] { 0 });
+
+			tiff.channel.force(false);
+			return true;
+		} finally {
+			tiff.raf.close();
+		}
+	}
+
+	private void parse() throws IOException
+	{
+		ByteBuffer header = read(0, 16);
+
+		if(header.get(0) == 'I' && header.get(1) == 'I')
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if(header.get(0) == 'M' && header.get(1) == 'M')
+			order = ByteOrder.BIG_ENDIAN;
+		else
+			throw new IOException(file.getName() + " is not a TIFF file");
+
+		header.order(order);
+
+		int magic = header.getShort(2) & 0xFFFF;
+		long ifd;
+
+		if(magic == 42)
+		{
+			big = false;
+			ifd = header.getInt(4) & 0xFFFFFFFFL;
+		}
+		else if(magic == 43)
+		{
+			big = true;
+			ifd = header.getLong(8);
+		}
+		else
+		{
+			throw new IOException(file.getName() + " is not a TIFF file");
+		}
+
+		int countSize = big ? 8 : 2, entrySize = big ? 20 : 12, pointerSize = big ? 8 : 4;
+		long size = channel.size();
+		Set<Long> visited = new HashSet<Long>(); // A corrupt chain can loop back on itself.
+
+		while(ifd != 0)
+		{
+			if(ifd < 0 || ifd + countSize > size)
+				throw new IOException(file.getName() + " has an IFD past its end");
+
+			if(!visited.add(ifd))
+				throw new IOException(file.getName() + " has a looping IFD chain");
+
+			ByteBuffer countBuf = read(ifd, countSize);
+			long entries = big ? countBuf.getLong(0) : countBuf.getShort(0) & 0xFFFF;
+
+			if(entries < 0 || entries > (size - ifd - countSize - pointerSize) / entrySize)
+				throw new IOException(file.getName() + " has an IFD running past its end");
+
+			ByteBuffer entryBuf = read(ifd + countSize, (int) (entries * entrySize + pointerSize));
+
+			for(int e = 0; e < entries; ++e)
+				if((entryBuf.getShort(e * entrySize) & 0xFFFF) == TAG_IMAGE_DESCRIPTION)
+					descriptionEntries.add(ifd + countSize + e * entrySize);
+
+			int next = (int) (entries * entrySize);
+			ifd = big ? entryBuf.getLong(next) : entryBuf.getInt(next) & 0xFFFFFFFFL;
+		}
+	}
+
+	private long count(ByteBuffer entry)
+	{
+		return big ? entry.getLong(4) : entry.getInt(4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return where an entry's value is: inline, or at the offset it points to
+	 */
+	private long valueOffset(long entryAt, ByteBuffer entry)
+	{
+		if(count(entry) <= (big ? 8 : 4))
+			return entryAt + (big ? 12 : 8);
+
+		return big ? entry.getLong(12) : entry.getInt(8) & 0xFFFFFFFFL;
+	}
+
+	private String text(long entryAt) throws IOException
+	{
+		ByteBuffer entry = read(entryAt, big ? 20 : 12);
+		int length = (int) count(entry);
+		ByteBuffer text = read(valueOffset(entryAt, entry), length);
+
+		while(length > 0 && text.get(length - 1) == 0)
+			--length;
+
+		return new String(text.array(), 0, length, UTF8);
+	}
+
+	/**
+	 * Zeroes an entry's old text, unless it's inline (where the new value goes).
+	 */
+	private void blank(long entryAt) throws IOException
+	{
+		ByteBuffer entry = read(entryAt, big ? 20 : 12);
+
+		if(count(entry) > (big ? 8 : 4))
+			write(valueOffset(entryAt, entry), ByteBuffer.allocate((int) count(entry)));
+	}
+
+	private void rewrite(long entryAt, byte[] bytes) throws IOException
+	{
+		int inline = big ? 8 : 4;
+		ByteBuffer entry = read(entryAt, big ? 20 : 12);
+		long oldCount = count(entry);
+		long newAt;
+
+		if(bytes.length <= inline)
+			newAt = entryAt + (big ? 12 : 8);
+		else if(oldCount > inline && bytes.length <= oldCount)
+			newAt = valueOffset(entryAt, entry);
+		else
+			newAt = channel.size() + (channel.size() & 1); // Values start on word boundaries.
+
+		if(!big && newAt > 0xFFFFFFFFL)
+			throw new IOException(file.getName() + " has no room for a longer description");
+
+		if(newAt != entryAt + (big ? 12 : 8))
+			write(newAt, ByteBuffer.wrap(bytes));
+
+		entry.putShort(2, (short) TYPE_ASCII);
+
+		if(big)
+		{
+			entry.putLong(4, bytes.length);
+
+			if(bytes.length <= inline)
+			{
+				putBytes(entry, 12, new byte[inline]);
+				putBytes(entry, 12, bytes);
+			}
+			else
+			{
+				entry.putLong(12, newAt);
+			}
+		}
+		else
+		{
+			entry.putInt(4, bytes.length);
+
+			if(bytes.length <= inline)
+			{
+				putBytes(entry, 8, new byte[inline]);
+				putBytes(entry, 8, bytes);
+			}
+			else
+			{
+				entry.putInt(8, (int) newAt);
+			}
+		}
+
+		entry.rewind();
+		write(entryAt, entry);
+	}
+
+	private static void putBytes(ByteBuffer into, int at, byte[] bytes)
+	{
+		for(int i = 0; i < bytes.length; ++i)
+			into.put(at + i, bytes[i]);
+	}
+
+	private ByteBuffer read(long at, int length) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(length);
+
+		while(buf.hasRemaining())
+			if(channel.read(buf, at + buf.position()) < 0)
+				throw new IOException(file.getName() + " is truncated");
+
+		buf.flip();
+		buf.order(order != null ? order : ByteOrder.BIG_ENDIAN);
+		return buf;
+	}
+
+	private void write(long at, ByteBuffer data) throws IOException
+	{
+		while(data.hasRemaining())
+			channel.write(data, at + data.position());
+	}
+}
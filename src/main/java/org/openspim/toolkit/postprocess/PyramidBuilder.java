@@ -0,0 +1,309 @@
+package org.openspim.toolkit.postprocess;
+
+import ij.IJ;
+
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.swing.JCheckBox;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+
+import org.openspim.gui.LayoutUtils;
+import org.openspim.toolkit.FusedVolume;
+import org.openspim.toolkit.OpenSPIMToolkit;
+import org.openspim.toolkit.Processor;
+import org.openspim.toolkit.io.BigTiffWriter;
+import org.openspim.toolkit.io.IoLimiter;
+
+/**
+ * Builds a downsampled resolution pyramid of each fused volume, and its XY,
+ * XZ and ZY maximum projections, reading the volume once. Each level is
+ * binned 2x in x, y and z from the one above it; levels are written to an
+ * <code>overview</code> directory next to the fused output as
+ * <code>&lt;volume&gt;_s&lt;level&gt;.tif</code>, and the projections as
+ * <code>&lt;volume&gt;_max_xy.tif</code> (and so on).
+ * <p>
+ * Only one plane per level (and the projections) is ever held in memory.
+ *
+ * @author LOCI
+ *
+ */
+public class PyramidBuilder implements Processor {
+	/**
+	 * One level of the pyramid. Planes come in from the level above, are
+	 * binned in x and y, and summed in pairs; every other plane, the mean is
+	 * written out and passed on to the level below.
+	 */
+	private static class Level {
+		final int width, height, srcWidth, srcHeight, bitDepth;
+		final float[] sum;
+		final BigTiffWriter writer;
+		int planes = 0; // Summed so far (0-2).
+		Level next;
+
+		Level(int srcWidth, int srcHeight, int bitDepth, BigTiffWriter writer) {
+			this.srcWidth = srcWidth;
+			this.srcHeight = srcHeight;
+			this.width = writer.getWidth();
+			this.height = writer.getHeight();
+			this.bitDepth = bitDepth;
+			this.writer = writer;
+			this.sum = new float[width * height];
+		}
+	}
+
+	@Override
+	public int getCapabilities() {
+		return Processor.POST_FUSION;
+	}
+
+	@Override
+	public void performProcessing(final Params params) throws InterruptedException, ExecutionException {
+		final int levels = ((Number)levelCount.getValue()).intValue();
+		final boolean projections = project.isSelected();
+
+		if(levels == 0 && !projections)
+			return;
+
+		File outputDir = OpenSPIMToolkit.getOutputDirectory(params.spec.iterator().next());
+		Map<Integer, FusedVolume> volumes;
+
+		try {
+			volumes = FusedVolume.find(outputDir, params.spec);
+		} catch(IOException ioe) {
+			throw new ExecutionException("Couldn't open the fused output", ioe);
+		}
+
+		if(volumes.isEmpty()) {
+			IJ.log("Pyramid Builder: no fused output to downsample.");
+			return;
+		}
+
+		// Kept apart, so that nothing mistakes it for fused output.
+		final File into = new File(outputDir, "overview");
+		if(!into.isDirectory() && !into.mkdirs())
+			throw new ExecutionException(new IOException("Couldn't create " + into.getPath()));
+
+		// Volumes are independent; each is read by one thread.
+		List<Future<Void>> futures = new LinkedList<Future<Void>>();
+
+		for(final FusedVolume volume : volumes.values()) {
+			futures.add(params.invokeOn.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					build(volume, into, levels, projections, params.io);
+					return null;
+				}
+			}));
+		}
+
+		for(Future<Void> f : futures)
+			f.get();
+	}
+
+	private static int half(int n) {
+		return (n + 1) / 2;
+	}
+
+	private static void build(FusedVolume volume, File into, int levels, boolean projections, IoLimiter io) throws IOException {
+		int w = volume.getWidth(), h = volume.getHeight(), d = volume.getDepth();
+		int bitDepth = volume.getBitDepth();
+
+		if(bitDepth == 24)
+			throw new IOException("Can't downsample RGB volume " + volume.getName());
+
+		List<Level> chain = new ArrayList<Level>();
+		boolean done = false;
+
+		try {
+			// Levels stop once the volume is down to a single voxel.
+			int lw = w, lh = h, ld = d;
+			for(int l = 1; l <= levels && (lw > 1 || lh > 1 || ld > 1); ++l) {
+				BigTiffWriter writer = new BigTiffWriter(new File(into, volume.getName() + "_s" + l + ".tif"),
+					half(lw), half(lh), bitDepth, bitDepth == 32, ByteOrder.LITTLE_ENDIAN, half(ld));
+				Level level = new Level(lw, lh, bitDepth, writer);
+
+				if(!chain.isEmpty())
+					chain.get(chain.size() - 1).next = level;
+
+				chain.add(level);
+				lw = half(lw);
+				lh = half(lh);
+				ld = half(ld);
+			}
+
+			float[] xy = null, xz = null, zy = null;
+			if(projections) {
+				xy = new float[w * h];
+				xz = new float[w * d];
+				zy = new float[d * h];
+				Arrays.fill(xy, Float.NEGATIVE_INFINITY);
+				Arrays.fill(xz, Float.NEGATIVE_INFINITY);
+			}
+
+			for(int z = 0; z < d; ++z) {
+				float[] plane;
+				IoLimiter.Permit permit = IoLimiter.acquire(io, into);
+				try {
+					plane = (float[]) volume.readProcessor(z).convertToFloat().getPixels();
+				} finally {
+					permit.release();
+				}
+
+				if(projections)
+					project(plane, w, h, d, z, xy, xz, zy);
+
+				if(!chain.isEmpty())
+					feed(chain.get(0), plane);
+			}
+
+			// Odd planes left over at the bottom of a level are averaged on their own.
+			for(Level level : chain) {
+				if(level.planes > 0)
+					emit(level);
+
+				level.writer.close();
+			}
+
+			if(projections) {
+				writeProjection(new File(into, volume.getName() + "_max_xy.tif"), xy, w, h, bitDepth);
+				writeProjection(new File(into, volume.getName() + "_max_xz.tif"), xz, w, d, bitDepth);
+				writeProjection(new File(into, volume.getName() + "_max_zy.tif"), zy, d, h, bitDepth);
+			}
+
+			done = true;
+		} finally {
+			if(!done)
+				for(Level level : chain)
+					level.writer.abort();
+		}
+
+		IJ.log("Pyramid Builder: " + volume.getName() + ": " + chain.size() + " level(s)" + (projections ? " and projections" : "") + ".");
+	}
+
+	/**
+	 * Folds one plane into the projections: the XY projection's pixels, the
+	 * XZ projection's row z (x across), and the ZY projection's column z (y
+	 * down).
+	 */
+	private static void project(float[] plane, int w, int h, int d, int z, float[] xy, float[] xz, float[] zy) {
+		int row = z * w;
+
+		for(int y = 0; y < h; ++y) {
+			float rowMax = Float.NEGATIVE_INFINITY;
+
+			for(int x = 0; x < w; ++x) {
+				float v = plane[y * w + x];
+
+				if(v > xy[y * w + x])
+					xy[y * w + x] = v;
+
+				if(v > xz[row + x])
+					xz[row + x] = v;
+
+				if(v > rowMax)
+					rowMax = v;
+			}
+
+			zy[y * d + z] = rowMax;
+		}
+	}
+
+	private static void feed(Level level, float[] plane) throws IOException {
+		float[] sum = level.sum;
+
+		for(int y = 0; y < level.srcHeight; ++y) {
+			int at = (y >> 1) * level.width;
+
+			for(int x = 0; x < level.srcWidth; ++x)
+				sum[at + (x >> 1)] += plane[y * level.srcWidth + x];
+		}
+
+		if(++level.planes == 2)
+			emit(level);
+	}
+
+	/**
+	 * Writes out the mean of the planes summed so far (bins at the right and
+	 * bottom edges may be short of two pixels), and passes it down.
+	 */
+	private static void emit(Level level) throws IOException {
+		float[] mean = new float[level.sum.length];
+
+		for(int y = 0; y < level.height; ++y) {
+			int ny = 2 * y + 1 < level.srcHeight ? 2 : 1;
+
+			for(int x = 0; x < level.width; ++x) {
+				int nx = 2 * x + 1 < level.srcWidth ? 2 : 1;
+				mean[y * level.width + x] = level.sum[y * level.width + x] / (nx * ny * level.planes);
+			}
+		}
+
+		level.writer.writePlane(toPixels(mean, level.bitDepth));
+		Arrays.fill(level.sum, 0);
+		level.planes = 0;
+
+		if(level.next != null)
+			feed(level.next, mean);
+	}
+
+	private static void writeProjection(File to, float[] pixels, int width, int height, int bitDepth) throws IOException {
+		BigTiffWriter writer = new BigTiffWriter(to, width, height, bitDepth, bitDepth == 32, ByteOrder.LITTLE_ENDIAN, 1);
+
+		try {
+			writer.writePlane(toPixels(pixels, bitDepth));
+			writer.close();
+			writer = null;
+		} finally {
+			if(writer != null)
+				writer.abort();
+		}
+	}
+
+	/**
+	 * Rounds samples back to the volume's own type.
+	 */
+	private static Object toPixels(float[] samples, int bitDepth) {
+		if(bitDepth == 32)
+			return samples;
+
+		if(bitDepth == 8) {
+			byte[] bytes = new byte[samples.length];
+			for(int i = 0; i < samples.length; ++i)
+				bytes[i] = (byte) Math.max(0, Math.min(255, Math.round(samples[i])));
+			return bytes;
+		}
+
+		short[] shorts = new short[samples.length];
+		for(int i = 0; i < samples.length; ++i)
+			shorts[i] = (short) Math.max(0, Math.min(65535, Math.round(samples[i])));
+		return shorts;
+	}
+
+	@Override
+	public String toString() {
+		return "Pyramid & Max Projections";
+	}
+
+	private static JSpinner levelCount = new JSpinner(new SpinnerNumberModel(3, 0, 16, 1));
+	private static JCheckBox project = new JCheckBox("", true);
+
+	@Override
+	public Component getControlPanel() {
+		return LayoutUtils.form(
+			"Pyramid Levels:", levelCount,
+			"Max Projections (XY, XZ, ZY):", project
+		);
+	}
+}
@@ -14,12 +14,35 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 
 import org.openspim.gui.LayoutUtils;
 import org.openspim.toolkit.Processor;
 import org.openspim.toolkit.ViewProcessor;
+import org.openspim.toolkit.io.AtomicFiles;
+import org.openspim.toolkit.io.IoLimiter;
+import org.openspim.toolkit.io.TiffMetadata;
 
 public class OmeMetadataStripper extends ViewProcessor {
+	public static enum StripMode
+	{
+		IN_PLACE ("In Place (Metadata Only)"),
+		REWRITE ("Rewrite Whole View");
+
+		private String text;
+
+		private StripMode(String text)
+		{
+			this.text = text;
+		}
+
+		@Override
+		public String toString()
+		{
+			return text;
+		}
+	};
+
 	private static abstract class WBCWrapper implements WritableByteChannel
 	{
 		private WritableByteChannel wbc;
@@ -99,15 +122,23 @@ public class OmeMetadataStripper extends ViewProcessor {
 	}
 	
 	@Override
-	public void processView(Params par, File view) {
+	public boolean processView(Params par, File view) {
 		if(backup.isSelected() && autoskip.isSelected() && (new File(new File(view.getParentFile(), "backup"), view.getName()).exists()))
 		{
 			IJ.log("Backup of view " + view.getName() + " already exists; skipping.");
 			reportProgress(view, 1.0f);
-			return;
+			return true;
 		}
 		
-		ImagePlus img = IJ.openImage(view.getAbsolutePath());
+		boolean ok = true;
+		
+		// The OME-XML lives in the ImageDescription tag; no need to decode any pixels for it.
+		String xml = "";
+		try {
+			xml = TiffMetadata.readDescription(view);
+		} catch(IOException ioe) {
+			IJ.log("Couldn't read the metadata of view " + view.getName() + ": " + ioe.getMessage());
+		}
 		reportProgress(view, backup.isSelected() ? 0.33f : 0.5f);
 		
 		if(backup.isSelected())
@@ -116,32 +147,106 @@ public class OmeMetadataStripper extends ViewProcessor {
 			if(!odir.exists())
 				odir.mkdir();
 			
-			copy(view, new File(odir, view.getName()));
-			
-			IJ.log("Backed up view " + view.getName() + ".");
+			// Views are only ever replaced (or unshared before being edited in
+			// place), so a hard link is as good as a copy, and free.
+			File to = new File(odir, view.getName());
+			IoLimiter.Permit permit = IoLimiter.acquire(par.io, to);
+			try {
+				if(AtomicFiles.link(view, to))
+					IJ.log("Backed up view " + view.getName() + " (hard link).");
+				else if(copy(view, to))
+					IJ.log("Backed up view " + view.getName() + ".");
+				else
+				{
+					IJ.log("Couldn't back up view " + view.getName() + "!");
+					ok = false;
+				}
+			} finally {
+				permit.release();
+			}
 			reportProgress(view, 0.66f);
 		}
 		
-		if(save.isSelected() && !(new File(view.getParent(), "metadata.xml").exists()))
+		if(save.isSelected() && xml.length() > 0 && !(new File(view.getParent(), "metadata.xml").exists()))
 		{
-			write((String)img.getProperty("Info"), new File(view.getParent(), "metadata.xml"));
+			write(xml, new File(view.getParent(), "metadata.xml"));
 			IJ.log("Exported metadata.xml from view " + view.getName() + ". (Other views should be identical.)");
 		}
 		
-		IJ.saveAs(img, "tiff", view.getAbsolutePath());
+		if(modeCombo.getSelectedItem() == StripMode.IN_PLACE && stripInPlace(par, view, xml))
+		{
+			reportProgress(view, 1.0f);
+			return ok;
+		}
+
+		// Saving through ImageJ drops the OME-XML; with a view cache, that
+		// happens when the view is written back.
+		ImagePlus img = openView(par, view);
+		if(img == null)
+		{
+			IJ.log("Couldn't open view " + view.getName() + ".");
+			return false;
+		}
+
+		ok &= closeView(par, view, img, true);
 		
 		IJ.log("Rewrote view " + view.getName() + " without(?) OME-XML metadata.");
 		reportProgress(view, 1.0f);
+		return ok;
+	}
+
+	/**
+	 * Blanks the view's ImageDescription tags, leaving the pixels (and the
+	 * rest of the file) as they are.
+	 *
+	 * @return false if the view couldn't be patched, and has to be rewritten
+	 */
+	private static boolean stripInPlace(Params par, File view, String description)
+	{
+		// ImageJ's own description says how its stack is laid out; it has to stay.
+		if(description.startsWith("ImageJ="))
+		{
+			IJ.log("View " + view.getName() + " has ImageJ metadata only; leaving it as is.");
+			return true;
+		}
+
+		// The file is about to change behind the cache's back.
+		if(par.views != null)
+		{
+			try {
+				par.views.invalidate(view);
+			} catch(IOException ioe) {
+				IJ.log("Couldn't write back view " + view.getName() + " (" + ioe.getMessage() + "); rewriting it instead.");
+				return false;
+			}
+		}
+
+		IoLimiter.Permit permit = IoLimiter.acquire(par.io, view);
+		try {
+			if(TiffMetadata.replaceDescription(view, ""))
+				IJ.log("Stripped OME-XML metadata from view " + view.getName() + " in place.");
+			else
+				IJ.log("View " + view.getName() + " has no metadata to strip.");
+
+			return true;
+		} catch(IOException ioe) {
+			IJ.log("Couldn't patch view " + view.getName() + " (" + ioe.getMessage() + "); rewriting it instead.");
+			return false;
+		} finally {
+			permit.release();
+		}
 	}
 
 	private static JCheckBox backup = new JCheckBox("", true), autoskip = new JCheckBox("", true), save = new JCheckBox();
+	private static JComboBox modeCombo = new JComboBox(StripMode.values());
 	
 	@Override
 	public Component getControlPanel() {
 		return LayoutUtils.form(
 			"Backup Originals:", backup,
 			"Skip if Backup Exists:", autoskip,
-			"Export Metadata:", save
+			"Export Metadata:", save,
+			"Strip Mode:", modeCombo
 		);
 	}
 